@@ -0,0 +1,167 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.HdrHistogram.Recorder;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.Interruptible;
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Consumes messages over AMQP 1.0.
+ *
+ * <p>The link credit bounds the messages the broker may push ahead of the sampler, like the
+ * prefetch count of the 0-9-1 consumer. Unsettled deliveries are accepted as they are read.
+ */
+public class AMQP10Consumer extends AMQP10Sampler implements Interruptible {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggerFactory.getLogger(AMQP10Consumer.class);
+
+    //++ These are JMX names, and must not be changed
+    private static final String RECEIVE_TIMEOUT = "AMQP10Consumer.ReceiveTimeout";
+
+    public static final String TIMEOUT_RESPONSE_CODE = "408";
+
+    private transient MessageConsumer consumer;
+
+    public AMQP10Consumer() {
+        super();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected SampleResult doSample(Entry e) {
+        SampleResult result = new SampleResult();
+        result.setSampleLabel(getName());
+        result.setSuccessful(false);
+        result.setResponseCode(DEFAULT_RESPONSE_CODE);
+
+        try {
+            initSession();
+        } catch (Exception ex) {
+            log.error("Failed to initialize session : ", ex);
+            result.setResponseMessage(ex.toString());
+            return result;
+        }
+
+        ReceiverConfig config = (ReceiverConfig) getConfig();
+        Message message = null;
+        Recorder waitLog = intervalRecorder(IntervalLog.WAIT);
+
+        result.sampleStart();   // start timing
+
+        try {
+            for (int idx = 0; idx < config.iterations; idx++) {
+                long messageStart = messageStart();
+                long start = waitLog != null ? System.nanoTime() : 0;
+
+                message = consumer.receive(config.receiveTimeout);
+
+                if (message == null) {
+                    break;
+                }
+
+                if (waitLog != null) {
+                    waitLog.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
+
+                recordMessage(messageStart);
+            }
+
+            if (message == null) {
+                result.setResponseCode(TIMEOUT_RESPONSE_CODE);
+                result.setResponseMessage("Timed out waiting for a message on " + getAddress());
+            } else {
+                result.setResponseData(getBody(message));
+                result.setDataType(SampleResult.TEXT);
+                result.setResponseHeaders("JMSMessageID: " + message.getJMSMessageID() + "\n"
+                        + "JMSRedelivered: " + message.getJMSRedelivered() + "\n");
+
+                result.setResponseCodeOK();
+                result.setResponseMessage("OK");
+                result.setSampleCount(config.iterations);
+                result.setSuccessful(true);
+            }
+        } catch (Exception ex) {
+            log.warn(ex.getMessage(), ex);
+            result.setResponseCode("000");
+            result.setResponseMessage(ex.toString());
+        } finally {
+            result.sampleEnd();     // end timing
+        }
+
+        return result;
+    }
+
+    @Override
+    protected void sessionOpened(Session session) throws JMSException {
+        consumer = session.createConsumer(session.createQueue(getAddress()));
+    }
+
+    @Override
+    protected void sessionClosed() {
+        consumer = null;
+    }
+
+    @Override
+    protected SamplerConfig compileConfig() {
+        return new ReceiverConfig(this);
+    }
+
+    public String getReceiveTimeout() {
+        return getPropertyAsString(RECEIVE_TIMEOUT, DEFAULT_TIMEOUT_STRING);
+    }
+
+    public void setReceiveTimeout(String s) {
+        setProperty(RECEIVE_TIMEOUT, s);
+    }
+
+    protected int getReceiveTimeoutAsInt() {
+        int receiveTimeout = getPropertyAsInt(RECEIVE_TIMEOUT);
+
+        if (receiveTimeout < 1) {
+            return DEFAULT_TIMEOUT;
+        }
+
+        return receiveTimeout;
+    }
+
+    @Override
+    public boolean interrupt() {
+        interruptWindow();
+        cleanup();
+        return true;
+    }
+
+    /**
+     * Receiver settings compiled once per thread.
+     */
+    protected static class ReceiverConfig extends SamplerConfig {
+
+        private final boolean dynamic;
+
+        protected final int receiveTimeout;
+
+        protected ReceiverConfig(AMQP10Consumer sampler) {
+            super(sampler);
+            this.dynamic = sampler.hasVariables(RECEIVE_TIMEOUT);
+            this.receiveTimeout = sampler.getReceiveTimeoutAsInt();
+        }
+
+        @Override
+        public boolean isDynamic() {
+            return dynamic || super.isDynamic();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.HdrHistogram.Recorder;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.Interruptible;
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes messages over AMQP 1.0.
+ *
+ * <p>With a pipeline of one, each transfer waits for its disposition before the next one is
+ * sent. A larger pipeline keeps up to that many unsettled transfers in flight, and the sample
+ * completes once all of them are settled, so throughput is comparable to publisher confirms.
+ */
+public class AMQP10Publisher extends AMQP10Sampler implements Interruptible {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggerFactory.getLogger(AMQP10Publisher.class);
+
+    //++ These are JMX names, and must not be changed
+    private static final String MESSAGE    = "AMQP10Publisher.Message";
+    private static final String PERSISTENT = "AMQP10Publisher.Persistent";
+    private static final String PIPELINE   = "AMQP10Publisher.Pipeline";
+
+    public static final boolean DEFAULT_PERSISTENT = false;
+    public static final int DEFAULT_PIPELINE = 1;
+    public static final String DEFAULT_PIPELINE_STRING = Integer.toString(DEFAULT_PIPELINE);
+
+    private transient MessageProducer producer;
+
+    public AMQP10Publisher() {
+        super();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected SampleResult doSample(Entry e) {
+        SampleResult result = new SampleResult();
+        result.setSampleLabel(getName());
+        result.setSuccessful(false);
+        result.setResponseCode(DEFAULT_RESPONSE_CODE);
+
+        Session session;
+
+        try {
+            session = initSession();
+        } catch (Exception ex) {
+            log.error("Failed to initialize session : ", ex);
+            result.setResponseMessage(ex.toString());
+            return result;
+        }
+
+        SenderConfig config = (SenderConfig) getConfig();
+        Semaphore window = new Semaphore(config.pipeline);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Recorder publishLog = intervalRecorder(IntervalLog.PUBLISH);
+        // send times of the pipelined messages, completed in the order they were sent
+        Queue<Long> sendTimes = publishLog != null && config.pipeline > 1 ? new ConcurrentLinkedQueue<>() : null;
+
+        CompletionListener listener = new CompletionListener() {
+            @Override
+            public void onCompletion(Message message) {
+                Long sent = sendTimes != null ? sendTimes.poll() : null;
+
+                if (sent != null) {
+                    publishLog.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent));
+                }
+
+                window.release();
+            }
+
+            @Override
+            public void onException(Message message, Exception exception) {
+                if (sendTimes != null) {
+                    sendTimes.poll();
+                }
+
+                failure.compareAndSet(null, exception);
+                window.release();
+            }
+        };
+
+        result.sampleStart();   // start timing
+
+        try {
+            for (int idx = 0; idx < config.iterations; idx++) {
+                long messageStart = messageStart();
+                BytesMessage message = session.createBytesMessage();
+                message.writeBytes(config.messageBytes);
+
+                long start = publishLog != null ? System.nanoTime() : 0;
+
+                if (config.pipeline > 1) {
+                    window.acquire();
+
+                    if (sendTimes != null) {
+                        sendTimes.add(System.nanoTime());
+                    }
+
+                    producer.send(message, config.deliveryMode, Message.DEFAULT_PRIORITY,
+                            Message.DEFAULT_TIME_TO_LIVE, listener);
+                } else {
+                    producer.send(message, config.deliveryMode, Message.DEFAULT_PRIORITY,
+                            Message.DEFAULT_TIME_TO_LIVE);
+                }
+
+                // pipelined messages are timed until they are settled
+                if (publishLog != null && sendTimes == null) {
+                    publishLog.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
+
+                recordMessage(messageStart);
+            }
+
+            // wait for the transfers still in flight
+            if (config.pipeline > 1 && !window.tryAcquire(config.pipeline, getTimeoutAsInt(), TimeUnit.MILLISECONDS)) {
+                throw new JMSException("Transfers not settled within " + getTimeoutAsInt() + " ms: "
+                        + (config.pipeline - window.availablePermits()));
+            }
+
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+
+            result.setSamplerData(config.message);
+            result.setDataType(SampleResult.TEXT);
+
+            result.setResponseCodeOK();
+            result.setResponseMessage("OK");
+            result.setSampleCount(config.iterations);
+            result.setSuccessful(true);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result.setResponseCode("000");
+            result.setResponseMessage(ex.toString());
+        } catch (Exception ex) {
+            log.warn(ex.getMessage(), ex);
+            result.setResponseCode("000");
+            result.setResponseMessage(ex.toString());
+        } finally {
+            result.sampleEnd();     // end timing
+        }
+
+        return result;
+    }
+
+    @Override
+    protected void sessionOpened(Session session) throws JMSException {
+        producer = session.createProducer(session.createQueue(getAddress()));
+    }
+
+    @Override
+    protected void sessionClosed() {
+        producer = null;
+    }
+
+    @Override
+    protected SamplerConfig compileConfig() {
+        return new SenderConfig(this);
+    }
+
+    /**
+     * @return the message for the sample
+     */
+    public String getMessage() {
+        return getPropertyAsString(MESSAGE);
+    }
+
+    public void setMessage(String content) {
+        setProperty(MESSAGE, content);
+    }
+
+    public boolean getPersistent() {
+        return getPropertyAsBoolean(PERSISTENT, DEFAULT_PERSISTENT);
+    }
+
+    public void setPersistent(Boolean persistent) {
+        setProperty(PERSISTENT, persistent);
+    }
+
+    /**
+     * @return the number of unsettled transfers kept in flight, 1 to wait for each one
+     */
+    public String getPipeline() {
+        return getPropertyAsString(PIPELINE, DEFAULT_PIPELINE_STRING);
+    }
+
+    public void setPipeline(String pipeline) {
+        setProperty(PIPELINE, pipeline);
+    }
+
+    public int getPipelineAsInt() {
+        int pipeline = getPropertyAsInt(PIPELINE, DEFAULT_PIPELINE);
+        return pipeline < 1 ? DEFAULT_PIPELINE : pipeline;
+    }
+
+    @Override
+    public boolean interrupt() {
+        interruptWindow();
+        cleanup();
+        return true;
+    }
+
+    /**
+     * Sender settings compiled once per thread, including the encoded message body.
+     */
+    protected static class SenderConfig extends SamplerConfig {
+
+        private final boolean dynamic;
+
+        protected final String message;
+        protected final byte[] messageBytes;
+        protected final int deliveryMode;
+        protected final int pipeline;
+
+        protected SenderConfig(AMQP10Publisher sampler) {
+            super(sampler);
+            this.dynamic = sampler.hasVariables(MESSAGE, PERSISTENT, PIPELINE);
+            this.message = sampler.getMessage();
+            this.messageBytes = message.getBytes(StandardCharsets.UTF_8);
+            this.deliveryMode = sampler.getPersistent() ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
+            this.pipeline = sampler.getPipelineAsInt();
+        }
+
+        @Override
+        public boolean isDynamic() {
+            return dynamic || super.isDynamic();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.qpid.jms.JmsConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base for the AMQP 1.0 samplers. The connection settings of {@link AMQPSampler} are reused,
+ * the 0-9-1 channel is not: each thread opens an AMQP 1.0 connection and session instead.
+ *
+ * <p>Flow control and settlement map onto the link: the link credit is the number of messages
+ * a receiving link grants the broker ahead of time, and settled links transfer messages
+ * pre-settled (at-most-once) instead of waiting for a disposition.
+ */
+public abstract class AMQP10Sampler extends AMQPSampler {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggerFactory.getLogger(AMQP10Sampler.class);
+
+    //++ These are JMX names, and must not be changed
+    protected static final String ADDRESS     = "AMQP10Sampler.Address";
+    protected static final String LINK_CREDIT = "AMQP10Sampler.LinkCredit";
+    protected static final String SETTLEMENT  = "AMQP10Sampler.Settlement";
+
+    public static final String SETTLED   = "settled";
+    public static final String UNSETTLED = "unsettled";
+
+    public static final String[] SETTLEMENT_MODES = new String[] {
+        UNSETTLED,
+        SETTLED
+    };
+
+    public static final String DEFAULT_ADDRESS = "";
+    public static final int DEFAULT_LINK_CREDIT = 1000;
+    public static final String DEFAULT_LINK_CREDIT_STRING = Integer.toString(DEFAULT_LINK_CREDIT);
+    public static final String DEFAULT_SETTLEMENT = UNSETTLED;
+    public static final String DEFAULT_RESPONSE_CODE = "500";
+
+    private transient volatile Connection amqpConnection;
+    private transient volatile Session session;
+    // set by the exception listener, the sampler thread closes it before the next sample
+    private transient volatile Connection failedConnection;
+
+    protected AMQP10Sampler() {
+        super();
+    }
+
+    /**
+     * Open the connection and session of this thread, if not open yet. A connection reported as
+     * failed is closed and replaced here, on the sampler thread, rather than on the thread of the
+     * exception listener, while the session may still be in use.
+     *
+     * @return the session
+     */
+    protected Session initSession() throws JMSException, IOException {
+        Connection failed = failedConnection;
+
+        if (failed != null) {
+            failedConnection = null;
+
+            if (failed == amqpConnection) {
+                closeConnection();
+            }
+        }
+
+        if (session == null) {
+            String uri = getConnectionUri();
+            log.info("Creating AMQP 1.0 connection {}", uri);
+
+            JmsConnectionFactory factory = new JmsConnectionFactory(getUsername(), getPassword(), uri);
+
+            if (getConnectionSSL()) {
+                factory.setSslContext(getResumeSessions()
+                        ? TlsSocketFactory.sharedContext(getSslProtocol(), getKeyStore(), getKeyStoreType(),
+                                getKeyStorePassword(), getTrustStore(), getTrustStoreType(), getTrustStorePassword())
+                        : TlsSocketFactory.newContext(getSslProtocol(), getKeyStore(), getKeyStoreType(),
+                                getKeyStorePassword(), getTrustStore(), getTrustStoreType(), getTrustStorePassword()));
+            }
+
+            Connection connection = factory.createConnection();
+
+            try {
+                connection.setExceptionListener(ex -> {
+                    log.warn("AMQP 1.0 connection of {} failed: {}", getName(), ex.toString());
+                    failedConnection = connection;
+                });
+                connection.start();
+
+                session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                amqpConnection = connection;
+                sessionOpened(session);
+            } catch (JMSException ex) {
+                session = null;
+                amqpConnection = null;
+                connection.close();
+                throw ex;
+            }
+        }
+
+        return session;
+    }
+
+    /**
+     * Called once the session of the thread is open, to create the links.
+     */
+    protected abstract void sessionOpened(Session session) throws JMSException;
+
+    /**
+     * Called once the connection of the thread is closed, to drop the links.
+     */
+    protected abstract void sessionClosed();
+
+    /**
+     * Build the connection URI. Several hosts become a fail-over URI, socket and TLS settings go
+     * into the transport options, link credit and settlement into the client options. A virtual
+     * host other than the default one is sent as {@code vhost:name}, the form RabbitMQ expects in
+     * the open frame. The SSL context itself is set on the connection factory, so no store
+     * passwords end up in the URI.
+     */
+    protected String getConnectionUri() {
+        String scheme = getConnectionSSL() ? "amqps" : "amqp";
+        List<String> transports = new ArrayList<>();
+        StringBuilder transportOptions = new StringBuilder();
+
+        transportOptions.append("transport.connectTimeout=").append(getTimeoutAsInt());
+        transportOptions.append("&transport.tcpNoDelay=").append(getTcpNoDelay());
+
+        if (getSendBufferSizeAsInt() > 0) {
+            transportOptions.append("&transport.sendBufferSize=").append(getSendBufferSizeAsInt());
+        }
+
+        if (getReceiveBufferSizeAsInt() > 0) {
+            transportOptions.append("&transport.receiveBufferSize=").append(getReceiveBufferSizeAsInt());
+        }
+
+        if (getConnectionSSL()) {
+            if (StringUtils.isNotBlank(getCipherSuites())) {
+                transportOptions.append("&transport.enabledCipherSuites=")
+                        .append(encode(StringUtils.deleteWhitespace(getCipherSuites())));
+            }
+
+            // without a trust store any broker certificate is trusted, as with the 0-9-1 samplers
+            if (StringUtils.isBlank(getTrustStore())) {
+                transportOptions.append("&transport.verifyHost=false");
+            }
+        }
+
+        if (getHeartbeatAsInt() > 0) {
+            // the idle timeout is twice the heartbeat interval
+            transportOptions.append("&amqp.idleTimeout=").append(getHeartbeatAsInt() * 2000L);
+        }
+
+        if (!StringUtils.isEmpty(getVirtualHost()) && !DEFAULT_VIRTUAL_HOST.equals(getVirtualHost())) {
+            transportOptions.append("&amqp.vhost=").append(encode("vhost:" + getVirtualHost()));
+        }
+
+        for (String host : StringUtils.split(getHost(), ',')) {
+            Address address = Address.parseAddress(host.trim());
+            int port = address.getPort() < 0 ? getPortAsInt() : address.getPort();
+            transports.add(scheme + "://" + address.getHost() + ":" + port);
+        }
+
+        // sends without a completion listener wait for the disposition, whatever the delivery mode
+        String clientOptions = "jms.prefetchPolicy.all=" + getLinkCreditAsInt()
+                + "&jms.presettlePolicy.presettleAll=" + isSettled()
+                + "&jms.forceSyncSend=true";
+
+        if (transports.size() == 1) {
+            return transports.get(0) + "?" + transportOptions + "&" + clientOptions;
+        }
+
+        StringBuilder uri = new StringBuilder("failover:(");
+
+        for (int idx = 0; idx < transports.size(); idx++) {
+            uri.append(idx > 0 ? "," : "").append(transports.get(idx)).append('?').append(transportOptions);
+        }
+
+        return uri.append(")?").append(clientOptions).toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the body of a received message
+     */
+    protected static byte[] getBody(Message message) throws JMSException {
+        if (message instanceof BytesMessage) {
+            BytesMessage bytesMessage = (BytesMessage) message;
+            byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+            bytesMessage.readBytes(body);
+            return body;
+        }
+
+        if (message instanceof TextMessage) {
+            String text = ((TextMessage) message).getText();
+            return text != null ? text.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        }
+
+        return new byte[0];
+    }
+
+    /**
+     * @return the link address, the queue name if no explicit address is set
+     */
+    public String getAddress() {
+        String address = getPropertyAsString(ADDRESS, DEFAULT_ADDRESS);
+        return StringUtils.isEmpty(address) ? getQueue() : address;
+    }
+
+    /**
+     * @return the address as configured, possibly empty
+     */
+    public String getRawAddress() {
+        return getPropertyAsString(ADDRESS, DEFAULT_ADDRESS);
+    }
+
+    public void setAddress(String address) {
+        setProperty(ADDRESS, address);
+    }
+
+    public String getLinkCredit() {
+        return getPropertyAsString(LINK_CREDIT, DEFAULT_LINK_CREDIT_STRING);
+    }
+
+    public void setLinkCredit(String credit) {
+        setProperty(LINK_CREDIT, credit);
+    }
+
+    public int getLinkCreditAsInt() {
+        int credit = getPropertyAsInt(LINK_CREDIT, DEFAULT_LINK_CREDIT);
+        return credit < 1 ? DEFAULT_LINK_CREDIT : credit;
+    }
+
+    /**
+     * @return whether messages are transferred pre-settled or wait for a disposition
+     */
+    public String getSettlement() {
+        return getPropertyAsString(SETTLEMENT, DEFAULT_SETTLEMENT);
+    }
+
+    public void setSettlement(String settlement) {
+        setProperty(SETTLEMENT, settlement);
+    }
+
+    public boolean isSettled() {
+        return SETTLED.equals(getSettlement());
+    }
+
+    /**
+     * No 0-9-1 channel is used by the AMQP 1.0 samplers.
+     */
+    @Override
+    protected Channel getChannel() {
+        return null;
+    }
+
+    @Override
+    protected void setChannel(Channel channel) {
+        // no 0-9-1 channel
+    }
+
+    @Override
+    protected void cleanup() {
+        closeConnection();
+    }
+
+    private synchronized void closeConnection() {
+        Connection connection = amqpConnection;
+
+        amqpConnection = null;
+        session = null;
+        sessionClosed();
+
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                log.error("Failed to close AMQP 1.0 connection", e);
+            }
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package com.zeroclue.jmeter.protocol.amqp;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConsumerCancelledException;
-import com.rabbitmq.client.DeliverCallback;
 import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownSignalException;
 
+import org.HdrHistogram.Recorder;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.groovy.util.Maps;
 import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.Interruptible;
@@ -16,13 +19,24 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.zip.Checksum;
 
 public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStateListener {
 
@@ -44,26 +58,112 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
     private static final String AUTO_ACK                = "AMQPConsumer.AutoAck";
     private static final String RECEIVE_TIMEOUT         = "AMQPConsumer.ReceiveTimeout";
     private static final String USE_TX                  = "AMQPConsumer.UseTx";
+    private static final String VERIFY_CHECKSUM         = "AMQPConsumer.VerifyChecksum";
+    private static final String RESPONSE_RETENTION      = "AMQPConsumer.ResponseRetention";
+    private static final String RESPONSE_MAX_BYTES      = "AMQPConsumer.ResponseMaxBytes";
+    private static final String ADAPTIVE_PREFETCH       = "AMQPConsumer.AdaptivePrefetch";
+    private static final String MAX_PREFETCH            = "AMQPConsumer.MaxPrefetch";
+    private static final String STREAM_OFFSET           = "AMQPConsumer.StreamOffset";
+    private static final String FAN_IN_QUEUES           = "AMQPConsumer.FanInQueues";
+    private static final String FAN_IN_CHANNELS         = "AMQPConsumer.FanInChannels";
+    private static final String SHARED_DISPATCHER       = "AMQPConsumer.SharedDispatcher";
+    private static final String BROKER_CONSUMERS        = "AMQPConsumer.BrokerConsumers";
+    private static final String SERVER_NAMED_QUEUES     = "AMQPConsumer.ServerNamedQueues";
+    private static final String PRIORITY_BREAKDOWN      = "AMQPConsumer.PriorityBreakdown";
+    private static final String REJECT                  = "AMQPConsumer.Reject";
+    private static final String DEAD_LETTER_STATS       = "AMQPConsumer.DeadLetterStats";
+    private static final String DEAD_LETTER_TTL         = "AMQPConsumer.DeadLetterTtl";
+    private static final String TX_BATCH_SIZE           = "AMQPConsumer.TxBatchSize";
+    private static final String CLOCK_SYNC              = "AMQPConsumer.ClockSync";
+    private static final String CONTROL_QUEUE           = "AMQPConsumer.ControlQueue";
+    private static final String TX_BATCH_TIME           = "AMQPConsumer.TxBatchTime";
 
     public static final String TIMESTAMP_PARAMETER      = "Timestamp";
     public static final String EXCHANGE_PARAMETER       = "Exchange";
     public static final String ROUTING_KEY_PARAMETER    = "Routing Key";
     public static final String DELIVERY_TAG_PARAMETER   = "Delivery Tag";
     public static final String APP_ID_PARAMETER         = "Application ID";
+    public static final String QUEUE_PARAMETER          = "Queue";
+
+    public static final String RETAIN_NONE              = "none";
+    public static final String RETAIN_FIRST             = "first";
+    public static final String RETAIN_LAST              = "last";
+    public static final String RETAIN_TRUNCATED         = "truncated";
+
+    public static final String[] RESPONSE_RETENTION_POLICIES = new String[] {
+        RETAIN_NONE,
+        RETAIN_FIRST,
+        RETAIN_LAST,
+        RETAIN_TRUNCATED
+    };
 
     public static final boolean DEFAULT_PURGE_QUEUE = false;
     public static final boolean DEFAULT_AUTO_ACK = true;
     public static final boolean DEFAULT_READ_RESPONSE = true;
     public static final boolean DEFAULT_USE_TX = false;
+    public static final String DEFAULT_TX_BATCH_SIZE = "0";
+    public static final String DEFAULT_TX_BATCH_TIME = "0";
+    public static final boolean DEFAULT_VERIFY_CHECKSUM = false;
+    public static final boolean DEFAULT_PRIORITY_BREAKDOWN = false;
+    public static final boolean DEFAULT_REJECT = false;
+    public static final boolean DEFAULT_DEAD_LETTER_STATS = false;
+    public static final String DEFAULT_DEAD_LETTER_TTL = "";
+    public static final boolean DEFAULT_CLOCK_SYNC = false;
+    public static final String DEFAULT_CONTROL_QUEUE = ClockSync.DEFAULT_CONTROL_QUEUE;
     private static final int DEFAULT_PREFETCH_COUNT = 0;    // unlimited
     public static final String DEFAULT_PREFETCH_COUNT_STRING = Integer.toString(DEFAULT_PREFETCH_COUNT);
     public static final String DEFAULT_RESPONSE_CODE = "500";
     public static final String DEFAULT_RECEIVE_TIMEOUT = "";
+    public static final String CHECKSUM_FAILED_RESPONSE_CODE = "600";
+    public static final String DEFAULT_RESPONSE_RETENTION = RETAIN_LAST;
+    public static final int DEFAULT_RESPONSE_MAX_BYTES = 1024;
+    public static final String DEFAULT_RESPONSE_MAX_BYTES_STRING = Integer.toString(DEFAULT_RESPONSE_MAX_BYTES);
+
+    public static final boolean DEFAULT_ADAPTIVE_PREFETCH = false;
+    public static final int DEFAULT_MAX_PREFETCH = 1000;
+    public static final String DEFAULT_MAX_PREFETCH_STRING = Integer.toString(DEFAULT_MAX_PREFETCH);
+
+    public static final String DEFAULT_STREAM_OFFSET = "";
+
+    public static final String DEFAULT_FAN_IN_QUEUES = "";
+    public static final int DEFAULT_FAN_IN_CHANNELS = 1;
+    public static final String DEFAULT_FAN_IN_CHANNELS_STRING = Integer.toString(DEFAULT_FAN_IN_CHANNELS);
+
+    public static final boolean DEFAULT_SHARED_DISPATCHER = false;
+    public static final int DEFAULT_BROKER_CONSUMERS = 1;
+    public static final String DEFAULT_BROKER_CONSUMERS_STRING = Integer.toString(DEFAULT_BROKER_CONSUMERS);
+
+    public static final int DEFAULT_SERVER_NAMED_QUEUES = 0;
+    public static final String DEFAULT_SERVER_NAMED_QUEUES_STRING = Integer.toString(DEFAULT_SERVER_NAMED_QUEUES);
+
+    // bound of the hand-off buffer when the prefetch count is unlimited
+    private static final int DEFAULT_BUFFER_CAPACITY = 1000;
+
+    // stream consumers need a prefetch count, used if none is configured
+    private static final int DEFAULT_STREAM_PREFETCH = 1000;
+
+    private static final String STREAM_OFFSET_ARGUMENT = "x-stream-offset";
+    private static final Pattern STREAM_OFFSET_INTERVAL = Pattern.compile("\\d+[YMDhms]");
+
+    // the stream size is read at most this often to estimate the offset lag
+    private static final long STREAM_TAIL_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final byte[] NO_RESPONSE = new byte[0];
 
     private transient Channel channel;
-    private transient DeliverCallback consumer;
-    private transient BlockingQueue<Delivery> response;
+    private transient List<DeliveryHandOff> handOffs;
+    private transient volatile BlockingQueue<Delivery> response;
     private transient String consumerTag;
+    private transient volatile boolean manualAck;
+    private transient AdaptivePrefetch adaptivePrefetch;
+    private transient EnumMap<PayloadChecksum, Checksum> checksums;
+    private transient long streamTail = -1;
+    private transient long streamTailRead;
+    private transient List<Channel> fanInChannels;
+    private transient Map<String, long[]> fanInCounts;
+    private transient List<String> serverNamedQueues;
+    private transient String serverNamedScope;
+    private transient TxBatch txBatch;
 
     public AMQPConsumer() {
         super();
@@ -73,30 +173,23 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
      * {@inheritDoc}
      */
     @Override
-    public SampleResult sample(Entry entry) {
-        SampleResult result = new SampleResult();
+    protected SampleResult doSample(Entry entry) {
+        AMQPSampleResult result = new AMQPSampleResult();
         result.setSampleLabel(getName());
         result.setSuccessful(false);
         result.setResponseCode(DEFAULT_RESPONSE_CODE);
 
         trace("AMQPConsumer.sample()");
 
-        try {
-            initChannel();
-
-            if (purgeQueue()) {
-                doPurgeQueue();
-            }
+        ConsumerConfig config = getConsumerConfig();
+        manualAck = !config.autoAck;
 
-            // only do this once per thread, otherwise it slows down the consumption by appx 50%
-            if (consumer == null) {
-                log.info("Creating consumer");
-                response = new LinkedBlockingQueue<>(1);
-                consumer = (consumerTag, delivery) -> response.offer(delivery);
-            }
-            if (consumerTag == null) {
-                log.info("Starting basic consumer");
-                consumerTag = channel.basicConsume(getQueue(), autoAck(), consumer, consumerTag  -> { });
+        try {
+            if (config.shared) {
+                // taken on every sample, the dispatcher may have been replaced
+                response = sharedDispatcher(config).getBuffer();
+            } else {
+                initConsumer(config);
             }
         } catch (Exception ex) {
             log.error("Failed to initialize channel", ex);
@@ -109,59 +202,139 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
          */
 
         // aggregate samples
-        int loop = getIterationsAsInt();
+        int loop = config.iterations;
         result.sampleStart();                      // start timing
         Delivery delivery = null;
+        Delivery retained = null;
+        boolean retainFirst = RETAIN_FIRST.equals(config.responseRetention);
+        boolean retainAny = !RETAIN_NONE.equals(config.responseRetention);
+        int checksumFailures = 0;
+        String checksumFailure = null;
+        long maxOffsetLag = -1;
+        Map<String, Integer> sampleCounts = config.fanIn ? new TreeMap<>() : null;
+        DeliveryTiming timing = new DeliveryTiming(config.priorityBreakdown, config.clockSync
+                ? peer -> ClockSync.estimate(getConnection(), config.controlQueue, peer) : null,
+                intervalRecorder(IntervalLog.END_TO_END));
+        Recorder waitLog = intervalRecorder(IntervalLog.WAIT);
+        DeadLetterStats deadLetters = config.deadLetterStats ? new DeadLetterStats(config.deadLetterTtl) : null;
+        TxBatch batch = config.useTx ? txBatch(config) : null;
 
         try {
             for (int idx = 0; idx < loop; idx++) {
-                delivery = response.poll(getReceiveTimeoutAsInt(), TimeUnit.MILLISECONDS);
+                long messageStart = messageStart();
+                long waitStart = waitLog != null ? System.nanoTime() : 0;
+
+                if (adaptivePrefetch != null) {
+                    delivery = pollAdaptive(config);
+                } else {
+                    delivery = response.poll(config.receiveTimeout, TimeUnit.MILLISECONDS);
+                }
+
+                if (waitLog != null && delivery != null) {
+                    waitLog.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - waitStart));
+                }
 
                 if (delivery == null) {
+                    // honour the time limit of the batch while the queue is idle
+                    if (batch != null && batch.sampleEnded()) {
+                        batch.commit(this::commitChannels);
+                    }
+
+                    populateResponse(result, retained, config);
                     result.setResponseMessage("Timed out");
                     return result;
                 }
 
-                /*
-                 * Set up the sample result details
-                 */
-                if (getReadResponseAsBoolean()) {
-                    String responseStr = new String(delivery.getBody());
-                    result.setResponseData(responseStr, StandardCharsets.UTF_8.name());
-                } else {
-                    result.setResponseData("Read response failed", StandardCharsets.UTF_8.name());
+                if (config.verifyChecksum) {
+                    String failure = verifyChecksum(delivery);
+
+                    if (failure != null) {
+                        checksumFailures++;
+                        checksumFailure = failure;
+                    }
+                }
+
+                if (sampleCounts != null) {
+                    count((QueuedDelivery) delivery, sampleCounts);
+                }
+
+                timing.record(delivery, config.serverNamed ? config.fanOutScope : null);
+
+                if (deadLetters != null) {
+                    deadLetters.record(delivery, System.currentTimeMillis());
+                }
+
+                if (config.stream && !config.fanIn) {
+                    maxOffsetLag = Math.max(maxOffsetLag, offsetLag(delivery, config));
+                }
+
+                if (retainAny && (retained == null || !retainFirst)) {
+                    retained = delivery;
+                }
+
+                if (config.reject) {
+                    reject(delivery);
+                } else if (!config.autoAck) {
+                    ackChannel(delivery).basicAck(delivery.getEnvelope().getDeliveryTag(), false);
                 }
 
-                if (!autoAck()) {
-                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                if (batch != null && batch.added()) {
+                    batch.commit(this::commitChannels);
                 }
+
+                recordMessage(messageStart);
             }
 
-            // commit the sample
-            if (getUseTx()) {
-                channel.txCommit();
+            // commit the sample, unless the batch spans samples
+            if (batch != null && batch.sampleEnded()) {
+                batch.commit(this::commitChannels);
             }
 
             /*
              * Set up the sample result details
              */
-            result.setDataType(SampleResult.TEXT);
-            result.setResponseHeaders(delivery != null ? formatHeaders(delivery) : null);
+            populateResponse(result, retained, config);
+
+            if (delivery != null) {
+                result.setResponseHeaders(delivery);
+            }
+
+            if (sampleCounts != null) {
+                result.setSamplerData(formatCounts(sampleCounts));
+            }
+
+            if (checksumFailures > 0) {
+                result.setResponseCode(CHECKSUM_FAILED_RESPONSE_CODE);
+                result.setResponseMessage(checksumFailures + " of " + loop + " messages failed checksum verification, last: " + checksumFailure);
+            } else {
+                result.setResponseMessage((maxOffsetLag >= 0 ? "OK, offset " + streamOffset(delivery)
+                        + ", max offset lag " + maxOffsetLag : "OK") + timing
+                        + (deadLetters != null ? deadLetters : ""));
+                result.setResponseCodeOK();
+                result.setSampleCount(loop);
+                result.setSuccessful(true);
+            }
 
-            result.setResponseMessage("OK");
-            result.setResponseCodeOK();
-            result.setSuccessful(true);
+            timing.addPriorityResults(result);
+
+            if (deadLetters != null) {
+                deadLetters.addResults(result);
+            }
+
+            if (batch != null) {
+                batch.addResult(result);
+            }
         } catch(InterruptedException ie) {
             Thread.currentThread().interrupt();     // re-interrupt the current thread
+            stopHandOffs();
             response = null;
-            consumer = null;
             consumerTag = null;
             log.warn("Interrupted while attempting to consume", ie);
             result.setResponseCode(EXCEPTION_TO_RESPONSE_CODE.get(ie.getClass()));
             result.setResponseMessage(ie.getMessage());
         } catch (ShutdownSignalException | ConsumerCancelledException | IOException e) {
+            stopHandOffs();
             response = null;
-            consumer = null;
             consumerTag = null;
             log.warn("AMQP consumer failed to consume", e);
             result.setResponseCode(EXCEPTION_TO_RESPONSE_CODE.get(e.getClass()));
@@ -176,6 +349,130 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         return result;
     }
 
+    private TxBatch txBatch(ConsumerConfig config) {
+        if (txBatch == null) {
+            txBatch = new TxBatch(config.txBatchSize, config.txBatchTime);
+        }
+
+        return txBatch;
+    }
+
+    private void commitChannels() throws IOException {
+        channel.txCommit();
+
+        if (fanInChannels != null) {
+            for (Channel fanInChannel : fanInChannels) {
+                fanInChannel.txCommit();
+            }
+        }
+    }
+
+    /**
+     * Commit what is left of the batch, the broker would redeliver the messages otherwise.
+     */
+    @Override
+    public void threadFinished() {
+        if (txBatch != null && txBatch.getPending() > 0 && channel != null && channel.isOpen()) {
+            try {
+                txBatch.commit(this::commitChannels);
+            } catch (IOException | ShutdownSignalException e) {
+                log.warn("Failed to commit the last {} acknowledgements", txBatch.getPending(), e);
+            }
+        }
+
+        super.threadFinished();
+    }
+
+    /**
+     * Open the channel of this thread and subscribe, once per thread.
+     */
+    private void initConsumer(ConsumerConfig config) throws Exception {
+        initChannel();
+
+        if (config.purgeQueue) {
+            doPurgeQueue();
+        }
+
+        // only do this once per thread, otherwise it slows down the consumption by appx 50%
+        if (response == null) {
+            log.info("Creating consumer");
+            response = new LinkedBlockingQueue<>(bufferCapacity(config));
+        }
+        if (consumerTag == null && config.serverNamed) {
+            consumerTag = subscribeFanIn(config, declareServerNamedQueues(config));
+        } else if (consumerTag == null && config.fanIn) {
+            consumerTag = subscribeFanIn(config, config.fanInQueues);
+        } else if (consumerTag == null) {
+            log.info("Starting basic consumer");
+            consumerTag = subscribe(channel, config.queue, false, config);
+        }
+    }
+
+    /**
+     * Subscribe to a queue, handing the deliveries off to the buffer of the thread.
+     *
+     * @param tagQueue whether to tag the deliveries with their queue and channel
+     * @return the consumer tag
+     */
+    private String subscribe(Channel queueChannel, String queue, boolean tagQueue, ConsumerConfig config)
+            throws IOException {
+        DeliveryHandOff handOff = new DeliveryHandOff(response, queueChannel, tagQueue ? queue : null, config.autoAck);
+
+        if (handOffs == null) {
+            handOffs = new ArrayList<>();
+        }
+
+        handOffs.add(handOff);
+
+        return queueChannel.basicConsume(queue, config.autoAck, config.consumeArguments, handOff, handOff);
+    }
+
+    /**
+     * Release the client threads blocked on the buffer, before it is dropped.
+     */
+    private void stopHandOffs() {
+        if (handOffs != null) {
+            for (DeliveryHandOff handOff : handOffs) {
+                handOff.cancel();
+            }
+
+            handOffs = null;
+        }
+    }
+
+    /**
+     * Get the dispatcher shared by all threads consuming the same queues. The first thread
+     * opens it on its own connection, with one channel per broker consumer.
+     */
+    private SharedDispatcher sharedDispatcher(ConsumerConfig config) throws Exception {
+        List<String> queues = config.fanIn ? config.fanInQueues : Collections.singletonList(config.queue);
+        String key = getHost() + "/" + getVirtualHost() + "/" + String.join(",", queues);
+
+        return SharedDispatcher.get(key, () -> {
+            initChannel();
+
+            if (channel == null) {
+                throw new IOException("Failed to open channel for the shared dispatcher");
+            }
+
+            if (config.purgeQueue) {
+                doPurgeQueue();
+            }
+
+            List<Channel> channels = new ArrayList<>(config.brokerConsumers);
+            channels.add(channel);
+
+            for (int idx = 1; idx < config.brokerConsumers; idx++) {
+                Channel consumerChannel = getConnection().createChannel();
+                configureChannel(consumerChannel);
+                channels.add(consumerChannel);
+            }
+
+            return new SharedDispatcher(getName(), channels, queues, config.autoAck, config.consumeArguments,
+                    bufferCapacity(config) * config.brokerConsumers, getTopologyRecovery());
+        });
+    }
+
     @Override
     protected Channel getChannel() {
         return channel;
@@ -234,11 +531,13 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
     }
 
     protected int getReceiveTimeoutAsInt() {
-        if (getPropertyAsInt(RECEIVE_TIMEOUT) < 1) {
+        int receiveTimeout = getPropertyAsInt(RECEIVE_TIMEOUT);
+
+        if (receiveTimeout < 1) {
             return DEFAULT_TIMEOUT;
         }
 
-        return getPropertyAsInt(RECEIVE_TIMEOUT);
+        return receiveTimeout;
     }
 
     public String getReceiveTimeout() {
@@ -261,6 +560,118 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         return getPropertyAsInt(PREFETCH_COUNT);
     }
 
+    /**
+     * @return whether the prefetch count is tuned at runtime, starting from the configured one
+     */
+    public boolean getAdaptivePrefetch() {
+        return getPropertyAsBoolean(ADAPTIVE_PREFETCH, DEFAULT_ADAPTIVE_PREFETCH);
+    }
+
+    public void setAdaptivePrefetch(Boolean adaptive) {
+        setProperty(ADAPTIVE_PREFETCH, adaptive);
+    }
+
+    /**
+     * @return the upper bound for the adaptive prefetch count
+     */
+    public String getMaxPrefetch() {
+        return getPropertyAsString(MAX_PREFETCH, DEFAULT_MAX_PREFETCH_STRING);
+    }
+
+    public void setMaxPrefetch(String maxPrefetch) {
+        setProperty(MAX_PREFETCH, maxPrefetch);
+    }
+
+    public int getMaxPrefetchAsInt() {
+        int maxPrefetch = getPropertyAsInt(MAX_PREFETCH, DEFAULT_MAX_PREFETCH);
+
+        return maxPrefetch < 1 ? DEFAULT_MAX_PREFETCH : maxPrefetch;
+    }
+
+    /**
+     * @return where a stream consumer starts: first, last, next, an offset, a timestamp or an interval
+     */
+    public String getStreamOffset() {
+        return getPropertyAsString(STREAM_OFFSET, DEFAULT_STREAM_OFFSET);
+    }
+
+    public void setStreamOffset(String offset) {
+        setProperty(STREAM_OFFSET, offset);
+    }
+
+    /**
+     * @return comma or line separated queues consumed instead of the single queue, {@code [1..100]}
+     *     expands to a numbered range
+     */
+    public String getFanInQueues() {
+        return getPropertyAsString(FAN_IN_QUEUES, DEFAULT_FAN_IN_QUEUES);
+    }
+
+    public void setFanInQueues(String queues) {
+        setProperty(FAN_IN_QUEUES, queues);
+    }
+
+    /**
+     * @return the number of channels the fan-in queues are spread over
+     */
+    public String getFanInChannels() {
+        return getPropertyAsString(FAN_IN_CHANNELS, DEFAULT_FAN_IN_CHANNELS_STRING);
+    }
+
+    public void setFanInChannels(String channels) {
+        setProperty(FAN_IN_CHANNELS, channels);
+    }
+
+    public int getFanInChannelsAsInt() {
+        int channels = getPropertyAsInt(FAN_IN_CHANNELS, DEFAULT_FAN_IN_CHANNELS);
+
+        return channels < 1 ? DEFAULT_FAN_IN_CHANNELS : channels;
+    }
+
+    /**
+     * @return the number of exclusive server-named queues each thread binds to the exchange, 0 for none
+     */
+    public String getServerNamedQueues() {
+        return getPropertyAsString(SERVER_NAMED_QUEUES, DEFAULT_SERVER_NAMED_QUEUES_STRING);
+    }
+
+    public void setServerNamedQueues(String queues) {
+        setProperty(SERVER_NAMED_QUEUES, queues);
+    }
+
+    public int getServerNamedQueuesAsInt() {
+        return Math.max(0, getPropertyAsInt(SERVER_NAMED_QUEUES, DEFAULT_SERVER_NAMED_QUEUES));
+    }
+
+    /**
+     * @return whether the thread polls a dispatcher shared by all threads of the JVM instead of
+     *     consuming on its own channel
+     */
+    public boolean getSharedDispatcher() {
+        return getPropertyAsBoolean(SHARED_DISPATCHER, DEFAULT_SHARED_DISPATCHER);
+    }
+
+    public void setSharedDispatcher(Boolean shared) {
+        setProperty(SHARED_DISPATCHER, shared);
+    }
+
+    /**
+     * @return the number of broker consumers per queue of the shared dispatcher
+     */
+    public String getBrokerConsumers() {
+        return getPropertyAsString(BROKER_CONSUMERS, DEFAULT_BROKER_CONSUMERS_STRING);
+    }
+
+    public void setBrokerConsumers(String consumers) {
+        setProperty(BROKER_CONSUMERS, consumers);
+    }
+
+    public int getBrokerConsumersAsInt() {
+        int consumers = getPropertyAsInt(BROKER_CONSUMERS, DEFAULT_BROKER_CONSUMERS);
+
+        return consumers < 1 ? DEFAULT_BROKER_CONSUMERS : consumers;
+    }
+
     public boolean getUseTx() {
         return getPropertyAsBoolean(USE_TX, DEFAULT_USE_TX);
     }
@@ -269,6 +680,417 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         setProperty(USE_TX, tx);
     }
 
+    /**
+     * @return acknowledgements per transaction, 0 to commit once per sample
+     */
+    public String getTxBatchSize() {
+        return getPropertyAsString(TX_BATCH_SIZE, DEFAULT_TX_BATCH_SIZE);
+    }
+
+    public void setTxBatchSize(String size) {
+        setProperty(TX_BATCH_SIZE, size);
+    }
+
+    public int getTxBatchSizeAsInt() {
+        return Math.max(0, getPropertyAsInt(TX_BATCH_SIZE, 0));
+    }
+
+    /**
+     * @return longest time in milliseconds an acknowledgement waits for its commit, 0 for no limit
+     */
+    public String getTxBatchTime() {
+        return getPropertyAsString(TX_BATCH_TIME, DEFAULT_TX_BATCH_TIME);
+    }
+
+    public void setTxBatchTime(String time) {
+        setProperty(TX_BATCH_TIME, time);
+    }
+
+    public long getTxBatchTimeAsLong() {
+        return Math.max(0, getPropertyAsLong(TX_BATCH_TIME, 0));
+    }
+
+    /**
+     * @return whether to correct latencies by the clock offset to the publishing host
+     */
+    public boolean getClockSync() {
+        return getPropertyAsBoolean(CLOCK_SYNC, DEFAULT_CLOCK_SYNC);
+    }
+
+    public void setClockSync(Boolean sync) {
+        setProperty(CLOCK_SYNC, sync);
+    }
+
+    /**
+     * @return the prefix of the clock control queues, as configured on the publisher
+     */
+    public String getControlQueue() {
+        return getPropertyAsString(CONTROL_QUEUE, DEFAULT_CONTROL_QUEUE);
+    }
+
+    public void setControlQueue(String queue) {
+        setProperty(CONTROL_QUEUE, queue);
+    }
+
+    /**
+     * @return whether to verify the payload checksum header stamped by the publisher
+     */
+    public boolean getVerifyChecksum() {
+        return getPropertyAsBoolean(VERIFY_CHECKSUM, DEFAULT_VERIFY_CHECKSUM);
+    }
+
+    public void setVerifyChecksum(Boolean verify) {
+        setProperty(VERIFY_CHECKSUM, verify);
+    }
+
+    /**
+     * @return whether to report throughput and latency per message priority, as sub-results
+     */
+    public boolean getPriorityBreakdown() {
+        return getPropertyAsBoolean(PRIORITY_BREAKDOWN, DEFAULT_PRIORITY_BREAKDOWN);
+    }
+
+    public void setPriorityBreakdown(Boolean breakdown) {
+        setProperty(PRIORITY_BREAKDOWN, breakdown);
+    }
+
+    /**
+     * @return whether deliveries are rejected without requeueing instead of acknowledged
+     */
+    public boolean getReject() {
+        return getPropertyAsBoolean(REJECT, DEFAULT_REJECT);
+    }
+
+    public void setReject(Boolean reject) {
+        setProperty(REJECT, reject);
+    }
+
+    /**
+     * @return whether the queue is a dead-letter queue whose path latency is reported
+     */
+    public boolean getDeadLetterStats() {
+        return getPropertyAsBoolean(DEAD_LETTER_STATS, DEFAULT_DEAD_LETTER_STATS);
+    }
+
+    public void setDeadLetterStats(Boolean stats) {
+        setProperty(DEAD_LETTER_STATS, stats);
+    }
+
+    /**
+     * @return the message TTL of the queue the messages expired in, in milliseconds
+     */
+    public String getDeadLetterTtl() {
+        return getPropertyAsString(DEAD_LETTER_TTL, DEFAULT_DEAD_LETTER_TTL);
+    }
+
+    public void setDeadLetterTtl(String ttl) {
+        setProperty(DEAD_LETTER_TTL, ttl);
+    }
+
+    public long getDeadLetterTtlAsLong() {
+        return Math.max(0, getPropertyAsLong(DEAD_LETTER_TTL, 0));
+    }
+
+    /**
+     * @return which delivery body is kept as response data: none, first, last or truncated
+     */
+    public String getResponseRetention() {
+        return getPropertyAsString(RESPONSE_RETENTION, DEFAULT_RESPONSE_RETENTION);
+    }
+
+    public void setResponseRetention(String retention) {
+        setProperty(RESPONSE_RETENTION, retention);
+    }
+
+    public String getResponseMaxBytes() {
+        return getPropertyAsString(RESPONSE_MAX_BYTES, DEFAULT_RESPONSE_MAX_BYTES_STRING);
+    }
+
+    public void setResponseMaxBytes(String maxBytes) {
+        setProperty(RESPONSE_MAX_BYTES, maxBytes);
+    }
+
+    public int getResponseMaxBytesAsInt() {
+        int maxBytes = getPropertyAsInt(RESPONSE_MAX_BYTES, DEFAULT_RESPONSE_MAX_BYTES);
+
+        return maxBytes < 0 ? DEFAULT_RESPONSE_MAX_BYTES : maxBytes;
+    }
+
+    /**
+     * The buffer holds at most one prefetch window, so the broker-side limit stays meaningful.
+     */
+    private static int bufferCapacity(ConsumerConfig config) {
+        if (config.adaptivePrefetch) {
+            return config.maxPrefetch;
+        }
+
+        return config.prefetchCount > 0 ? config.prefetchCount : DEFAULT_BUFFER_CAPACITY;
+    }
+
+    /**
+     * Poll the hand-off buffer and feed the adaptive prefetch with throughput, buffer occupancy and wait time.
+     */
+    private Delivery pollAdaptive(ConsumerConfig config) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        Delivery delivery = response.poll(config.receiveTimeout, TimeUnit.MILLISECONDS);
+
+        if (delivery != null) {
+            long now = System.nanoTime();
+            int prefetch = adaptivePrefetch.delivered(response.size(), now - start, now);
+
+            if (prefetch > 0) {
+                resubscribe(config, prefetch);
+            }
+        }
+
+        return delivery;
+    }
+
+    /**
+     * Apply a new prefetch count. A per-consumer limit only holds for consumers subscribed after
+     * it was set, so the consumer is cancelled and subscribed again on the same channel; deliveries
+     * not acknowledged yet stay valid, since delivery tags belong to the channel.
+     */
+    private void resubscribe(ConsumerConfig config, int prefetch) throws IOException {
+        channel.basicQos(prefetch);
+
+        if (consumerTag != null) {
+            channel.basicCancel(consumerTag);
+        }
+
+        // the old hand-off still takes the deliveries in flight to the cancelled consumer
+        consumerTag = subscribe(channel, config.queue, false, config);
+    }
+
+    /**
+     * Declare the exclusive server-named queues of this thread and bind them to the exchange,
+     * so that every thread subscribes to its own copy of each message.
+     *
+     * @return the queue names chosen by the broker
+     */
+    private List<String> declareServerNamedQueues(ConsumerConfig config) throws IOException {
+        if (StringUtils.isBlank(config.exchange)) {
+            throw new IOException("Server-named queues need an exchange to bind to");
+        }
+
+        releaseServerNamedQueues();
+
+        List<String> queues = new ArrayList<>(config.serverNamedQueues);
+
+        for (int idx = 0; idx < config.serverNamedQueues; idx++) {
+            String queue = channel.queueDeclare().getQueue();
+            channel.queueBind(queue, config.exchange, config.routingKey);
+            queues.add(queue);
+        }
+
+        serverNamedQueues = queues;
+        serverNamedScope = config.fanOutScope;
+        FanOutTracker.subscribersAdded(serverNamedScope, queues.size());
+        log.info("Declared {} server-named queues bound to {}", queues.size(), config.exchange);
+
+        return queues;
+    }
+
+    private void releaseServerNamedQueues() {
+        if (serverNamedQueues != null) {
+            FanOutTracker.subscribersRemoved(serverNamedScope, serverNamedQueues.size());
+            serverNamedQueues = null;
+        }
+    }
+
+    /**
+     * Subscribe to all fan-in queues, spread round-robin over the fan-in channels. The first
+     * channel is the one of the sampler, the others are opened on the same connection and get
+     * the same settings. Every delivery goes to the shared hand-off buffer, tagged with its
+     * queue and channel.
+     *
+     * @return the consumer tag of the first subscription
+     */
+    private String subscribeFanIn(ConsumerConfig config, List<String> queues) throws IOException {
+        closeFanInChannels();
+
+        int channelCount = Math.min(config.fanInChannels, queues.size());
+        List<Channel> channels = new ArrayList<>(channelCount);
+        channels.add(channel);
+
+        for (int idx = 1; idx < channelCount; idx++) {
+            Channel fanInChannel = getConnection().createChannel();
+            configureChannel(fanInChannel);
+            channels.add(fanInChannel);
+        }
+
+        fanInChannels = channels.subList(1, channels.size());
+
+        log.info("Starting fan-in consumers on {} queues over {} channels", queues.size(), channels.size());
+        String firstTag = null;
+
+        for (int idx = 0; idx < queues.size(); idx++) {
+            String queue = queues.get(idx);
+            Channel queueChannel = channels.get(idx % channels.size());
+
+            String tag = subscribe(queueChannel, queue, true, config);
+
+            if (firstTag == null) {
+                firstTag = tag;
+            }
+        }
+
+        return firstTag;
+    }
+
+    private void closeFanInChannels() {
+        List<Channel> channels = fanInChannels;
+        fanInChannels = null;
+
+        if (channels == null) {
+            return;
+        }
+
+        for (Channel fanInChannel : channels) {
+            try {
+                if (fanInChannel.isOpen()) {
+                    fanInChannel.close();
+                }
+            } catch (IOException | TimeoutException | ShutdownSignalException e) {
+                log.debug("Failed to close fan-in channel {}", fanInChannel.getChannelNumber(), e);
+            }
+        }
+    }
+
+    /**
+     * Reject the delivery without requeueing it, so it is dead-lettered if the queue has a
+     * dead-letter exchange. The reject time is kept for a dead-letter consumer of this JVM.
+     */
+    private void reject(Delivery delivery) throws IOException {
+        Map<String, Object> headers = delivery.getProperties().getHeaders();
+        Object sequence = headers != null ? headers.get(FanOutTracker.SEQUENCE_HEADER) : null;
+
+        if (sequence != null) {
+            DeadLetterStats.rejected(sequence.toString(), System.currentTimeMillis());
+        }
+
+        ackChannel(delivery).basicReject(delivery.getEnvelope().getDeliveryTag(), false);
+    }
+
+    private Channel ackChannel(Delivery delivery) {
+        return delivery instanceof QueuedDelivery ? ((QueuedDelivery) delivery).getChannel() : channel;
+    }
+
+    /**
+     * Count the delivery for the sample and for the whole thread.
+     */
+    private void count(QueuedDelivery delivery, Map<String, Integer> sampleCounts) {
+        if (fanInCounts == null) {
+            fanInCounts = new HashMap<>();
+        }
+
+        fanInCounts.computeIfAbsent(delivery.getQueue(), queue -> new long[1])[0]++;
+        sampleCounts.merge(delivery.getQueue(), 1, Integer::sum);
+    }
+
+    /**
+     * @return one line per queue read in this sample: messages in the sample and in the thread so far
+     */
+    private String formatCounts(Map<String, Integer> sampleCounts) {
+        StringBuilder sb = new StringBuilder();
+
+        for (Map.Entry<String, Integer> entry : sampleCounts.entrySet()) {
+            sb.append(entry.getKey())
+                .append(": ")
+                .append(entry.getValue())
+                .append(" (total ")
+                .append(fanInCounts.get(entry.getKey())[0])
+                .append(")\n");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Estimate how many messages the delivery is behind the end of the stream. The stream size
+     * comes from a passive declare, refreshed at most once a second, and offsets are assumed to
+     * start at zero, i.e. the stream has not been truncated by retention yet. With a shared
+     * dispatcher only the thread which opened it has a channel to read the size with, and
+     * no size is read while the channel is being recovered.
+     *
+     * @return the offset lag, {@code -1} if unknown
+     */
+    private long offsetLag(Delivery delivery, ConsumerConfig config) throws IOException {
+        long offset = streamOffset(delivery);
+
+        if (offset < 0 || channel == null || !channel.isOpen()) {
+            return -1;
+        }
+
+        long now = System.nanoTime();
+
+        if (streamTail < 0 || now - streamTailRead > STREAM_TAIL_REFRESH_NANOS) {
+            streamTail = channel.queueDeclarePassive(config.queue).getMessageCount() - 1L;
+            streamTailRead = now;
+        }
+
+        // the tail may be stale, offsets past it are not behind
+        return Math.max(0, streamTail - offset);
+    }
+
+    private static long streamOffset(Delivery delivery) {
+        Map<String, Object> headers = delivery.getProperties().getHeaders();
+        Object offset = headers != null ? headers.get(STREAM_OFFSET_ARGUMENT) : null;
+
+        return offset instanceof Number ? ((Number) offset).longValue() : -1;
+    }
+
+    /**
+     * Parse the stream offset to start consuming from: {@code first}, {@code last}, {@code next},
+     * an absolute offset, an ISO-8601 timestamp or an interval such as {@code 10m}.
+     *
+     * @return the {@code x-stream-offset} argument, {@code null} for the broker default
+     */
+    static Object parseStreamOffset(String offset) {
+        if (StringUtils.isBlank(offset)) {
+            return null;
+        }
+
+        String value = offset.trim();
+
+        if (StringUtils.isNumeric(value)) {
+            return Long.parseLong(value);
+        }
+
+        if (STREAM_OFFSET_INTERVAL.matcher(value).matches()) {
+            return value;
+        }
+
+        try {
+            return Date.from(Instant.parse(value));
+        } catch (DateTimeParseException e) {
+            // first, last, next
+            return value;
+        }
+    }
+
+    private void populateResponse(SampleResult result, Delivery retained, ConsumerConfig config) {
+        if (!config.readResponse) {
+            result.setResponseData("Read response failed", StandardCharsets.UTF_8.name());
+        } else {
+            // the body is handed over as is, without decoding or copying it
+            result.setResponseData(retained != null ? retainedBody(retained, config) : NO_RESPONSE);
+            result.setDataEncoding(StandardCharsets.UTF_8.name());
+        }
+
+        result.setDataType(SampleResult.TEXT);
+    }
+
+    private static byte[] retainedBody(Delivery delivery, ConsumerConfig config) {
+        byte[] body = delivery.getBody();
+
+        if (RETAIN_TRUNCATED.equals(config.responseRetention) && body.length > config.responseMaxBytes) {
+            return Arrays.copyOf(body, config.responseMaxBytes);
+        }
+
+        return body;
+    }
+
     /**
      * Option if the sampler should read the response.
      *
@@ -298,7 +1120,8 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 
     @Override
     public boolean interrupt() {
-        testEnded();
+        interruptWindow();
+        // shared dispatchers stay open for the other threads until the end of the test
         return true;
     }
 
@@ -307,12 +1130,14 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
      */
     @Override
     public void testEnded() {
-        // Do nothing
+        SharedDispatcher.closeAll();
+        FanOutTracker.report();
+        ClockSync.stop();
     }
 
     @Override
     public void testEnded(String arg0) {
-        // Do nothing
+        testEnded();
     }
 
     @Override
@@ -327,6 +1152,13 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 
     @Override
     public void cleanup() {
+        if (getConsumerConfig().shared) {
+            // the connection of a shared dispatcher is closed at the end of the test
+            return;
+        }
+
+        releaseServerNamedQueues();
+
         try {
             if (consumerTag != null) {
                 channel.basicCancel(consumerTag);
@@ -335,6 +1167,16 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
             log.error("Couldn't safely cancel the sample {}", consumerTag, e);
         }
 
+        consumerTag = null;
+        stopHandOffs();
+
+        BlockingQueue<Delivery> buffer = response;
+
+        if (buffer != null) {
+            // unacknowledged deliveries are redelivered once the connection is closed
+            buffer.clear();
+        }
+
         super.cleanup();
     }
 
@@ -348,46 +1190,127 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         log.debug("{} {} {} {}", tn, tl, s, th);
     }
 
+    /**
+     * Buffered deliveries cannot be acknowledged on the recovered channel, the broker redelivers them.
+     */
     @Override
-    protected boolean initChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException, TimeoutException {
-        boolean ret = super.initChannel();
-        channel.basicQos(getPrefetchCountAsInt());
+    protected int getInFlightCount() {
+        BlockingQueue<Delivery> buffer = response;
+
+        return manualAck && buffer != null ? buffer.size() : 0;
+    }
+
+    @Override
+    protected void connectionRecovered(boolean topologyRecovered) {
+        if (!topologyRecovered) {
+            // the client did not restore the consumer, subscribe again on the next sample
+            consumerTag = null;
+        }
+    }
+
+    @Override
+    protected void configureChannel(Channel channel) throws IOException {
+        ConsumerConfig config = getConsumerConfig();
+
+        if (config.adaptivePrefetch && adaptivePrefetch == null) {
+            adaptivePrefetch = new AdaptivePrefetch(getName(), config.prefetchCount, config.maxPrefetch);
+        } else if (getAdaptivePrefetch() && config.autoAck) {
+            log.warn("{}: adaptive prefetch needs manual acknowledgements, the prefetch count is ignored with auto ACK",
+                    getName());
+        }
 
-        if (getUseTx()) {
+        channel.basicQos(adaptivePrefetch != null ? adaptivePrefetch.current() : config.prefetchCount);
+
+        if (config.useTx) {
             channel.txSelect();
         }
+    }
+
+    @Override
+    protected ConsumerConfig compileConfig() {
+        return new ConsumerConfig(this);
+    }
 
-        return ret;
+    private ConsumerConfig getConsumerConfig() {
+        return (ConsumerConfig) getConfig();
     }
 
-    private String formatHeaders(Delivery delivery) {
+    /**
+     * Verify the digest header against the body bytes, without decoding the body.
+     *
+     * @return {@code null} if the checksum matches, the failure reason otherwise
+     */
+    private String verifyChecksum(Delivery delivery) {
         Map<String, Object> headers = delivery.getProperties().getHeaders();
+
+        if (headers == null || !headers.containsKey(PayloadChecksum.VALUE_HEADER)) {
+            return "missing " + PayloadChecksum.VALUE_HEADER + " header";
+        }
+
+        PayloadChecksum type = PayloadChecksum.forAlgorithm(headers.get(PayloadChecksum.ALGORITHM_HEADER));
+        Object expected = headers.get(PayloadChecksum.VALUE_HEADER);
+
+        if (type == null) {
+            return "unknown checksum algorithm " + headers.get(PayloadChecksum.ALGORITHM_HEADER);
+        }
+
+        if (!(expected instanceof Number)) {
+            return "invalid " + PayloadChecksum.VALUE_HEADER + " header " + expected;
+        }
+
+        if (checksums == null) {
+            checksums = new EnumMap<>(PayloadChecksum.class);
+        }
+
+        Checksum checksum = checksums.computeIfAbsent(type, PayloadChecksum::newChecksum);
+        long actual = PayloadChecksum.compute(checksum, delivery.getBody());
+
+        if (actual != ((Number) expected).longValue()) {
+            return type.getAlgorithm() + " mismatch on delivery " + delivery.getEnvelope().getDeliveryTag()
+                    + ": expected " + expected + ", actual " + actual;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param queue the queue of a fan-in delivery, {@code null} otherwise
+     */
+    static String formatHeaders(Envelope envelope, AMQP.BasicProperties properties, String queue) {
+        Map<String, Object> headers = properties.getHeaders();
         StringBuilder sb = new StringBuilder();
 
-        if (delivery.getProperties().getTimestamp() != null) {
+        if (properties.getTimestamp() != null) {
             sb.append(TIMESTAMP_PARAMETER)
                 .append(": ")
-                .append((delivery.getProperties().getTimestamp().getTime())/1000)
+                .append((properties.getTimestamp().getTime())/1000)
                 .append("\n");
         }
 
         sb.append(EXCHANGE_PARAMETER)
             .append(": ")
-            .append(delivery.getEnvelope().getExchange())
+            .append(envelope.getExchange())
             .append("\n");
         sb.append(ROUTING_KEY_PARAMETER)
             .append(": ")
-            .append(delivery.getEnvelope().getRoutingKey())
+            .append(envelope.getRoutingKey())
             .append("\n");
         sb.append(DELIVERY_TAG_PARAMETER)
             .append(": ")
-            .append(delivery.getEnvelope().getDeliveryTag())
+            .append(envelope.getDeliveryTag())
             .append("\n");
 
-        if (delivery.getProperties().getAppId() != null) {
+        if (queue != null) {
+            sb.append(QUEUE_PARAMETER)
+                .append(": ")
+                .append(queue)
+                .append("\n");
+        }
+
+        if (properties.getAppId() != null) {
             sb.append(APP_ID_PARAMETER)
                 .append(": ")
-                .append(delivery.getProperties().getAppId())
+                .append(properties.getAppId())
                 .append("\n");
         }
 
@@ -402,4 +1325,247 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 
         return sb.toString();
     }
+
+    /**
+     * Delivery latency from the send time stamped by the publisher, and fan-out skew of the
+     * messages completed by this sample, for the response message. Optionally broken down by
+     * message priority, into one sub-result per priority.
+     */
+    private static final class DeliveryTiming {
+        // AMQP 0-9-1 priorities are an octet
+        private static final int PRIORITIES = 256;
+
+        private long count;
+        private long sum;
+        private long max;
+        private long skewCount;
+        private long skewMax;
+
+        // clock offsets of the publishing hosts, null without clock sync
+        private final Function<String, ClockSync.Estimate> clock;
+        // interval log of the latencies, null without one
+        private final Recorder latencyLog;
+        private long uncorrected;
+        private long errorBound = -1;
+
+        // per priority: messages, messages with a send time, latency sum and max
+        private final long[][] byPriority;
+
+        DeliveryTiming(boolean priorityBreakdown, Function<String, ClockSync.Estimate> clock, Recorder latencyLog) {
+            this.byPriority = priorityBreakdown ? new long[PRIORITIES][] : null;
+            this.clock = clock;
+            this.latencyLog = latencyLog;
+        }
+
+        /**
+         * @param skewScope fan-out scope of the queues the delivery came from, {@code null} to
+         *     leave it out of the skew
+         */
+        void record(Delivery delivery, String skewScope) {
+            Map<String, Object> headers = delivery.getProperties().getHeaders();
+            Object sent = headers != null ? headers.get(FanOutTracker.SEND_TIME_HEADER) : null;
+            long[] level = byPriority != null ? priorityLevel(delivery) : null;
+
+            if (level != null) {
+                level[0]++;
+            }
+
+            if (!(sent instanceof Number)) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            long latency = now - ((Number) sent).longValue();
+
+            if (clock != null) {
+                Object peer = headers.get(ClockSync.CLOCK_ID_HEADER);
+                ClockSync.Estimate estimate = peer != null ? clock.apply(peer.toString()) : null;
+
+                if (estimate != null) {
+                    latency += estimate.getOffset();
+                    errorBound = Math.max(errorBound, estimate.getErrorBound());
+                } else {
+                    uncorrected++;
+                }
+            }
+
+            count++;
+            sum += latency;
+            max = Math.max(max, latency);
+
+            if (latencyLog != null) {
+                // clock errors can make latencies negative
+                latencyLog.recordValue(TimeUnit.MILLISECONDS.toMicros(Math.max(0, latency)));
+            }
+
+            if (level != null) {
+                level[1]++;
+                level[2] += latency;
+                level[3] = Math.max(level[3], latency);
+            }
+
+            Object sequence = skewScope != null ? headers.get(FanOutTracker.SEQUENCE_HEADER) : null;
+
+            if (sequence != null) {
+                long skew = FanOutTracker.delivered(skewScope, sequence.toString(), now);
+
+                if (skew >= 0) {
+                    skewCount++;
+                    skewMax = Math.max(skewMax, skew);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0) {
+                return "";
+            }
+
+            String timing = ", latency avg " + sum / count + " ms, max " + max + " ms";
+
+            if (errorBound >= 0) {
+                timing += " ± " + errorBound + " ms clock error";
+            }
+
+            if (uncorrected > 0) {
+                timing += ", " + uncorrected + " without clock offset";
+            }
+
+            return skewCount > 0 ? timing + ", fan-out skew max " + skewMax + " ms over " + skewCount + " messages" : timing;
+        }
+
+        private long[] priorityLevel(Delivery delivery) {
+            Integer priority = delivery.getProperties().getPriority();
+            int idx = priority != null ? Math.max(0, Math.min(PRIORITIES - 1, priority)) : 0;
+
+            if (byPriority[idx] == null) {
+                byPriority[idx] = new long[4];
+            }
+
+            return byPriority[idx];
+        }
+
+        /**
+         * Add one sub-result per priority with the latency of its messages with a send time.
+         *
+         * @see SubResults#addAggregate
+         */
+        void addPriorityResults(SampleResult result) {
+            if (byPriority == null) {
+                return;
+            }
+
+            for (int priority = PRIORITIES - 1; priority >= 0; priority--) {
+                long[] level = byPriority[priority];
+
+                if (level == null || level[1] == 0) {
+                    continue;
+                }
+
+                String untimed = level[0] > level[1] ? ", " + (level[0] - level[1]) + " without send time" : "";
+
+                // clock errors can make the total negative
+                SubResults.addAggregate(result, "priority " + priority, level[1], Math.max(0, level[2]),
+                        level[1] + " messages, latency avg " + level[2] / level[1] + " ms, max " + level[3] + " ms"
+                                + untimed);
+            }
+        }
+    }
+
+    /**
+     * Consumer settings compiled once per thread.
+     */
+    protected static class ConsumerConfig extends SamplerConfig {
+
+        private final boolean dynamic;
+
+        protected final int receiveTimeout;
+        protected final boolean autoAck;
+        protected final boolean purgeQueue;
+        protected final boolean useTx;
+        protected final int txBatchSize;
+        protected final long txBatchTime;
+        protected final boolean readResponse;
+        protected final String responseRetention;
+        protected final int responseMaxBytes;
+        protected final boolean verifyChecksum;
+        protected final boolean priorityBreakdown;
+        protected final boolean reject;
+        protected final boolean deadLetterStats;
+        protected final long deadLetterTtl;
+        protected final boolean clockSync;
+        protected final String controlQueue;
+        protected final int prefetchCount;
+        protected final boolean adaptivePrefetch;
+        protected final int maxPrefetch;
+        protected final boolean stream;
+        protected final Map<String, Object> consumeArguments;
+        protected final List<String> fanInQueues;
+        protected final boolean fanIn;
+        protected final int fanInChannels;
+        protected final boolean shared;
+        protected final int brokerConsumers;
+        protected final int serverNamedQueues;
+        protected final boolean serverNamed;
+        protected final String fanOutScope;
+
+        protected ConsumerConfig(AMQPConsumer sampler) {
+            super(sampler);
+            this.dynamic = sampler.hasVariables(RECEIVE_TIMEOUT, AUTO_ACK, PURGE_QUEUE, USE_TX, READ_RESPONSE,
+                    RESPONSE_RETENTION, RESPONSE_MAX_BYTES, VERIFY_CHECKSUM, PREFETCH_COUNT, ADAPTIVE_PREFETCH,
+                    MAX_PREFETCH, STREAM_OFFSET, FAN_IN_QUEUES, FAN_IN_CHANNELS, SHARED_DISPATCHER, BROKER_CONSUMERS,
+                    SERVER_NAMED_QUEUES, PRIORITY_BREAKDOWN, REJECT, DEAD_LETTER_STATS, DEAD_LETTER_TTL,
+                    TX_BATCH_SIZE, TX_BATCH_TIME, CLOCK_SYNC, CONTROL_QUEUE);
+
+            // stream consumers must acknowledge and set a prefetch count
+            this.stream = sampler.isStreamQueue();
+            this.receiveTimeout = sampler.getReceiveTimeoutAsInt();
+            // rejecting needs manual acknowledgements
+            this.reject = sampler.getReject() && !stream;
+            this.autoAck = sampler.autoAck() && !stream && !reject;
+            this.purgeQueue = sampler.purgeQueue();
+            this.shared = sampler.getSharedDispatcher();
+            this.brokerConsumers = sampler.getBrokerConsumersAsInt();
+            this.useTx = sampler.getUseTx() && !shared;
+            this.txBatchSize = sampler.getTxBatchSizeAsInt();
+            this.txBatchTime = sampler.getTxBatchTimeAsLong();
+            this.readResponse = sampler.getReadResponseAsBoolean();
+            this.responseRetention = readResponse ? sampler.getResponseRetention() : RETAIN_NONE;
+            this.responseMaxBytes = sampler.getResponseMaxBytesAsInt();
+            this.verifyChecksum = sampler.getVerifyChecksum();
+            this.priorityBreakdown = sampler.getPriorityBreakdown();
+            this.deadLetterStats = sampler.getDeadLetterStats();
+            this.deadLetterTtl = sampler.getDeadLetterTtlAsLong();
+            this.clockSync = sampler.getClockSync();
+            this.controlQueue = sampler.getControlQueue();
+            this.prefetchCount = stream && sampler.getPrefetchCountAsInt() < 1
+                    ? DEFAULT_STREAM_PREFETCH : sampler.getPrefetchCountAsInt();
+            this.maxPrefetch = sampler.getMaxPrefetchAsInt();
+
+            Object offset = stream ? parseStreamOffset(sampler.getStreamOffset()) : null;
+            this.consumeArguments = offset != null
+                    ? Collections.singletonMap(STREAM_OFFSET_ARGUMENT, offset) : Collections.emptyMap();
+
+            this.fanInQueues = AMQPQueueMonitor.expandQueues(sampler.getFanInQueues());
+            this.fanIn = !fanInQueues.isEmpty();
+            this.fanInChannels = sampler.getFanInChannelsAsInt();
+
+            // per-thread queues, not available with a shared dispatcher
+            this.serverNamedQueues = shared ? 0 : sampler.getServerNamedQueuesAsInt();
+            this.serverNamed = serverNamedQueues > 0;
+            this.fanOutScope = FanOutTracker.scope(exchange, routingKey);
+
+            // the prefetch count is tuned on a single channel only, by subscribing again, which
+            // would restart a stream consumer at its configured offset; the broker ignores it
+            // for consumers without acknowledgements
+            this.adaptivePrefetch = sampler.getAdaptivePrefetch() && !fanIn && !shared && !serverNamed && !stream
+                    && !autoAck;
+        }
+
+        @Override
+        public boolean isDynamic() {
+            return dynamic || super.isDynamic();
+        }
+    }
 }
@@ -2,23 +2,28 @@ package com.zeroclue.jmeter.protocol.amqp;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
 
+import org.HdrHistogram.Recorder;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.Interruptible;
 import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.TestStateListener;
 import org.apache.jmeter.testelement.property.TestElementProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,7 +38,7 @@ import org.slf4j.LoggerFactory;
  *
  * <p>However, access to class fields must be synchronized.
  */
-public class AMQPPublisher extends AMQPSampler implements Interruptible {
+public class AMQPPublisher extends AMQPSampler implements Interruptible, TestStateListener {
 
     private static final long serialVersionUID = -8420658040465788497L;
 
@@ -52,18 +57,77 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
     private static final String HEADERS             = "AMQPPublisher.Headers";
     private static final String PERSISTENT          = "AMQPPublisher.Persistent";
     private static final String USE_TX              = "AMQPPublisher.UseTx";
+    private static final String MANDATORY           = "AMQPPublisher.Mandatory";
     private static final String APP_ID              = "AMQPPublisher.AppId";
     private static final String TIMESTAMP           = "AMQPPublisher.Timestamp";
+    private static final String CHECKSUM            = "AMQPPublisher.Checksum";
+    private static final String SEARCH_MODE         = "AMQPPublisher.SearchMode";
+    private static final String SEARCH_START_RATE   = "AMQPPublisher.SearchStartRate";
+    private static final String SEARCH_RATE_STEP    = "AMQPPublisher.SearchRateStep";
+    private static final String SEARCH_MAX_RATE     = "AMQPPublisher.SearchMaxRate";
+    private static final String SEARCH_STEP_TIME    = "AMQPPublisher.SearchStepTime";
+    private static final String SEARCH_LATENCY_SLO  = "AMQPPublisher.SearchLatencySlo";
+    private static final String SEARCH_MAX_LAG      = "AMQPPublisher.SearchMaxLag";
+    private static final String STAMP_SEND_TIME     = "AMQPPublisher.StampSendTime";
+    private static final String CLOCK_SYNC          = "AMQPPublisher.ClockSync";
+    private static final String CONTROL_QUEUE       = "AMQPPublisher.ControlQueue";
+    private static final String TX_BATCH_SIZE       = "AMQPPublisher.TxBatchSize";
+    private static final String TX_BATCH_TIME       = "AMQPPublisher.TxBatchTime";
+    private static final String ROUTING_KEY_MODE    = "AMQPPublisher.RoutingKeyMode";
+    private static final String ROUTING_KEY_COUNT   = "AMQPPublisher.RoutingKeyCount";
+    private static final String ROUTING_KEY_EXPONENT = "AMQPPublisher.RoutingKeyExponent";
+    private static final String PRIORITY_DISTRIBUTION = "AMQPPublisher.PriorityDistribution";
+    private static final String MESSAGE_TEMPLATE    = "AMQPPublisher.MessageTemplate";
 
     public static final boolean DEFAULT_PERSISTENT   = false;
     public static final boolean DEFAULT_USE_TX       = false;
+    public static final boolean DEFAULT_MANDATORY    = false;
+    public static final String DEFAULT_TX_BATCH_SIZE = "0";
+    public static final String DEFAULT_TX_BATCH_TIME = "0";
     public static final boolean DEFAULT_TIMESTAMP    = true;
+    public static final boolean DEFAULT_STAMP_SEND_TIME = false;
+    public static final boolean DEFAULT_CLOCK_SYNC = false;
+    public static final String DEFAULT_CONTROL_QUEUE = ClockSync.DEFAULT_CONTROL_QUEUE;
     public static final int DEFAULT_MESSAGE_PRIORITY = 0;
     public static final String DEFAULT_RESPONSE_CODE = "500";
     public static final String DEFAULT_CONTENT_TYPE  = "text/plain";
     public static final String DEFAULT_ENCODING      = "utf-8";
+    public static final String DEFAULT_CHECKSUM      = PayloadChecksum.NONE;
+    public static final boolean DEFAULT_MESSAGE_TEMPLATE = false;
+
+    public static final String DEFAULT_SEARCH_MODE   = SaturationSearch.OFF;
+    public static final int DEFAULT_SEARCH_START_RATE = 100;
+    public static final String DEFAULT_SEARCH_START_RATE_STRING = Integer.toString(DEFAULT_SEARCH_START_RATE);
+    public static final int DEFAULT_SEARCH_RATE_STEP = 100;
+    public static final String DEFAULT_SEARCH_RATE_STEP_STRING = Integer.toString(DEFAULT_SEARCH_RATE_STEP);
+    public static final int DEFAULT_SEARCH_MAX_RATE = 100000;
+    public static final String DEFAULT_SEARCH_MAX_RATE_STRING = Integer.toString(DEFAULT_SEARCH_MAX_RATE);
+    public static final int DEFAULT_SEARCH_STEP_TIME = 10;
+    public static final String DEFAULT_SEARCH_STEP_TIME_STRING = Integer.toString(DEFAULT_SEARCH_STEP_TIME);
+    public static final int DEFAULT_SEARCH_LATENCY_SLO = 50;
+    public static final String DEFAULT_SEARCH_LATENCY_SLO_STRING = Integer.toString(DEFAULT_SEARCH_LATENCY_SLO);
+    public static final String DEFAULT_SEARCH_MAX_LAG = "0";
+
+    public static final String DEFAULT_PRIORITY_DISTRIBUTION = "";
+
+    public static final String DEFAULT_ROUTING_KEY_MODE = RoutingKeyGenerator.STATIC;
+    public static final int DEFAULT_ROUTING_KEY_COUNT = 100;
+    public static final String DEFAULT_ROUTING_KEY_COUNT_STRING = Integer.toString(DEFAULT_ROUTING_KEY_COUNT);
+    public static final double DEFAULT_ROUTING_KEY_EXPONENT = 1.0;
+    public static final String DEFAULT_ROUTING_KEY_EXPONENT_STRING = Double.toString(DEFAULT_ROUTING_KEY_EXPONENT);
 
     private transient Channel channel;
+    private transient PayloadChecksum checksumType;
+    private transient Checksum checksum;
+    private transient volatile int uncommitted;
+    private transient SaturationSearch search;
+    private transient Connection searchConnection;
+    private transient String publisherId;
+    private transient TxBatch txBatch;
+    private transient ReturnCounter returns;
+    private transient long sequence;
+    private transient MessageTemplate template;
+    private transient RoutingKeyGenerator routingKeys;
 
     public AMQPPublisher() {
         super();
@@ -73,57 +137,106 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
      * {@inheritDoc}
      */
     @Override
-    public SampleResult sample(Entry e) {
+    protected SampleResult doSample(Entry e) {
         SampleResult result = new SampleResult();
         result.setSampleLabel(getName());
         result.setSuccessful(false);
         result.setResponseCode(DEFAULT_RESPONSE_CODE);
+        PublisherConfig config = getPublisherConfig();
 
         try {
             initChannel();
+
+            if (config.clockSync) {
+                ClockSync.serve(getConnection(), config.controlQueue);
+            }
         } catch (Exception ex) {
             log.error("Failed to initialize channel : ", ex);
             result.setResponseMessage(ex.toString());
             return result;
         }
 
-        String data = getMessage();     // sampler data
+        if (config.search) {
+            return searchStep(result, config);
+        }
 
         /*
          * Perform the sampling
          */
 
         // aggregate samples
-        int loop = getIterationsAsInt();
+        int loop = config.iterations;
         result.sampleStart();   // start timing
 
+        TxBatch batch = config.useTx ? txBatch(config) : null;
+
         try {
-            AMQP.BasicProperties messageProperties = getProperties();
-            byte[] messageBytes = getMessageBytes();
+            byte[] messageBytes = config.messageBytes;
+            AMQP.BasicProperties messageProperties = getProperties(config, messageBytes);
+            AMQP.BasicProperties[] priorityProperties = config.priorities != null
+                    ? withPriorities(messageProperties, config.priorities) : null;
+            Recorder publishLog = intervalRecorder(IntervalLog.PUBLISH);
+            MessageTemplate bodies = config.messageTemplate ? messageTemplate(config) : null;
+            RoutingKeyGenerator keys = routingKeys(config);
 
             for (int idx = 0; idx < loop; idx++) {
+                long messageStart = messageStart();
+
                 // try to force jms semantics.
                 // but this does not work since RabbitMQ does not sync to disk if consumers are connected as
                 // seen by iostat -cd 1. TPS value remains at 0.
 
-                channel.basicPublish(getExchange(), getMessageRoutingKey(), messageProperties, messageBytes);
+                AMQP.BasicProperties properties = priorityProperties != null
+                        ? priorityProperties[config.priorities.nextIndex()] : messageProperties;
+                byte[] body = messageBytes;
+
+                if (bodies != null) {
+                    body = bodies.render();
+
+                    // the checksum covers the rendered body
+                    if (config.checksumType != null) {
+                        properties = properties.builder().headers(prepareHeaders(config, body)).build();
+                    }
+                }
+
+                String routingKey = keys != null ? keys.next() : config.messageRoutingKey;
+                long start = publishLog != null ? System.nanoTime() : 0;
+
+                channel.basicPublish(config.exchange, routingKey, config.mandatory,
+                        config.stampSendTime ? stampSendTime(properties, config.clockSync) : properties, body);
+
+                if (publishLog != null) {
+                    publishLog.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
+
+                if (batch != null) {
+                    if (batch.added()) {
+                        batch.commit(channel::txCommit);
+                    }
+
+                    uncommitted = batch.getPending();
+                }
+
+                recordMessage(messageStart);
             }
 
-            // commit the sample
-            if (getUseTx()) {
-                channel.txCommit();
+            // commit the sample, unless the batch spans samples
+            if (batch != null && batch.sampleEnded()) {
+                batch.commit(channel::txCommit);
+                uncommitted = 0;
             }
 
             /*
              * Set up the sample result details
              */
 
-            result.setSamplerData(data);
+            result.setSamplerData(config.message);
             result.setDataType(SampleResult.TEXT);
-            result.setRequestHeaders(formatHeaders());
+            result.setRequestHeaders(config.requestHeaders);
 
             result.setResponseCodeOK();
             result.setResponseMessage("OK");
+            result.setSampleCount(loop);
             result.setSuccessful(true);
         } catch (Exception ex) {
             log.warn(ex.getMessage(), ex);
@@ -133,13 +246,187 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
             result.sampleEnd();     // end timing
         }
 
+        if (batch != null) {
+            batch.addResult(result);
+        }
+
+        addReturns(result, config);
+
+        return result;
+    }
+
+    /**
+     * Count the mandatory messages returned since the previous sample and fail the sample, so
+     * unroutable messages do not pass for throughput.
+     */
+    private void addReturns(SampleResult result, PublisherConfig config) {
+        if (config.mandatory && returns != null) {
+            SampleResult unroutable = returns.addResult(result);
+
+            if (unroutable != null && result.isSuccessful()) {
+                // counted as one sample with one error, like any other failed sample
+                result.setSampleCount(1);
+                result.setResponseCode(unroutable.getResponseCode());
+                result.setResponseMessage(unroutable.getResponseMessage());
+                result.setSuccessful(false);
+            }
+        }
+    }
+
+    /**
+     * @return the template compiled from the message, kept across samples while the message is
+     *     unchanged; {@code null} if the message has no placeholders
+     */
+    private MessageTemplate messageTemplate(PublisherConfig config) {
+        if (template == null || !template.getSource().equals(config.message)) {
+            template = new MessageTemplate(config.message);
+        }
+
+        return template.isVarying() ? template : null;
+    }
+
+    /**
+     * @return the routing key generator, kept across samples while its settings are unchanged, so
+     *     a sequence goes on and the keys are built once; {@code null} for the static routing key
+     */
+    private RoutingKeyGenerator routingKeys(PublisherConfig config) {
+        if (!RoutingKeyGenerator.isGenerated(config.routingKeyMode)) {
+            return null;
+        }
+
+        if (routingKeys == null || !routingKeys.isFor(config.routingKeyMode, config.messageRoutingKey,
+                config.routingKeyCount, config.routingKeyExponent)) {
+            routingKeys = new RoutingKeyGenerator(config.routingKeyMode, config.messageRoutingKey,
+                    config.routingKeyCount, config.routingKeyExponent);
+        }
+
+        return routingKeys;
+    }
+
+    private TxBatch txBatch(PublisherConfig config) {
+        if (txBatch == null) {
+            txBatch = new TxBatch(config.txBatchSize, config.txBatchTime);
+        }
+
+        return txBatch;
+    }
+
+    /**
+     * Commit what is left of the batch, it would be rolled back when the channel closes.
+     */
+    @Override
+    public void threadFinished() {
+        Channel current = channel;
+
+        if (txBatch != null && txBatch.getPending() > 0 && current != null && current.isOpen()) {
+            try {
+                txBatch.commit(current::txCommit);
+                uncommitted = 0;
+            } catch (IOException | ShutdownSignalException e) {
+                log.warn("Failed to commit the last {} messages", uncommitted, e);
+            }
+        }
+
+        super.threadFinished();
+    }
+
+    /**
+     * Run one step of the saturation search, the message is published at the step rate for
+     * the step duration. The result of the last step carries the capacity and the whole curve,
+     * and stops the thread.
+     */
+    private SampleResult searchStep(SampleResult result, PublisherConfig config) {
+        SaturationSearch current = search;
+
+        if (current == null || current.isFinished()) {
+            result.setResponseMessage("Saturation search not initialized");
+            result.setStopThread(true);
+            return result;
+        }
+
+        result.setSamplerData(config.message);
+        result.setDataType(SampleResult.TEXT);
+        result.setRequestHeaders(config.requestHeaders);
+        result.sampleStart();
+
+        try {
+            byte[] messageBytes = config.messageBytes;
+            AMQP.BasicProperties messageProperties = getProperties(config, messageBytes);
+            MessageTemplate bodies = config.messageTemplate ? messageTemplate(config) : null;
+            RoutingKeyGenerator keys = routingKeys(config);
+
+            current.setConfirmLog(intervalRecorder(IntervalLog.CONFIRM));
+
+            SaturationSearch.Step step = current.runStep(
+                    () -> {
+                        byte[] body = bodies != null ? bodies.render() : messageBytes;
+                        AMQP.BasicProperties properties = bodies != null && config.checksumType != null
+                                ? messageProperties.builder().headers(prepareHeaders(config, body)).build()
+                                : messageProperties;
+
+                        channel.basicPublish(config.exchange, keys != null ? keys.next() : config.messageRoutingKey,
+                                config.mandatory, properties, body);
+                    },
+                    channel::getNextPublishSeqNo,
+                    () -> queueDepth(config));
+
+            result.sampleEnd();
+            result.setSampleLabel(getName() + " @ " + step.getRate() + " msg/s");
+            result.setResponseCodeOK();
+            result.setSuccessful(true);
+
+            if (current.isFinished()) {
+                result.setResponseMessage("Capacity " + current.getCapacity() + " msg/s");
+                result.setResponseData(current.formatCurve(), StandardCharsets.UTF_8.name());
+                result.setStopThread(true);
+            } else {
+                result.setResponseMessage(step.isPass() ? "SLO met" : "SLO missed");
+                result.setResponseData(SaturationSearch.CURVE_HEADER + "\n" + step, StandardCharsets.UTF_8.name());
+            }
+
+            addReturns(result, config);
+        } catch (Exception ex) {
+            if (result.getEndTime() == 0) {
+                result.sampleEnd();
+            }
+
+            log.warn(ex.getMessage(), ex);
+            result.setResponseCode("000");
+            result.setResponseMessage(ex.toString());
+        }
+
         return result;
     }
 
+    /**
+     * @return the backlog of the sampler queue, {@code -1} if there is none or it cannot be read
+     */
+    private long queueDepth(PublisherConfig config) {
+        if (StringUtils.isEmpty(config.queue)) {
+            return -1;
+        }
+
+        try {
+            return channel.messageCount(config.queue);
+        } catch (IOException ex) {
+            log.debug("Failed to read depth of queue {}", config.queue, ex);
+            return -1;
+        }
+    }
+
     private byte[] getMessageBytes() {
         return getMessage().getBytes(StandardCharsets.UTF_8);
     }
 
+    @Override
+    protected PublisherConfig compileConfig() {
+        return new PublisherConfig(this);
+    }
+
+    private PublisherConfig getPublisherConfig() {
+        return (PublisherConfig) getConfig();
+    }
+
     /**
      * @return the message routing key for the sample
      */
@@ -151,6 +438,62 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
         setProperty(MESSAGE_ROUTING_KEY, content);
     }
 
+    /**
+     * @return priority:weight pairs to draw the priority of each message from, empty for the fixed priority
+     */
+    public String getPriorityDistribution() {
+        return getPropertyAsString(PRIORITY_DISTRIBUTION, DEFAULT_PRIORITY_DISTRIBUTION);
+    }
+
+    public void setPriorityDistribution(String distribution) {
+        setProperty(PRIORITY_DISTRIBUTION, distribution);
+    }
+
+    /**
+     * @return how routing keys are generated from the routing key template, static to use it as is
+     */
+    public String getRoutingKeyMode() {
+        return getPropertyAsString(ROUTING_KEY_MODE, DEFAULT_ROUTING_KEY_MODE);
+    }
+
+    public void setRoutingKeyMode(String mode) {
+        setProperty(ROUTING_KEY_MODE, mode);
+    }
+
+    /**
+     * @return the number of generated keys, if the template has no placeholders
+     */
+    public String getRoutingKeyCount() {
+        return getPropertyAsString(ROUTING_KEY_COUNT, DEFAULT_ROUTING_KEY_COUNT_STRING);
+    }
+
+    public void setRoutingKeyCount(String count) {
+        setProperty(ROUTING_KEY_COUNT, count);
+    }
+
+    public int getRoutingKeyCountAsInt() {
+        int count = getPropertyAsInt(ROUTING_KEY_COUNT, DEFAULT_ROUTING_KEY_COUNT);
+
+        return count < 1 ? DEFAULT_ROUTING_KEY_COUNT : count;
+    }
+
+    /**
+     * @return the exponent of the Zipf distribution over the keys
+     */
+    public String getRoutingKeyExponent() {
+        return getPropertyAsString(ROUTING_KEY_EXPONENT, DEFAULT_ROUTING_KEY_EXPONENT_STRING);
+    }
+
+    public void setRoutingKeyExponent(String exponent) {
+        setProperty(ROUTING_KEY_EXPONENT, exponent);
+    }
+
+    public double getRoutingKeyExponentAsDouble() {
+        double exponent = NumberUtils.toDouble(getRoutingKeyExponent(), DEFAULT_ROUTING_KEY_EXPONENT);
+
+        return exponent > 0 ? exponent : DEFAULT_ROUTING_KEY_EXPONENT;
+    }
+
     /**
      * @return the message for the sample
      */
@@ -162,6 +505,18 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
         setProperty(MESSAGE, content);
     }
 
+    /**
+     * @return whether the message is a template whose {@code {{...}}} placeholders are rendered
+     *     for each message, see {@link MessageTemplate}
+     */
+    public boolean getMessageTemplate() {
+        return getPropertyAsBoolean(MESSAGE_TEMPLATE, DEFAULT_MESSAGE_TEMPLATE);
+    }
+
+    public void setMessageTemplate(Boolean messageTemplate) {
+        setProperty(MESSAGE_TEMPLATE, messageTemplate);
+    }
+
     /**
      * @return the message type for the sample
      */
@@ -234,11 +589,13 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
     }
 
     protected int getMessagePriorityAsInt() {
-        if (getPropertyAsInt(MESSAGE_PRIORITY) < 0) {
+        int priority = getPropertyAsInt(MESSAGE_PRIORITY);
+
+        if (priority < 0) {
             return 0;
         }
 
-        return getPropertyAsInt(MESSAGE_PRIORITY);
+        return priority;
     }
 
     public Arguments getHeaders() {
@@ -257,6 +614,17 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
         setProperty(PERSISTENT, persistent);
     }
 
+    /**
+     * @return whether messages are published as mandatory, so the broker returns the unroutable ones
+     */
+    public boolean getMandatory() {
+        return getPropertyAsBoolean(MANDATORY, DEFAULT_MANDATORY);
+    }
+
+    public void setMandatory(Boolean mandatory) {
+        setProperty(MANDATORY, mandatory);
+    }
+
     public boolean getUseTx() {
         return getPropertyAsBoolean(USE_TX, DEFAULT_USE_TX);
     }
@@ -265,6 +633,36 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
         setProperty(USE_TX, tx);
     }
 
+    /**
+     * @return messages per transaction, 0 to commit once per sample
+     */
+    public String getTxBatchSize() {
+        return getPropertyAsString(TX_BATCH_SIZE, DEFAULT_TX_BATCH_SIZE);
+    }
+
+    public void setTxBatchSize(String size) {
+        setProperty(TX_BATCH_SIZE, size);
+    }
+
+    public int getTxBatchSizeAsInt() {
+        return Math.max(0, getPropertyAsInt(TX_BATCH_SIZE, 0));
+    }
+
+    /**
+     * @return longest time in milliseconds a message waits for its commit, 0 for no limit
+     */
+    public String getTxBatchTime() {
+        return getPropertyAsString(TX_BATCH_TIME, DEFAULT_TX_BATCH_TIME);
+    }
+
+    public void setTxBatchTime(String time) {
+        setProperty(TX_BATCH_TIME, time);
+    }
+
+    public long getTxBatchTimeAsLong() {
+        return Math.max(0, getPropertyAsLong(TX_BATCH_TIME, 0));
+    }
+
     public String getAppId() {
         return getPropertyAsString(APP_ID);
     }
@@ -273,6 +671,40 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
         setProperty(APP_ID, appId);
     }
 
+    /**
+     * @return whether each message carries its send time and a sequence header
+     */
+    public boolean getStampSendTime() {
+        return getPropertyAsBoolean(STAMP_SEND_TIME, DEFAULT_STAMP_SEND_TIME);
+    }
+
+    public void setStampSendTime(Boolean stamp) {
+        setProperty(STAMP_SEND_TIME, stamp);
+    }
+
+    /**
+     * @return whether to answer clock pings of consumers on other hosts, and stamp the clock id
+     *     next to the send time
+     */
+    public boolean getClockSync() {
+        return getPropertyAsBoolean(CLOCK_SYNC, DEFAULT_CLOCK_SYNC);
+    }
+
+    public void setClockSync(Boolean sync) {
+        setProperty(CLOCK_SYNC, sync);
+    }
+
+    /**
+     * @return the prefix of the clock control queues
+     */
+    public String getControlQueue() {
+        return getPropertyAsString(CONTROL_QUEUE, DEFAULT_CONTROL_QUEUE);
+    }
+
+    public void setControlQueue(String queue) {
+        setProperty(CONTROL_QUEUE, queue);
+    }
+
     public boolean getTimestamp() {
         return getPropertyAsBoolean(TIMESTAMP, DEFAULT_TIMESTAMP);
     }
@@ -281,12 +713,151 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
         setProperty(TIMESTAMP, ts);
     }
 
+    /**
+     * @return the digest algorithm stamped on each message, or {@code none}
+     */
+    public String getChecksum() {
+        return getPropertyAsString(CHECKSUM, DEFAULT_CHECKSUM);
+    }
+
+    public void setChecksum(String algorithm) {
+        setProperty(CHECKSUM, algorithm);
+    }
+
+    /**
+     * @return the saturation search mode: off, step or binary
+     */
+    public String getSearchMode() {
+        return getPropertyAsString(SEARCH_MODE, DEFAULT_SEARCH_MODE);
+    }
+
+    public void setSearchMode(String mode) {
+        setProperty(SEARCH_MODE, mode);
+    }
+
+    /**
+     * @return the first publish rate of the search, in messages per second
+     */
+    public String getSearchStartRate() {
+        return getPropertyAsString(SEARCH_START_RATE, DEFAULT_SEARCH_START_RATE_STRING);
+    }
+
+    public void setSearchStartRate(String rate) {
+        setProperty(SEARCH_START_RATE, rate);
+    }
+
+    public int getSearchStartRateAsInt() {
+        int rate = getPropertyAsInt(SEARCH_START_RATE, DEFAULT_SEARCH_START_RATE);
+        return rate < 1 ? DEFAULT_SEARCH_START_RATE : rate;
+    }
+
+    /**
+     * @return the rate increment of a stepwise search, or the resolution of a binary search
+     */
+    public String getSearchRateStep() {
+        return getPropertyAsString(SEARCH_RATE_STEP, DEFAULT_SEARCH_RATE_STEP_STRING);
+    }
+
+    public void setSearchRateStep(String step) {
+        setProperty(SEARCH_RATE_STEP, step);
+    }
+
+    public int getSearchRateStepAsInt() {
+        int step = getPropertyAsInt(SEARCH_RATE_STEP, DEFAULT_SEARCH_RATE_STEP);
+        return step < 1 ? DEFAULT_SEARCH_RATE_STEP : step;
+    }
+
+    public String getSearchMaxRate() {
+        return getPropertyAsString(SEARCH_MAX_RATE, DEFAULT_SEARCH_MAX_RATE_STRING);
+    }
+
+    public void setSearchMaxRate(String rate) {
+        setProperty(SEARCH_MAX_RATE, rate);
+    }
+
+    public int getSearchMaxRateAsInt() {
+        int rate = getPropertyAsInt(SEARCH_MAX_RATE, DEFAULT_SEARCH_MAX_RATE);
+        return rate < 1 ? DEFAULT_SEARCH_MAX_RATE : rate;
+    }
+
+    /**
+     * @return the duration of each search step, in seconds
+     */
+    public String getSearchStepTime() {
+        return getPropertyAsString(SEARCH_STEP_TIME, DEFAULT_SEARCH_STEP_TIME_STRING);
+    }
+
+    public void setSearchStepTime(String seconds) {
+        setProperty(SEARCH_STEP_TIME, seconds);
+    }
+
+    public int getSearchStepTimeAsInt() {
+        int seconds = getPropertyAsInt(SEARCH_STEP_TIME, DEFAULT_SEARCH_STEP_TIME);
+        return seconds < 1 ? DEFAULT_SEARCH_STEP_TIME : seconds;
+    }
+
+    /**
+     * @return the highest acceptable 99th percentile confirm latency, in milliseconds
+     */
+    public String getSearchLatencySlo() {
+        return getPropertyAsString(SEARCH_LATENCY_SLO, DEFAULT_SEARCH_LATENCY_SLO_STRING);
+    }
+
+    public void setSearchLatencySlo(String millis) {
+        setProperty(SEARCH_LATENCY_SLO, millis);
+    }
+
+    public int getSearchLatencySloAsInt() {
+        int millis = getPropertyAsInt(SEARCH_LATENCY_SLO, DEFAULT_SEARCH_LATENCY_SLO);
+        return millis < 1 ? DEFAULT_SEARCH_LATENCY_SLO : millis;
+    }
+
+    /**
+     * @return the highest acceptable growth of the queue backlog per step, 0 to ignore consumer lag
+     */
+    public String getSearchMaxLag() {
+        return getPropertyAsString(SEARCH_MAX_LAG, DEFAULT_SEARCH_MAX_LAG);
+    }
+
+    public void setSearchMaxLag(String messages) {
+        setProperty(SEARCH_MAX_LAG, messages);
+    }
+
+    public long getSearchMaxLagAsLong() {
+        return Math.max(0, getPropertyAsLong(SEARCH_MAX_LAG, 0));
+    }
+
     @Override
     public boolean interrupt() {
+        interruptWindow();
         cleanup();
         return true;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded() {
+        ReturnCounter.report();
+        ClockSync.stop();
+    }
+
+    @Override
+    public void testEnded(String arg0) {
+        testEnded();
+    }
+
+    @Override
+    public void testStarted() {
+        // Do nothing
+    }
+
+    @Override
+    public void testStarted(String arg0) {
+        // Do nothing
+    }
+
     @Override
     protected Channel getChannel() {
         return channel;
@@ -298,62 +869,163 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
     }
 
     protected AMQP.BasicProperties getProperties() {
+        return getProperties(getPublisherConfig(), null);
+    }
+
+    /**
+     * @param config configuration snapshot to build the properties from
+     * @param body message body to stamp a checksum for, may be {@code null}
+     * @return the message properties for the sample
+     */
+    protected AMQP.BasicProperties getProperties(PublisherConfig config, byte[] body) {
         final AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder();
-        final int deliveryMode = getPersistent() ? 2 : 1;
-        final String contentType = StringUtils.defaultIfEmpty(getContentType(), DEFAULT_CONTENT_TYPE);
-
-        builder.contentType(contentType)
-            .contentEncoding(getContentEncoding())
-            .deliveryMode(deliveryMode)
-            .correlationId(getCorrelationId())
-            .replyTo(getReplyToQueue())
-            .type(getMessageType())
-            .headers(prepareHeaders());
-
-        if (getMessageId() != null && !getMessageId().isEmpty()) {
-            builder.messageId(getMessageId());
-        }
 
-        if (getMessagePriority() != null && !getMessagePriority().isEmpty()) {
-            builder.priority(getMessagePriorityAsInt());
-        } else {
-            builder.priority(DEFAULT_MESSAGE_PRIORITY);
+        builder.contentType(config.contentType)
+            .contentEncoding(config.contentEncoding)
+            .deliveryMode(config.deliveryMode)
+            .correlationId(config.correlationId)
+            .replyTo(config.replyToQueue)
+            .type(config.messageType)
+            .priority(config.messagePriority)
+            .headers(prepareHeaders(config, body));
+
+        if (config.messageId != null) {
+            builder.messageId(config.messageId);
         }
 
-        if (getAppId() != null && !getAppId().isEmpty()) {
-            builder.appId(getAppId());
+        if (config.appId != null) {
+            builder.appId(config.appId);
         }
 
-        if (getTimestamp()) {
+        if (config.timestamp) {
             builder.timestamp(Date.from(Instant.now()));
         }
 
         return builder.build();
     }
 
+    /**
+     * @return the properties once per priority of the distribution, in the same order
+     */
+    private static AMQP.BasicProperties[] withPriorities(AMQP.BasicProperties properties,
+            PriorityDistribution priorities) {
+        AMQP.BasicProperties[] prioritized = new AMQP.BasicProperties[priorities.size()];
+
+        for (int idx = 0; idx < prioritized.length; idx++) {
+            prioritized[idx] = properties.builder().priority(priorities.getPriority(idx)).build();
+        }
+
+        return prioritized;
+    }
+
+    /**
+     * Add the send time and a sequence unique to this thread, so consumers can measure the
+     * delivery latency of each message and the fan-out skew across subscriber queues.
+     */
+    private AMQP.BasicProperties stampSendTime(AMQP.BasicProperties properties, boolean clockSync) {
+        if (publisherId == null) {
+            publisherId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        }
+
+        Map<String, Object> headers = properties.getHeaders() != null
+                ? new HashMap<>(properties.getHeaders()) : new HashMap<>();
+
+        headers.put(FanOutTracker.SEND_TIME_HEADER, System.currentTimeMillis());
+        headers.put(FanOutTracker.SEQUENCE_HEADER, publisherId + ":" + ++sequence);
+
+        if (clockSync) {
+            headers.put(ClockSync.CLOCK_ID_HEADER, ClockSync.id());
+        }
+
+        return properties.builder().headers(headers).build();
+    }
+
+    /**
+     * Messages published in the current transaction are lost if the connection drops before the commit.
+     */
     @Override
-    protected boolean initChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException, TimeoutException {
-        boolean ret = super.initChannel();
+    protected int getInFlightCount() {
+        return uncommitted;
+    }
 
-        if (getUseTx()) {
-            channel.txSelect();
+    /**
+     * The saturation search needs publisher confirms, which cannot be combined with
+     * transactions, so the search takes precedence over the transaction setting.
+     */
+    @Override
+    protected void configureChannel(Channel channel) throws IOException {
+        PublisherConfig config = getPublisherConfig();
+
+        if (config.mandatory) {
+            if (returns == null) {
+                returns = new ReturnCounter();
+            }
+
+            channel.addReturnListener(returns);
         }
 
-        return ret;
+        if (config.search) {
+            if (search == null) {
+                search = new SaturationSearch(getName(), config.searchMode, config.searchStartRate,
+                        config.searchRateStep, config.searchMaxRate, config.searchStepTime,
+                        config.searchLatencySlo, config.searchMaxLag);
+            }
+
+            if (config.useTx) {
+                log.warn("{}: transactions are disabled during the saturation search", getName());
+            }
+
+            channel.confirmSelect();
+            channel.addConfirmListener(search);
+
+            Connection conn = getConnection();
+
+            if (conn != searchConnection) {
+                conn.addBlockedListener(search);
+                searchConnection = conn;
+            }
+        } else if (config.useTx) {
+            channel.txSelect();
+        }
     }
 
     private Map<String, Object> prepareHeaders() {
         Arguments headers = getHeaders();
 
         if (headers != null) {
-            return new HashMap<>(headers.getArgumentsAsMap());
+            return Collections.unmodifiableMap(new HashMap<>(headers.getArgumentsAsMap()));
         }
 
         return Collections.emptyMap();
     }
 
+    private Map<String, Object> prepareHeaders(PublisherConfig config, byte[] body) {
+        PayloadChecksum type = body != null ? config.checksumType : null;
+
+        if (type == null) {
+            return config.headers;
+        }
+
+        if (checksumType != type) {
+            checksumType = type;
+            checksum = type.newChecksum();
+        }
+
+        Map<String, Object> prepared = new HashMap<>(config.headers);
+        prepared.put(PayloadChecksum.ALGORITHM_HEADER, type.getAlgorithm());
+        prepared.put(PayloadChecksum.VALUE_HEADER, PayloadChecksum.compute(checksum, body));
+
+        return prepared;
+    }
+
     private String formatHeaders() {
-        Map<String, String> headers = getHeaders().getArgumentsAsMap();
+        Arguments arguments = getHeaders();
+
+        if (arguments == null) {
+            return "";
+        }
+
+        Map<String, String> headers = arguments.getArgumentsAsMap();
         StringBuilder sb = new StringBuilder();
 
         for (Map.Entry<String,String> entry : headers.entrySet()) {
@@ -365,4 +1037,107 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 
         return sb.toString();
     }
+
+    /**
+     * Publisher settings compiled once per thread, including the encoded message body
+     * and the static part of the message properties.
+     */
+    protected static class PublisherConfig extends SamplerConfig {
+
+        private final boolean dynamic;
+
+        protected final String messageRoutingKey;
+        protected final String routingKeyMode;
+        protected final int routingKeyCount;
+        protected final double routingKeyExponent;
+        protected final String message;
+        protected final byte[] messageBytes;
+        protected final boolean messageTemplate;
+        protected final boolean useTx;
+        protected final boolean mandatory;
+        protected final int txBatchSize;
+        protected final long txBatchTime;
+        protected final String requestHeaders;
+
+        protected final String contentType;
+        protected final String contentEncoding;
+        protected final int deliveryMode;
+        protected final String correlationId;
+        protected final String replyToQueue;
+        protected final String messageType;
+        protected final String messageId;
+        protected final int messagePriority;
+        protected final PriorityDistribution priorities;
+        protected final String appId;
+        protected final boolean timestamp;
+        protected final boolean stampSendTime;
+        protected final boolean clockSync;
+        protected final String controlQueue;
+        protected final Map<String, Object> headers;
+        protected final PayloadChecksum checksumType;
+
+        protected final String searchMode;
+        protected final boolean search;
+        protected final int searchStartRate;
+        protected final int searchRateStep;
+        protected final int searchMaxRate;
+        protected final int searchStepTime;
+        protected final int searchLatencySlo;
+        protected final long searchMaxLag;
+
+        protected PublisherConfig(AMQPPublisher sampler) {
+            super(sampler);
+            this.dynamic = sampler.hasVariables(MESSAGE, MESSAGE_ROUTING_KEY, MESSAGE_TYPE, REPLY_TO_QUEUE,
+                    CONTENT_TYPE, CORRELATION_ID, CONTENT_ENCODING, MESSAGE_ID, MESSAGE_PRIORITY, HEADERS,
+                    PERSISTENT, USE_TX, APP_ID, TIMESTAMP, CHECKSUM, STAMP_SEND_TIME, ROUTING_KEY_MODE,
+                    ROUTING_KEY_COUNT, ROUTING_KEY_EXPONENT, PRIORITY_DISTRIBUTION, TX_BATCH_SIZE, TX_BATCH_TIME,
+                    MANDATORY, CLOCK_SYNC, CONTROL_QUEUE, MESSAGE_TEMPLATE);
+
+            this.messageRoutingKey = sampler.getMessageRoutingKey();
+            this.routingKeyMode = sampler.getRoutingKeyMode();
+            this.routingKeyCount = sampler.getRoutingKeyCountAsInt();
+            this.routingKeyExponent = sampler.getRoutingKeyExponentAsDouble();
+            this.message = sampler.getMessage();
+            this.messageBytes = sampler.getMessageBytes();
+            this.messageTemplate = sampler.getMessageTemplate();
+            this.requestHeaders = sampler.formatHeaders();
+
+            this.contentType = StringUtils.defaultIfEmpty(sampler.getContentType(), DEFAULT_CONTENT_TYPE);
+            this.contentEncoding = sampler.getContentEncoding();
+            this.deliveryMode = sampler.getPersistent() ? 2 : 1;
+            this.correlationId = sampler.getCorrelationId();
+            this.replyToQueue = sampler.getReplyToQueue();
+            this.messageType = sampler.getMessageType();
+            this.messageId = StringUtils.defaultIfEmpty(sampler.getMessageId(), null);
+            this.messagePriority = StringUtils.isEmpty(sampler.getMessagePriority())
+                    ? DEFAULT_MESSAGE_PRIORITY : sampler.getMessagePriorityAsInt();
+            this.priorities = PriorityDistribution.parse(sampler.getPriorityDistribution());
+            this.appId = StringUtils.defaultIfEmpty(sampler.getAppId(), null);
+            this.timestamp = sampler.getTimestamp();
+            this.stampSendTime = sampler.getStampSendTime();
+            // consumers find the clock by the id stamped next to the send time
+            this.clockSync = sampler.getClockSync() && stampSendTime;
+            this.controlQueue = sampler.getControlQueue();
+            this.headers = sampler.prepareHeaders();
+            this.checksumType = PayloadChecksum.forAlgorithm(sampler.getChecksum());
+
+            this.searchMode = sampler.getSearchMode();
+            this.search = SaturationSearch.STEP.equals(searchMode) || SaturationSearch.BINARY.equals(searchMode);
+            this.useTx = sampler.getUseTx() && !search;
+            this.mandatory = sampler.getMandatory();
+            this.txBatchSize = sampler.getTxBatchSizeAsInt();
+            this.txBatchTime = sampler.getTxBatchTimeAsLong();
+            this.searchStartRate = sampler.getSearchStartRateAsInt();
+            this.searchRateStep = sampler.getSearchRateStepAsInt();
+            this.searchMaxRate = sampler.getSearchMaxRateAsInt();
+            this.searchStepTime = sampler.getSearchStepTimeAsInt();
+            this.searchLatencySlo = sampler.getSearchLatencySloAsInt();
+            this.searchMaxLag = sampler.getSearchMaxLagAsLong();
+        }
+
+        @Override
+        public boolean isDynamic() {
+            return dynamic || super.isDynamic();
+        }
+    }
 }
@@ -0,0 +1,442 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.TestStateListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls the depth and consumer count of a set of queues with passive declares, so that
+ * backlog growth can be followed during a test.
+ *
+ * <p>All monitor threads on the same broker and virtual host share one connection and channel,
+ * opened by the first sample and closed at the end of the test, so adding the monitor does not
+ * add a connection per thread. Each sample
+ * carries one sub-result per queue, and optionally appends the readings to a CSV file.
+ */
+public class AMQPQueueMonitor extends AMQPSampler implements TestStateListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggerFactory.getLogger(AMQPQueueMonitor.class);
+
+    //++ These are JMX names, and must not be changed
+    private static final String QUEUES      = "AMQPQueueMonitor.Queues";
+    private static final String OUTPUT_FILE = "AMQPQueueMonitor.OutputFile";
+
+    public static final String DEFAULT_QUEUES = "";
+    public static final String DEFAULT_OUTPUT_FILE = "";
+    public static final String DEFAULT_RESPONSE_CODE = "500";
+    public static final String QUEUE_NOT_FOUND_RESPONSE_CODE = "404";
+
+    public static final String CSV_HEADER = "timestamp,queue,messages,consumers,net_rate";
+
+    // name-[1..100] or name-[001..100], zero padded to the width of the lower bound
+    private static final Pattern RANGE = Pattern.compile("\\[(\\d+)\\.\\.(\\d+)\\]");
+
+    private static final Object SHARED_LOCK = new Object();
+
+    // guarded by SHARED_LOCK, keyed by broker and virtual host
+    private static final Map<String, Channel> SHARED_CHANNELS = new HashMap<>();
+    private static PrintWriter output;
+    private static String outputPath;
+
+    // keyed by broker, virtual host and queue
+    private static final Map<String, Reading> LAST_READINGS = new ConcurrentHashMap<>();
+
+    public AMQPQueueMonitor() {
+        super();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected SampleResult doSample(Entry entry) {
+        MonitorConfig config = getMonitorConfig();
+
+        SampleResult result = new SampleResult();
+        result.setSampleLabel(getName());
+        result.setSuccessful(false);
+        result.setResponseCode(DEFAULT_RESPONSE_CODE);
+        result.setSamplerData(StringUtils.join(config.queues, '\n'));
+        result.setDataType(SampleResult.TEXT);
+
+        if (config.queues.isEmpty()) {
+            result.setResponseMessage("No queues to monitor");
+            return result;
+        }
+
+        StringBuilder data = new StringBuilder(CSV_HEADER).append('\n');
+        long totalMessages = 0;
+        int failed = 0;
+
+        result.sampleStart();
+
+        synchronized (SHARED_LOCK) {
+            String broker = brokerKey();
+
+            for (String queue : config.queues) {
+                String key = broker + "/" + queue;
+                SampleResult sub = poll(queue, key);
+                result.storeSubResult(sub, false);
+
+                if (sub.isSuccessful()) {
+                    Reading reading = LAST_READINGS.get(key);
+                    String line = reading.toCsv(queue);
+
+                    totalMessages += reading.messages;
+                    data.append(line).append('\n');
+                    write(config.outputFile, line);
+                } else {
+                    failed++;
+                }
+            }
+
+            flush();
+        }
+
+        result.sampleEnd();
+
+        result.setResponseData(data.toString(), StandardCharsets.UTF_8.name());
+        result.setResponseMessage(config.queues.size() + " queues, " + totalMessages + " messages, "
+                + failed + " failed");
+
+        if (failed == 0) {
+            result.setResponseCodeOK();
+            result.setSuccessful(true);
+        }
+
+        return result;
+    }
+
+    /**
+     * Read one queue and derive its net rate from the previous reading.
+     *
+     * @param key the queue with its broker and virtual host, for the previous reading
+     */
+    private SampleResult poll(String queue, String key) {
+        SampleResult sub = new SampleResult();
+        sub.setSampleLabel(getName() + " " + queue);
+        sub.setSuccessful(false);
+        sub.setResponseCode(DEFAULT_RESPONSE_CODE);
+        sub.sampleStart();
+
+        Channel channel = null;
+
+        try {
+            channel = sharedChannel();
+
+            AMQP.Queue.DeclareOk declareOk = channel.queueDeclarePassive(queue);
+            sub.sampleEnd();
+
+            Reading reading = new Reading(System.currentTimeMillis(), System.nanoTime(),
+                    declareOk.getMessageCount(), declareOk.getConsumerCount(), LAST_READINGS.get(key));
+            LAST_READINGS.put(key, reading);
+
+            sub.setResponseData(reading.toCsv(queue), StandardCharsets.UTF_8.name());
+            sub.setResponseMessage("messages: " + reading.messages + ", consumers: " + reading.consumers
+                    + ", net rate: " + String.format(Locale.ROOT, "%.1f", reading.netRate) + " msg/s");
+            sub.setResponseCodeOK();
+            sub.setSuccessful(true);
+        } catch (Exception ex) {
+            if (sub.getEndTime() == 0) {
+                sub.sampleEnd();
+            }
+
+            // a failed passive declare closes the channel, the next queue reopens it
+            if (channel != null && !channel.isOpen() && channel.getConnection().isOpen()) {
+                sub.setResponseCode(QUEUE_NOT_FOUND_RESPONSE_CODE);
+            }
+
+            log.debug("Failed to read queue {}", queue, ex);
+            sub.setResponseMessage(ex.toString());
+        }
+
+        return sub;
+    }
+
+    /**
+     * @return the channel shared by the monitors of this broker and virtual host; a closed channel
+     *     is reopened on the shared connection, which is only replaced once it is closed itself
+     */
+    private Channel sharedChannel() throws Exception {
+        synchronized (SHARED_LOCK) {
+            String broker = brokerKey();
+            Channel channel = SHARED_CHANNELS.get(broker);
+
+            if (channel != null && channel.isOpen()) {
+                return channel;
+            }
+
+            Connection connection = channel != null ? channel.getConnection() : null;
+
+            if (connection != null && connection.isOpen()) {
+                channel = connection.createChannel();
+            } else {
+                if (connection != null) {
+                    // also ends a recovery in progress, the replacement takes over
+                    connection.abort();
+                }
+
+                channel = createChannel();
+            }
+
+            SHARED_CHANNELS.put(broker, channel);
+
+            return channel;
+        }
+    }
+
+    private String brokerKey() {
+        return getHost() + "/" + getVirtualHost();
+    }
+
+    private static void write(String path, String line) {
+        if (StringUtils.isEmpty(path)) {
+            return;
+        }
+
+        try {
+            if (output == null || !path.equals(outputPath)) {
+                closeOutput();
+
+                boolean exists = new File(path).length() > 0;
+                output = new PrintWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8));
+                outputPath = path;
+
+                if (!exists) {
+                    output.println(CSV_HEADER);
+                }
+            }
+
+            output.println(line);
+        } catch (IOException ex) {
+            log.warn("Failed to write queue monitor output to {}: {}", path, ex.toString());
+        }
+    }
+
+    private static void flush() {
+        if (output != null) {
+            output.flush();
+        }
+    }
+
+    private static void closeOutput() {
+        if (output != null) {
+            output.close();
+            output = null;
+            outputPath = null;
+        }
+    }
+
+    /**
+     * Expand a queue list: names separated by commas or new lines, where {@code [first..last]}
+     * stands for every number of the range, e.g. {@code orders-[1..100]}.
+     *
+     * @return the queue names, in order and without duplicates
+     */
+    static List<String> expandQueues(String spec) {
+        List<String> queues = new ArrayList<>();
+
+        for (String name : StringUtils.split(StringUtils.defaultString(spec), ",\n\r")) {
+            String trimmed = name.trim();
+
+            if (!trimmed.isEmpty()) {
+                expand(trimmed, queues);
+            }
+        }
+
+        return Collections.unmodifiableList(queues);
+    }
+
+    private static void expand(String name, List<String> queues) {
+        Matcher matcher = RANGE.matcher(name);
+
+        if (!matcher.find()) {
+            if (!queues.contains(name)) {
+                queues.add(name);
+            }
+            return;
+        }
+
+        String first = matcher.group(1);
+        long from = Long.parseLong(first);
+        long to = Long.parseLong(matcher.group(2));
+        String format = first.length() > 1 && first.startsWith("0") ? "%0" + first.length() + "d" : "%d";
+        String prefix = name.substring(0, matcher.start());
+        String suffix = name.substring(matcher.end());
+
+        for (long idx = Math.min(from, to); idx <= Math.max(from, to); idx++) {
+            // the suffix may hold further ranges
+            expand(prefix + String.format(format, idx) + suffix, queues);
+        }
+    }
+
+    @Override
+    protected SamplerConfig compileConfig() {
+        return new MonitorConfig(this);
+    }
+
+    private MonitorConfig getMonitorConfig() {
+        return (MonitorConfig) getConfig();
+    }
+
+    /**
+     * @return the queues to poll, separated by commas or new lines, with optional {@code [first..last]} ranges
+     */
+    public String getQueues() {
+        return getPropertyAsString(QUEUES, DEFAULT_QUEUES);
+    }
+
+    public void setQueues(String queues) {
+        setProperty(QUEUES, queues);
+    }
+
+    /**
+     * @return the CSV file the readings are appended to, empty to keep them in the results only
+     */
+    public String getOutputFile() {
+        return getPropertyAsString(OUTPUT_FILE, DEFAULT_OUTPUT_FILE);
+    }
+
+    public void setOutputFile(String file) {
+        setProperty(OUTPUT_FILE, file);
+    }
+
+    @Override
+    protected Channel getChannel() {
+        synchronized (SHARED_LOCK) {
+            return SHARED_CHANNELS.get(brokerKey());
+        }
+    }
+
+    @Override
+    protected void setChannel(Channel channel) {
+        synchronized (SHARED_LOCK) {
+            SHARED_CHANNELS.put(brokerKey(), channel);
+        }
+    }
+
+    /**
+     * The shared connection outlives the thread which opened it, it is closed when the test ends.
+     */
+    @Override
+    protected void cleanup() {
+        // nothing per thread
+    }
+
+    @Override
+    public void testStarted() {
+        LAST_READINGS.clear();
+    }
+
+    @Override
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    @Override
+    public void testEnded() {
+        synchronized (SHARED_LOCK) {
+            for (Channel channel : SHARED_CHANNELS.values()) {
+                Connection connection = channel.getConnection();
+
+                try {
+                    if (connection.isOpen()) {
+                        connection.close();
+                    } else {
+                        // stop a recovery in progress
+                        connection.abort();
+                    }
+                } catch (Exception ex) {
+                    log.warn("Failed to close queue monitor connection", ex);
+                }
+            }
+
+            SHARED_CHANNELS.clear();
+            closeOutput();
+        }
+    }
+
+    @Override
+    public void testEnded(String host) {
+        testEnded();
+    }
+
+    /**
+     * One poll of a queue, with the net rate since the previous poll.
+     */
+    private static final class Reading {
+        final long timestamp;
+        final long nanos;
+        final long messages;
+        final long consumers;
+        final double netRate;
+
+        Reading(long timestamp, long nanos, long messages, long consumers, Reading previous) {
+            this.timestamp = timestamp;
+            this.nanos = nanos;
+            this.messages = messages;
+            this.consumers = consumers;
+
+            if (previous != null && nanos > previous.nanos) {
+                // positive while the backlog grows, i.e. ingress exceeds egress
+                this.netRate = (messages - previous.messages) * (double) TimeUnit.SECONDS.toNanos(1)
+                        / (nanos - previous.nanos);
+            } else {
+                this.netRate = 0;
+            }
+        }
+
+        String toCsv(String queue) {
+            return timestamp + "," + queue + "," + messages + "," + consumers + "," + String.format(Locale.ROOT, "%.1f", netRate);
+        }
+    }
+
+    /**
+     * Monitor settings compiled once per thread, including the expanded queue list.
+     */
+    protected static class MonitorConfig extends SamplerConfig {
+
+        private final boolean dynamic;
+
+        protected final List<String> queues;
+        protected final String outputFile;
+
+        protected MonitorConfig(AMQPQueueMonitor sampler) {
+            super(sampler);
+            this.dynamic = sampler.hasVariables(QUEUES, OUTPUT_FILE);
+            this.queues = expandQueues(sampler.getQueues());
+            this.outputFile = sampler.getOutputFile();
+        }
+
+        @Override
+        public boolean isDynamic() {
+            return dynamic || super.isDynamic();
+        }
+    }
+}
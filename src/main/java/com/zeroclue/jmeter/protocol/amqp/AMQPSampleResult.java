@@ -0,0 +1,64 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+
+import java.io.ObjectStreamException;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+/**
+ * Sample result which formats the response headers of a delivery only when a listener
+ * actually asks for them. Only the envelope and the properties are kept until then, not the body.
+ */
+public class AMQPSampleResult extends SampleResult {
+
+    private static final long serialVersionUID = 2365412894213468109L;
+
+    private transient Envelope envelope;
+    private transient AMQP.BasicProperties properties;
+    private transient String queue;
+
+    public AMQPSampleResult() {
+        super();
+    }
+
+    /**
+     * Defer formatting of the response headers until {@link #getResponseHeaders()} is called.
+     *
+     * @param delivery the delivery to take the headers from
+     */
+    public void setResponseHeaders(Delivery delivery) {
+        this.envelope = delivery.getEnvelope();
+        this.properties = delivery.getProperties();
+        this.queue = delivery instanceof QueuedDelivery ? ((QueuedDelivery) delivery).getQueue() : null;
+        super.setResponseHeaders("");
+    }
+
+    @Override
+    public void setResponseHeaders(String string) {
+        this.envelope = null;
+        this.properties = null;
+        this.queue = null;
+        super.setResponseHeaders(string);
+    }
+
+    @Override
+    public String getResponseHeaders() {
+        if (envelope != null) {
+            setResponseHeaders(AMQPConsumer.formatHeaders(envelope, properties, queue));
+        }
+
+        return super.getResponseHeaders();
+    }
+
+    /**
+     * Format the headers before serialization starts: by the time a {@code writeObject} of this
+     * class ran, the fields of {@link SampleResult} would already be written.
+     */
+    protected Object writeReplace() throws ObjectStreamException {
+        getResponseHeaders();
+        return this;
+    }
+}
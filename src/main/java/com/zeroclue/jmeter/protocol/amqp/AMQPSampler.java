@@ -1,25 +1,47 @@
 package com.zeroclue.jmeter.protocol.amqp;
 
 import com.rabbitmq.client.AMQP;
-import com.rabbitmq.client.Address;
+import com.rabbitmq.client.AddressResolver;
 import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
 import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.nio.NioParams;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+
+import org.HdrHistogram.Recorder;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jmeter.samplers.AbstractSampler;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleListener;
+import org.apache.jmeter.samplers.SampleResult;
 import org.apache.jmeter.testelement.ThreadListener;
+import org.apache.jmeter.testelement.property.FunctionProperty;
+import org.apache.jmeter.testelement.property.JMeterProperty;
+import org.apache.jmeter.testelement.property.MultiProperty;
+import org.apache.jmeter.testelement.property.PropertyIterator;
+import org.apache.jmeter.threads.JMeterContext;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterThread;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.apache.jmeter.threads.SamplePackage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,6 +76,56 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     private static final String QUEUE_AUTO_WAIT       = "AMQPSampler.QueueAutoWait";
     private static final String DEAD_LETTER_EXCHANGE    = "AMQPSampler.XDeadLetterExchange";
     private static final String DEAD_LETTER_ROUTING_KEY = "AMQPSampler.XDeadLetterRoutingKey";
+    private static final String AUTOMATIC_RECOVERY      = "AMQPSampler.AutomaticRecovery";
+    private static final String TOPOLOGY_RECOVERY       = "AMQPSampler.TopologyRecovery";
+    private static final String RECOVERY_INTERVAL       = "AMQPSampler.RecoveryInterval";
+    private static final String HOST_DISTRIBUTION       = "AMQPSampler.HostDistribution";
+    private static final String TAG_NODE                = "AMQPSampler.TagNode";
+    private static final String QUEUE_TYPE              = "AMQPSampler.QueueType";
+    private static final String MAX_LENGTH_BYTES        = "AMQPSampler.MaxLengthBytes";
+    private static final String STREAM_SEGMENT_SIZE     = "AMQPSampler.StreamSegmentSize";
+    private static final String MAX_LENGTH              = "AMQPSampler.MaxLength";
+    private static final String OVERFLOW                = "AMQPSampler.Overflow";
+    private static final String DELIVERY_LIMIT          = "AMQPSampler.DeliveryLimit";
+    private static final String QUORUM_GROUP_SIZE       = "AMQPSampler.QuorumGroupSize";
+    private static final String TAG_QUEUE_TYPE          = "AMQPSampler.TagQueueType";
+    private static final String TCP_NO_DELAY            = "AMQPSampler.TcpNoDelay";
+    private static final String SEND_BUFFER_SIZE        = "AMQPSampler.SendBufferSize";
+    private static final String RECEIVE_BUFFER_SIZE     = "AMQPSampler.ReceiveBufferSize";
+    private static final String FRAME_MAX               = "AMQPSampler.FrameMax";
+    private static final String CHANNEL_MAX             = "AMQPSampler.ChannelMax";
+    private static final String USE_NIO                 = "AMQPSampler.UseNio";
+    private static final String NIO_BUFFER_SIZE         = "AMQPSampler.NioBufferSize";
+    private static final String COUNT_BYTES             = "AMQPSampler.CountBytes";
+    private static final String SSL_PROTOCOL            = "AMQPSampler.SslProtocol";
+    private static final String KEY_STORE               = "AMQPSampler.KeyStore";
+    private static final String KEY_STORE_TYPE          = "AMQPSampler.KeyStoreType";
+    private static final String KEY_STORE_PASSWORD      = "AMQPSampler.KeyStorePassword";
+    private static final String TRUST_STORE             = "AMQPSampler.TrustStore";
+    private static final String TRUST_STORE_TYPE        = "AMQPSampler.TrustStoreType";
+    private static final String TRUST_STORE_PASSWORD    = "AMQPSampler.TrustStorePassword";
+    private static final String CIPHER_SUITES           = "AMQPSampler.CipherSuites";
+    private static final String RESUME_SESSIONS         = "AMQPSampler.ResumeSessions";
+    private static final String SUMMARY_WINDOW          = "AMQPSampler.SummaryWindow";
+    private static final String HISTOGRAM_LOG           = "AMQPSampler.HistogramLog";
+    private static final String HISTOGRAM_LOG_INTERVAL  = "AMQPSampler.HistogramLogInterval";
+
+    public static final String QUEUE_TYPE_CLASSIC = "classic";
+    public static final String QUEUE_TYPE_QUORUM  = "quorum";
+    public static final String QUEUE_TYPE_STREAM  = "stream";
+
+    public static final String[] QUEUE_TYPES = new String[] {
+        QUEUE_TYPE_CLASSIC,
+        QUEUE_TYPE_QUORUM,
+        QUEUE_TYPE_STREAM
+    };
+
+    public static final String[] OVERFLOW_BEHAVIOURS = new String[] {
+        "",
+        "drop-head",
+        "reject-publish",
+        "reject-publish-dlx"
+    };
 
     public static final String[] EXCHANGE_TYPES = new String[] {
         "direct",
@@ -84,6 +156,14 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     public static final String DEFAULT_DEAD_LETTER_ROUTING_KEY = null;
     public static final String DEFAULT_MSG_EXPIRES = "";
     public static final String DEFAULT_MSG_PRIORITY = "";
+    public static final String DEFAULT_QUEUE_TYPE = QUEUE_TYPE_CLASSIC;
+    public static final String DEFAULT_MAX_LENGTH_BYTES = "";
+    public static final String DEFAULT_STREAM_SEGMENT_SIZE = "";
+    public static final String DEFAULT_MAX_LENGTH = "";
+    public static final String DEFAULT_OVERFLOW = "";
+    public static final String DEFAULT_DELIVERY_LIMIT = "";
+    public static final String DEFAULT_QUORUM_GROUP_SIZE = "";
+    public static final boolean DEFAULT_TAG_QUEUE_TYPE = false;
 
     public static final String DEFAULT_VIRTUAL_HOST = "/";
     public static final String DEFAULT_HOSTNAME = "localhost";
@@ -92,6 +172,9 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 
     public static final boolean DEFAULT_SSL_STATE = false;
     public static final String DEFAULT_SSL_PROTOCOL = "TLS";
+    public static final String DEFAULT_STORE_TYPE = "PKCS12";
+    public static final String DEFAULT_CIPHER_SUITES = "";
+    public static final boolean DEFAULT_RESUME_SESSIONS = true;
 
     public static final int DEFAULT_PORT = 5672;
     public static final String DEFAULT_PORT_STRING = Integer.toString(DEFAULT_PORT);
@@ -109,14 +192,320 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     public static final int DEFAULT_HEARTBEAT = 60;
     public static final String DEFAULT_HEARTBEAT_STRING = Integer.toString(DEFAULT_HEARTBEAT);
 
+    // Same defaults as the RabbitMQ client
+    public static final boolean DEFAULT_AUTOMATIC_RECOVERY = true;
+    public static final boolean DEFAULT_TOPOLOGY_RECOVERY = true;
+    public static final int DEFAULT_RECOVERY_INTERVAL = 5000;
+    public static final String DEFAULT_RECOVERY_INTERVAL_STRING = Integer.toString(DEFAULT_RECOVERY_INTERVAL);
+
+    public static final String RECOVERING_RESPONSE_CODE = "503";
+
+    public static final String DEFAULT_HOST_DISTRIBUTION = HostDistribution.DEFAULT_POLICY;
+    public static final boolean DEFAULT_TAG_NODE = false;
+
+    // empty sizes leave the operating system or client defaults in place
+    public static final boolean DEFAULT_TCP_NO_DELAY = true;
+    public static final String DEFAULT_SEND_BUFFER_SIZE = "";
+    public static final String DEFAULT_RECEIVE_BUFFER_SIZE = "";
+    public static final String DEFAULT_FRAME_MAX = "";
+    public static final String DEFAULT_CHANNEL_MAX = "";
+    public static final boolean DEFAULT_USE_NIO = false;
+    public static final String DEFAULT_NIO_BUFFER_SIZE = "";
+    public static final boolean DEFAULT_COUNT_BYTES = false;
+
+    // empty or zero returns a result per sample
+    public static final String DEFAULT_SUMMARY_WINDOW = "";
+
+    // empty directory writes no interval log
+    public static final String DEFAULT_HISTOGRAM_LOG = "";
+    public static final long DEFAULT_HISTOGRAM_LOG_INTERVAL = 1000;
+    public static final String DEFAULT_HISTOGRAM_LOG_INTERVAL_STRING = Long.toString(DEFAULT_HISTOGRAM_LOG_INTERVAL);
+
     private final transient ConnectionFactory factory;
     private transient Connection connection;
+    private transient SamplerConfig config;
+    private transient RecoveryTracker recoveryTracker;
+    private transient String nodeTag;
+    private transient ByteCountingSocketFactory byteCounter;
+    private transient TlsSocketFactory tlsFactory;
+    private transient WindowSummary summary;
+    private transient WindowSummary activeWindow;
+    private transient List<SampleListener> windowListeners;
+    private transient volatile boolean windowInterrupted;
+    private transient Map<String, Recorder> intervalRecorders;
 
     protected AMQPSampler() {
         this.factory = new ConnectionFactory();
         this.factory.setRequestedHeartbeat(DEFAULT_HEARTBEAT);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>While the connection is being recovered the sample waits up to the connection timeout
+     * and fails without touching the channel. The first sample after a recovery carries the
+     * outage statistics as a sub-result.
+     *
+     * <p>With a summary window, samples are taken until the window is over and returned as one
+     * summary, see {@link WindowSummary}.
+     */
+    @Override
+    public SampleResult sample(Entry entry) {
+        if (config == null) {
+            config = compileConfig();
+        }
+
+        if (config.summaryWindow > 0) {
+            return sampleWindow(entry, config.summaryWindow);
+        }
+
+        summary = null;
+
+        return sampleOnce(entry);
+    }
+
+    private SampleResult sampleWindow(Entry entry, long windowMillis) {
+        WindowSummary window = summary;
+
+        if (window == null || window.getWindowMillis() != windowMillis) {
+            window = new WindowSummary(windowMillis);
+            summary = window;
+        }
+
+        SampleResult pending = window.takePending();
+
+        if (pending != null) {
+            return pending;
+        }
+
+        // the listeners of this sampler, for a failed sample still pending when the thread stops
+        JMeterVariables vars = JMeterContextService.getContext().getVariables();
+        Object pack = vars != null ? vars.getObject(JMeterThread.PACKAGE_OBJECT) : null;
+
+        if (pack instanceof SamplePackage && ((SamplePackage) pack).getSampler() == this) {
+            windowListeners = ((SamplePackage) pack).getSampleListeners();
+        }
+
+        windowInterrupted = false;
+        window.start();
+        activeWindow = window;
+
+        try {
+            do {
+                long start = System.nanoTime();
+                SampleResult result = sampleOnce(entry);
+
+                if (!window.add(result, System.nanoTime() - start) || windowInterrupted || result.isStopThread()
+                        || result.isStopTest() || result.isStopTestNow() || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+            } while (!window.isDue());
+        } finally {
+            activeWindow = null;
+        }
+
+        return window.takeResult();
+    }
+
+    /**
+     * Hand a failed sample which ended the last window to the listeners, as the thread will not
+     * sample again to return it.
+     */
+    private void flushWindow() {
+        SampleResult pending = summary != null ? summary.takePending() : null;
+        JMeterContext context = JMeterContextService.getContext();
+
+        if (pending == null) {
+            return;
+        }
+
+        if (windowListeners == null || context.getThread() == null) {
+            log.warn("Dropped the failed sample of the last summary window: {}", pending.getResponseMessage());
+            return;
+        }
+
+        String threadGroup = context.getThreadGroup() != null ? context.getThreadGroup().getName() : "";
+
+        pending.setThreadName(context.getThread().getThreadName());
+        pending.setAllThreads(JMeterContextService.getNumberOfThreads());
+        context.getThread().getNotifier().notifyListeners(
+                new SampleEvent(pending, threadGroup, context.getVariables()), windowListeners);
+    }
+
+    /**
+     * @return the start of a message for {@link #recordMessage(long)}, 0 outside a summary window
+     */
+    protected long messageStart() {
+        return activeWindow != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the time a message of the current sample took into the percentiles of the summary
+     * window; nothing outside a window.
+     *
+     * @param start the value of {@link #messageStart()} when the message started
+     */
+    protected void recordMessage(long start) {
+        WindowSummary window = activeWindow;
+
+        if (window != null) {
+            window.recordMessage(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the recorder of a measure in the interval log of this sampler, {@code null} without a log
+     * @see IntervalLog
+     */
+    protected Recorder intervalRecorder(String measure) {
+        if (StringUtils.isEmpty(config.histogramLog)) {
+            return null;
+        }
+
+        if (intervalRecorders == null) {
+            IntervalLog.open(config.histogramLogInterval);
+            intervalRecorders = new HashMap<>();
+        }
+
+        if (!intervalRecorders.containsKey(measure)) {
+            Recorder recorder = null;
+
+            try {
+                recorder = IntervalLog.recorder(config.histogramLog, getName(), measure);
+            } catch (IOException e) {
+                log.error("Failed to open the histogram interval log in {}", config.histogramLog, e);
+            }
+
+            // a failed log is not retried
+            intervalRecorders.put(measure, recorder);
+        }
+
+        return intervalRecorders.get(measure);
+    }
+
+    /**
+     * Cut the current summary window short, for samplers which are interrupted.
+     */
+    protected void interruptWindow() {
+        windowInterrupted = true;
+    }
+
+    private SampleResult sampleOnce(Entry entry) {
+        RecoveryTracker tracker = recoveryTracker;
+        SampleResult result;
+
+        // recompiled only if it references per-iteration variables
+        if (config.isDynamic()) {
+            config = compileConfig();
+        }
+
+        if (tracker != null && tracker.isOutage() && !awaitRecovery(tracker)) {
+            result = new SampleResult();
+            result.setSampleLabel(getName());
+            result.sampleStart();
+            result.sampleEnd();
+            result.setSuccessful(false);
+            result.setResponseCode(RECOVERING_RESPONSE_CODE);
+            result.setResponseMessage("Connection recovering");
+        } else {
+            SampleResult recovery = tracker != null ? tracker.takeCompleted() : null;
+
+            if (recovery != null) {
+                nodeTag = null;     // may have failed over to another node
+                connectionRecovered(getTopologyRecovery());
+            }
+
+            ByteCountingSocketFactory counter = byteCounter;
+            long sent = counter != null ? counter.getSent() : 0;
+            long received = counter != null ? counter.getReceived() : 0;
+
+            result = doSample(entry);
+
+            // wire bytes of the connection during the sample, the first one includes the handshake
+            counter = byteCounter;
+
+            if (counter != null) {
+                result.setSentBytes(counter.getSent() - sent);
+                result.setBytes(counter.getReceived() - received);
+            }
+
+            if (recovery != null) {
+                result.storeSubResult(recovery, false);
+            }
+
+            TlsSocketFactory tls = tlsFactory;
+
+            if (tls != null) {
+                tls.addResults(result);
+            }
+        }
+
+        if (tracker != null && !result.isSuccessful()) {
+            tracker.sampleFailed();
+        }
+
+        if (config.tagQueueType) {
+            result.setSampleLabel(result.getSampleLabel() + " [" + config.queueType + "]");
+        }
+
+        if (config.tagNode) {
+            tagResult(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Append the broker node the connection is attached to, so results can be broken down per node.
+     */
+    private void tagResult(SampleResult result) {
+        Connection conn = connection;
+
+        if (nodeTag == null && conn != null && conn.isOpen()) {
+            // the host name the address was resolved from, or the literal IP, without a reverse lookup
+            InetSocketAddress address = new InetSocketAddress(conn.getAddress(), conn.getPort());
+            nodeTag = " [" + address.getHostString() + ":" + address.getPort() + "]";
+        }
+
+        if (nodeTag != null) {
+            result.setSampleLabel(result.getSampleLabel() + nodeTag);
+        }
+    }
+
+    /**
+     * Perform a single sample.
+     *
+     * @param entry the sampler entry
+     * @return the sample result
+     */
+    protected abstract SampleResult doSample(Entry entry);
+
+    private boolean awaitRecovery(RecoveryTracker tracker) {
+        try {
+            return tracker.awaitRecovery(getTimeoutAsInt());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Called on the sampler thread before the first sample after an automatic recovery.
+     *
+     * @param topologyRecovered whether queues, bindings and consumers were recovered by the client
+     */
+    protected void connectionRecovered(boolean topologyRecovered) {
+        // nothing by default
+    }
+
+    /**
+     * @return the number of messages which cannot be completed if the connection drops now,
+     *     called from a client thread
+     */
+    protected int getInFlightCount() {
+        return 0;
+    }
+
     protected boolean initChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException, TimeoutException {
         Channel channel = getChannel();
 
@@ -129,6 +518,7 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
             if (channel == null) {
                 channel = createChannel();
                 setChannel(channel);
+                configureChannel(channel);
 
                 boolean queueConfigured = configureQueue(channel);
 
@@ -153,13 +543,20 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
                         getQueue(), getExchange(), getExchangeDurable(), getRoutingKey(), getQueueArguments());
             }
         } catch (Exception ex) {
+            log.warn("Failed to set up channel: {}", ex.toString());
             log.debug(ex.toString(), ex);
-            // ignore it
         }
 
         return true;
     }
 
+    /**
+     * Apply per-channel settings (QoS, transactions, ...) once, right after a channel is opened.
+     */
+    protected void configureChannel(Channel channel) throws IOException {
+        // nothing by default
+    }
+
     protected boolean configureQueue(Channel channel) throws IOException, NoSuchAlgorithmException, KeyManagementException, TimeoutException {
         boolean queueConfigured = (getQueue() != null && !getQueue().isEmpty());
 
@@ -168,7 +565,12 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
                 deleteQueue();
             }
 
-            AMQP.Queue.DeclareOk declareQueueResp = channel.queueDeclare(getQueue(), queueDurable(), queueExclusive(), queueAutoDelete(), getQueueArguments());
+            if (!QUEUE_TYPE_CLASSIC.equals(getQueueType())) {
+                // replicated queues are always durable, shared and kept when consumers go away
+                channel.queueDeclare(getQueue(), true, false, false, getQueueArguments());
+            } else {
+                AMQP.Queue.DeclareOk declareQueueResp = channel.queueDeclare(getQueue(), queueDurable(), queueExclusive(), queueAutoDelete(), getQueueArguments());
+            }
         }
         return queueConfigured;
     }
@@ -188,6 +590,36 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
             arguments.put("x-max-priority", getMaxPriorityAsInt());
         }
 
+        if (!QUEUE_TYPE_CLASSIC.equals(getQueueType())) {
+            arguments.put("x-queue-type", getQueueType());
+        }
+
+        if (!StringUtils.isEmpty(getMaxLengthBytes())) {
+            arguments.put("x-max-length-bytes", getPropertyAsLong(MAX_LENGTH_BYTES));
+        }
+
+        if (isStreamQueue() && !StringUtils.isEmpty(getStreamSegmentSize())) {
+            arguments.put("x-stream-max-segment-size-bytes", getPropertyAsLong(STREAM_SEGMENT_SIZE));
+        }
+
+        if (!StringUtils.isEmpty(getMaxLength())) {
+            arguments.put("x-max-length", getPropertyAsLong(MAX_LENGTH));
+        }
+
+        if (!StringUtils.isEmpty(getOverflow())) {
+            arguments.put("x-overflow", getOverflow());
+        }
+
+        if (QUEUE_TYPE_QUORUM.equals(getQueueType())) {
+            if (!StringUtils.isEmpty(getDeliveryLimit())) {
+                arguments.put("x-delivery-limit", getPropertyAsInt(DELIVERY_LIMIT));
+            }
+
+            if (!StringUtils.isEmpty(getQuorumGroupSize())) {
+                arguments.put("x-quorum-initial-group-size", getPropertyAsInt(QUORUM_GROUP_SIZE));
+            }
+        }
+
         if(queueAutoWait()) {
             if (getXDeadLetterExchange() != null) {
                 arguments.put("x-dead-letter-exchange", getXDeadLetterExchange());
@@ -200,8 +632,66 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
         return arguments;
     }
 
+    /**
+     * Compile the configuration read on the hot path into an immutable snapshot.
+     *
+     * @return the snapshot for the current thread
+     */
+    protected SamplerConfig compileConfig() {
+        return new SamplerConfig(this);
+    }
+
+    /**
+     * @return the configuration snapshot for the current sample
+     */
+    protected SamplerConfig getConfig() {
+        if (config == null) {
+            config = compileConfig();
+        }
+
+        return config;
+    }
+
+    /**
+     * @return whether any of the given properties holds a variable or function evaluated on each read
+     */
+    protected boolean hasVariables(String... names) {
+        for (String name : names) {
+            if (hasVariables(getProperty(name))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean hasVariables(JMeterProperty property) {
+        if (property instanceof FunctionProperty) {
+            return true;
+        }
+
+        if (property instanceof MultiProperty) {
+            PropertyIterator iterator = ((MultiProperty) property).iterator();
+
+            while (iterator.hasNext()) {
+                if (hasVariables(iterator.next())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     protected abstract Channel getChannel();
 
+    /**
+     * @return the connection of this thread, {@code null} before the first channel is created
+     */
+    protected Connection getConnection() {
+        return connection;
+    }
+
     protected abstract void setChannel(Channel channel);
 
     /**
@@ -212,11 +702,13 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     }
 
     protected int getTimeoutAsInt() {
-        if (getPropertyAsInt(TIMEOUT) < 1) {
+        int timeout = getPropertyAsInt(TIMEOUT);
+
+        if (timeout < 1) {
             return DEFAULT_TIMEOUT;
         }
 
-        return getPropertyAsInt(TIMEOUT);
+        return timeout;
     }
 
     public String getTimeout() {
@@ -312,11 +804,13 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     }
 
     protected Integer getMessageTTLAsInt() {
-        if (getPropertyAsInt(MESSAGE_TTL) < 1) {
+        int ttl = getPropertyAsInt(MESSAGE_TTL);
+
+        if (ttl < 1) {
             return null;
         }
 
-        return getPropertyAsInt(MESSAGE_TTL);
+        return ttl;
     }
 
     public String getMessageExpires() {
@@ -328,11 +822,13 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     }
 
     protected Integer getMessageExpiresAsInt() {
-        if (getPropertyAsInt(MESSAGE_EXPIRES) < 1) {
+        int expires = getPropertyAsInt(MESSAGE_EXPIRES);
+
+        if (expires < 1) {
             return null;
         }
 
-        return getPropertyAsInt(MESSAGE_EXPIRES);
+        return expires;
     }
 
     public String getXDeadLetterExchange() {
@@ -354,13 +850,15 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     protected Integer getMaxPriorityAsInt() {
         // The message priority field is defined as an unsigned byte,
         // so in practice priorities should be between 0 and 255
-        if (getPropertyAsInt(MAX_PRIORITY) < DEFAULT_MIN_PRIORITY) {
+        int maxPriority = getPropertyAsInt(MAX_PRIORITY);
+
+        if (maxPriority < DEFAULT_MIN_PRIORITY) {
             return DEFAULT_MIN_PRIORITY;
-        } else if (getPropertyAsInt(MAX_PRIORITY) > DEFAULT_MAX_PRIORITY) {
+        } else if (maxPriority > DEFAULT_MAX_PRIORITY) {
             return DEFAULT_MAX_PRIORITY;
         }
 
-        return getPropertyAsInt(MAX_PRIORITY);
+        return maxPriority;
     }
 
     public String getMaxPriority() {
@@ -388,11 +886,13 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     }
 
     protected int getPortAsInt() {
-        if (getPropertyAsInt(PORT) < 1) {
+        int port = getPropertyAsInt(PORT);
+
+        if (port < 1) {
             return DEFAULT_PORT;
         }
 
-        return getPropertyAsInt(PORT);
+        return port;
     }
 
     public boolean getConnectionSSL() {
@@ -524,7 +1024,403 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
         return getPropertyAsBoolean(QUEUE_AUTO_WAIT);
     }
 
+    /**
+     * @return the queue type to declare: classic or stream
+     */
+    public String getQueueType() {
+        return getPropertyAsString(QUEUE_TYPE, DEFAULT_QUEUE_TYPE);
+    }
+
+    public void setQueueType(String type) {
+        setProperty(QUEUE_TYPE, type);
+    }
+
+    public boolean isStreamQueue() {
+        return QUEUE_TYPE_STREAM.equals(getQueueType());
+    }
+
+    /**
+     * @return the maximum queue size in bytes, empty for no limit
+     */
+    public String getMaxLengthBytes() {
+        return getPropertyAsString(MAX_LENGTH_BYTES, DEFAULT_MAX_LENGTH_BYTES);
+    }
+
+    public void setMaxLengthBytes(String bytes) {
+        setProperty(MAX_LENGTH_BYTES, bytes);
+    }
+
+    /**
+     * @return the stream segment file size in bytes, empty for the broker default
+     */
+    public String getStreamSegmentSize() {
+        return getPropertyAsString(STREAM_SEGMENT_SIZE, DEFAULT_STREAM_SEGMENT_SIZE);
+    }
+
+    public void setStreamSegmentSize(String bytes) {
+        setProperty(STREAM_SEGMENT_SIZE, bytes);
+    }
+
+    /**
+     * @return the maximum number of messages in the queue, empty for no limit
+     */
+    public String getMaxLength() {
+        return getPropertyAsString(MAX_LENGTH, DEFAULT_MAX_LENGTH);
+    }
+
+    public void setMaxLength(String length) {
+        setProperty(MAX_LENGTH, length);
+    }
+
+    /**
+     * @return what the queue does once a length limit is reached, empty for the broker default
+     */
+    public String getOverflow() {
+        return getPropertyAsString(OVERFLOW, DEFAULT_OVERFLOW);
+    }
+
+    public void setOverflow(String overflow) {
+        setProperty(OVERFLOW, overflow);
+    }
+
+    /**
+     * @return how often a quorum queue redelivers a message before dropping or dead-lettering it
+     */
+    public String getDeliveryLimit() {
+        return getPropertyAsString(DELIVERY_LIMIT, DEFAULT_DELIVERY_LIMIT);
+    }
+
+    public void setDeliveryLimit(String limit) {
+        setProperty(DELIVERY_LIMIT, limit);
+    }
+
+    /**
+     * @return the number of replicas a quorum queue starts with, empty for the broker default
+     */
+    public String getQuorumGroupSize() {
+        return getPropertyAsString(QUORUM_GROUP_SIZE, DEFAULT_QUORUM_GROUP_SIZE);
+    }
+
+    public void setQuorumGroupSize(String size) {
+        setProperty(QUORUM_GROUP_SIZE, size);
+    }
+
+    /**
+     * @return whether to append the queue type to the sample label
+     */
+    public boolean getTagQueueType() {
+        return getPropertyAsBoolean(TAG_QUEUE_TYPE, DEFAULT_TAG_QUEUE_TYPE);
+    }
+
+    public void setTagQueueType(Boolean tag) {
+        setProperty(TAG_QUEUE_TYPE, tag);
+    }
+
+    public boolean getAutomaticRecovery() {
+        return getPropertyAsBoolean(AUTOMATIC_RECOVERY, DEFAULT_AUTOMATIC_RECOVERY);
+    }
+
+    public void setAutomaticRecovery(Boolean value) {
+        setProperty(AUTOMATIC_RECOVERY, value);
+    }
+
+    public boolean getTopologyRecovery() {
+        return getPropertyAsBoolean(TOPOLOGY_RECOVERY, DEFAULT_TOPOLOGY_RECOVERY);
+    }
+
+    public void setTopologyRecovery(Boolean value) {
+        setProperty(TOPOLOGY_RECOVERY, value);
+    }
+
+    public String getRecoveryInterval() {
+        return getPropertyAsString(RECOVERY_INTERVAL, DEFAULT_RECOVERY_INTERVAL_STRING);
+    }
+
+    public void setRecoveryInterval(String value) {
+        setProperty(RECOVERY_INTERVAL, value);
+    }
+
+    public int getRecoveryIntervalAsInt() {
+        int interval = getPropertyAsInt(RECOVERY_INTERVAL, DEFAULT_RECOVERY_INTERVAL);
+
+        if (interval < 1) {
+            return DEFAULT_RECOVERY_INTERVAL;
+        }
+
+        return interval;
+    }
+
+    /**
+     * @return how connections are spread over the hosts: ordered, round-robin, shuffle or weighted
+     */
+    public String getHostDistribution() {
+        return getPropertyAsString(HOST_DISTRIBUTION, DEFAULT_HOST_DISTRIBUTION);
+    }
+
+    public void setHostDistribution(String policy) {
+        setProperty(HOST_DISTRIBUTION, policy);
+    }
+
+    /**
+     * @return whether to append the connected node to the sample label
+     */
+    public boolean getTagNode() {
+        return getPropertyAsBoolean(TAG_NODE, DEFAULT_TAG_NODE);
+    }
+
+    public void setTagNode(Boolean tag) {
+        setProperty(TAG_NODE, tag);
+    }
+
+    /**
+     * @return whether Nagle's algorithm is disabled, so small frames are sent without delay
+     */
+    public boolean getTcpNoDelay() {
+        return getPropertyAsBoolean(TCP_NO_DELAY, DEFAULT_TCP_NO_DELAY);
+    }
+
+    public void setTcpNoDelay(Boolean noDelay) {
+        setProperty(TCP_NO_DELAY, noDelay);
+    }
+
+    /**
+     * @return the socket send buffer size in bytes, empty for the operating system default
+     */
+    public String getSendBufferSize() {
+        return getPropertyAsString(SEND_BUFFER_SIZE, DEFAULT_SEND_BUFFER_SIZE);
+    }
+
+    public void setSendBufferSize(String size) {
+        setProperty(SEND_BUFFER_SIZE, size);
+    }
+
+    public int getSendBufferSizeAsInt() {
+        return Math.max(0, getPropertyAsInt(SEND_BUFFER_SIZE, 0));
+    }
+
+    /**
+     * @return the socket receive buffer size in bytes, empty for the operating system default
+     */
+    public String getReceiveBufferSize() {
+        return getPropertyAsString(RECEIVE_BUFFER_SIZE, DEFAULT_RECEIVE_BUFFER_SIZE);
+    }
+
+    public void setReceiveBufferSize(String size) {
+        setProperty(RECEIVE_BUFFER_SIZE, size);
+    }
+
+    public int getReceiveBufferSizeAsInt() {
+        return Math.max(0, getPropertyAsInt(RECEIVE_BUFFER_SIZE, 0));
+    }
+
+    /**
+     * @return the requested maximum frame size in bytes, empty for the client default (no limit)
+     */
+    public String getFrameMax() {
+        return getPropertyAsString(FRAME_MAX, DEFAULT_FRAME_MAX);
+    }
+
+    public void setFrameMax(String size) {
+        setProperty(FRAME_MAX, size);
+    }
+
+    public int getFrameMaxAsInt() {
+        return Math.max(0, getPropertyAsInt(FRAME_MAX, ConnectionFactory.DEFAULT_FRAME_MAX));
+    }
+
+    /**
+     * @return the requested maximum number of channels, empty for the client default
+     */
+    public String getChannelMax() {
+        return getPropertyAsString(CHANNEL_MAX, DEFAULT_CHANNEL_MAX);
+    }
+
+    public void setChannelMax(String max) {
+        setProperty(CHANNEL_MAX, max);
+    }
+
+    public int getChannelMaxAsInt() {
+        int max = getPropertyAsInt(CHANNEL_MAX, ConnectionFactory.DEFAULT_CHANNEL_MAX);
+
+        return max < 0 ? ConnectionFactory.DEFAULT_CHANNEL_MAX : max;
+    }
+
+    /**
+     * @return whether the connection uses NIO instead of a blocking socket and reader thread
+     */
+    public boolean getUseNio() {
+        return getPropertyAsBoolean(USE_NIO, DEFAULT_USE_NIO);
+    }
+
+    public void setUseNio(Boolean nio) {
+        setProperty(USE_NIO, nio);
+    }
+
+    /**
+     * @return the size in bytes of the NIO read and write buffers, empty for the client default;
+     *     frames are written out when the buffer is full or the write queue is drained
+     */
+    public String getNioBufferSize() {
+        return getPropertyAsString(NIO_BUFFER_SIZE, DEFAULT_NIO_BUFFER_SIZE);
+    }
+
+    public void setNioBufferSize(String size) {
+        setProperty(NIO_BUFFER_SIZE, size);
+    }
+
+    public int getNioBufferSizeAsInt() {
+        return Math.max(0, getPropertyAsInt(NIO_BUFFER_SIZE, 0));
+    }
+
+    /**
+     * @return whether to count the bytes on the wire, reported as sent and received bytes of each sample
+     */
+    public boolean getCountBytes() {
+        return getPropertyAsBoolean(COUNT_BYTES, DEFAULT_COUNT_BYTES);
+    }
+
+    public void setCountBytes(Boolean count) {
+        setProperty(COUNT_BYTES, count);
+    }
+
+    /**
+     * @return the protocol of the SSL context, such as TLSv1.2 or TLSv1.3
+     */
+    public String getSslProtocol() {
+        return StringUtils.defaultIfBlank(getPropertyAsString(SSL_PROTOCOL), DEFAULT_SSL_PROTOCOL);
+    }
+
+    public void setSslProtocol(String protocol) {
+        setProperty(SSL_PROTOCOL, protocol);
+    }
+
+    /**
+     * @return the key store holding the client certificate, empty for none
+     */
+    public String getKeyStore() {
+        return getPropertyAsString(KEY_STORE);
+    }
+
+    public void setKeyStore(String path) {
+        setProperty(KEY_STORE, path);
+    }
+
+    public String getKeyStoreType() {
+        return getPropertyAsString(KEY_STORE_TYPE, DEFAULT_STORE_TYPE);
+    }
+
+    public void setKeyStoreType(String type) {
+        setProperty(KEY_STORE_TYPE, type);
+    }
+
+    public String getKeyStorePassword() {
+        return getPropertyAsString(KEY_STORE_PASSWORD);
+    }
+
+    public void setKeyStorePassword(String password) {
+        setProperty(KEY_STORE_PASSWORD, password);
+    }
+
+    /**
+     * @return the trust store to verify the broker certificate with, empty to trust any certificate
+     */
+    public String getTrustStore() {
+        return getPropertyAsString(TRUST_STORE);
+    }
+
+    public void setTrustStore(String path) {
+        setProperty(TRUST_STORE, path);
+    }
+
+    public String getTrustStoreType() {
+        return getPropertyAsString(TRUST_STORE_TYPE, DEFAULT_STORE_TYPE);
+    }
+
+    public void setTrustStoreType(String type) {
+        setProperty(TRUST_STORE_TYPE, type);
+    }
+
+    public String getTrustStorePassword() {
+        return getPropertyAsString(TRUST_STORE_PASSWORD);
+    }
+
+    public void setTrustStorePassword(String password) {
+        setProperty(TRUST_STORE_PASSWORD, password);
+    }
+
+    /**
+     * @return comma separated cipher suites to enable, empty for the defaults of the protocol
+     */
+    public String getCipherSuites() {
+        return getPropertyAsString(CIPHER_SUITES, DEFAULT_CIPHER_SUITES);
+    }
+
+    public void setCipherSuites(String suites) {
+        setProperty(CIPHER_SUITES, suites);
+    }
+
+    /**
+     * @return whether connections share one SSL context, so reconnects can resume their TLS session
+     */
+    public boolean getResumeSessions() {
+        return getPropertyAsBoolean(RESUME_SESSIONS, DEFAULT_RESUME_SESSIONS);
+    }
+
+    public void setResumeSessions(Boolean resume) {
+        setProperty(RESUME_SESSIONS, resume);
+    }
+
+    /**
+     * @return the length in milliseconds of the window whose samples are returned as one summary,
+     *     empty or zero for a result per sample
+     */
+    public String getSummaryWindow() {
+        return getPropertyAsString(SUMMARY_WINDOW, DEFAULT_SUMMARY_WINDOW);
+    }
+
+    public void setSummaryWindow(String window) {
+        setProperty(SUMMARY_WINDOW, window);
+    }
+
+    public long getSummaryWindowAsLong() {
+        return Math.max(0, getPropertyAsLong(SUMMARY_WINDOW, 0));
+    }
+
+    /**
+     * @return the directory of the histogram interval logs, empty for none
+     */
+    public String getHistogramLog() {
+        return getPropertyAsString(HISTOGRAM_LOG, DEFAULT_HISTOGRAM_LOG);
+    }
+
+    public void setHistogramLog(String directory) {
+        setProperty(HISTOGRAM_LOG, directory);
+    }
+
+    /**
+     * @return the interval in milliseconds at which the histogram logs are written
+     */
+    public String getHistogramLogInterval() {
+        return getPropertyAsString(HISTOGRAM_LOG_INTERVAL, DEFAULT_HISTOGRAM_LOG_INTERVAL_STRING);
+    }
+
+    public void setHistogramLogInterval(String interval) {
+        setProperty(HISTOGRAM_LOG_INTERVAL, interval);
+    }
+
+    public long getHistogramLogIntervalAsLong() {
+        long interval = getPropertyAsLong(HISTOGRAM_LOG_INTERVAL, DEFAULT_HISTOGRAM_LOG_INTERVAL);
+        return interval > 0 ? interval : DEFAULT_HISTOGRAM_LOG_INTERVAL;
+    }
+
     protected void cleanup() {
+        ByteCountingSocketFactory counter = byteCounter;
+
+        if (counter != null) {
+            log.info("{}: {} bytes sent, {} bytes received on the wire", getName(), counter.getSent(),
+                    counter.getReceived());
+        }
+
         try {
             // getChannel().close();   // closing the connection will close the channel if it's still open
             if (connection != null && connection.isOpen()) {
@@ -542,12 +1438,19 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     @Override
     public void threadFinished() {
         log.info("AMQPSampler.threadFinished called");
+        flushWindow();
         cleanup();
+
+        if (intervalRecorders != null) {
+            intervalRecorders = null;
+            IntervalLog.release();
+        }
     }
 
     @Override
     public void threadStarted() {
         log.info("AMQPSampler.threadStarted called");
+        config = compileConfig();
     }
 
     protected Channel createChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException, TimeoutException {
@@ -559,9 +1462,16 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
             factory.setUsername(getUsername());
             factory.setPassword(getPassword());
             factory.setRequestedHeartbeat(getHeartbeatAsInt());
+            factory.setAutomaticRecoveryEnabled(getAutomaticRecovery());
+            factory.setTopologyRecoveryEnabled(getTopologyRecovery());
+            factory.setNetworkRecoveryInterval(getRecoveryIntervalAsInt());
+
+            configureSockets();
 
             if (getConnectionSSL()) {
-                factory.useSslProtocol(DEFAULT_SSL_PROTOCOL);
+                configureTls();
+            } else {
+                tlsFactory = null;
             }
 
             log.info("RabbitMQ ConnectionFactory using:"
@@ -576,18 +1486,20 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
                     getVirtualHost(), getHost(), getPort(), getUsername(), getPassword(), getTimeout(),
                     getHeartbeatAsInt(), this);
 
-            String[] hosts = getHost().split(",");
-            Address[] addresses = new Address[hosts.length];
-
-            for (int i = 0; i < hosts.length; i++) {
-                addresses[i] = new Address(hosts[i], getPortAsInt());
-            }
+            AddressResolver addresses = HostDistribution.resolver(getHost(), getPortAsInt(), getHostDistribution());
 
-            if (log.isDebugEnabled()) {
-                log.debug("Using hosts: {} addresses: {}", Arrays.toString(hosts), Arrays.toString(addresses));
-            }
+            log.debug("Using hosts: {} addresses: {}", getHost(), addresses);
 
             connection = factory.newConnection(addresses);
+            nodeTag = null;
+
+            if (connection instanceof Recoverable) {
+                recoveryTracker = new RecoveryTracker(getName(), this::getInFlightCount);
+                connection.addShutdownListener(recoveryTracker);
+                ((Recoverable) connection).addRecoveryListener(recoveryTracker);
+            } else {
+                recoveryTracker = null;
+            }
          }
 
          Channel channel = connection.createChannel();
@@ -599,6 +1511,131 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
          return channel;
     }
 
+    /**
+     * Apply the frame and socket settings to the connection factory, before the SSL settings
+     * so that SSL keeps its own socket factory.
+     */
+    private void configureSockets() {
+        boolean noDelay = getTcpNoDelay();
+        int sendBuffer = getSendBufferSizeAsInt();
+        int receiveBuffer = getReceiveBufferSizeAsInt();
+
+        factory.setRequestedFrameMax(getFrameMaxAsInt());
+        factory.setRequestedChannelMax(getChannelMaxAsInt());
+
+        if (getUseNio()) {
+            NioParams nio = new NioParams();
+            int bufferSize = getNioBufferSizeAsInt();
+
+            if (bufferSize > 0) {
+                nio.setReadByteBufferSize(bufferSize);
+                nio.setWriteByteBufferSize(bufferSize);
+            }
+
+            nio.setSocketChannelConfigurator(socketChannel ->
+                    configureSocket(socketChannel.socket(), noDelay, sendBuffer, receiveBuffer));
+            factory.setNioParams(nio);
+            factory.useNio();
+        } else {
+            factory.setSocketConfigurator(socket -> configureSocket(socket, noDelay, sendBuffer, receiveBuffer));
+            factory.useBlockingIo();
+        }
+
+        if (getCountBytes() && !getUseNio() && !getConnectionSSL()) {
+            if (byteCounter == null) {
+                byteCounter = new ByteCountingSocketFactory();
+            }
+
+            factory.setSocketFactory(byteCounter);
+        } else {
+            if (getCountBytes()) {
+                log.warn("{}: bytes are only counted on plain blocking sockets, not with NIO or SSL", getName());
+            }
+
+            byteCounter = null;
+            factory.setSocketFactory(SocketFactory.getDefault());
+        }
+    }
+
+    /**
+     * Use the shared context of the configured stores, or a context of its own if sessions must
+     * not be resumed. With NIO the client drives the handshake, it is not timed then.
+     */
+    private void configureTls() throws IOException {
+        SSLContext context = getResumeSessions()
+                ? TlsSocketFactory.sharedContext(getSslProtocol(), getKeyStore(), getKeyStoreType(),
+                        getKeyStorePassword(), getTrustStore(), getTrustStoreType(), getTrustStorePassword())
+                : TlsSocketFactory.newContext(getSslProtocol(), getKeyStore(), getKeyStoreType(),
+                        getKeyStorePassword(), getTrustStore(), getTrustStoreType(), getTrustStorePassword());
+
+        factory.useSslProtocol(context);
+
+        if (getUseNio()) {
+            tlsFactory = null;
+        } else {
+            tlsFactory = new TlsSocketFactory(context, getCipherSuites());
+            factory.setSocketFactory(tlsFactory);
+        }
+    }
+
+    private static void configureSocket(Socket socket, boolean noDelay, int sendBuffer, int receiveBuffer)
+            throws IOException {
+        socket.setTcpNoDelay(noDelay);
+
+        if (sendBuffer > 0) {
+            socket.setSendBufferSize(sendBuffer);
+        }
+
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+    }
+
+    /**
+     * Immutable snapshot of the sampler configuration, compiled once per thread so that the
+     * sampling loop does not go through the property map (and parse strings) on every message.
+     *
+     * <p>If any of the compiled properties references a variable or function, the snapshot
+     * is flagged dynamic and recompiled on each sample instead.
+     */
+    protected static class SamplerConfig {
+
+        private final boolean dynamic;
+
+        protected final String exchange;
+        protected final String routingKey;
+        protected final String queue;
+        protected final int iterations;
+        protected final boolean tagNode;
+        protected final String queueType;
+        protected final boolean tagQueueType;
+        protected final long summaryWindow;
+        protected final String histogramLog;
+        protected final long histogramLogInterval;
+
+        protected SamplerConfig(AMQPSampler sampler) {
+            this.dynamic = sampler.hasVariables(EXCHANGE, ROUTING_KEY, QUEUE, ITERATIONS, TAG_NODE, QUEUE_TYPE,
+                    TAG_QUEUE_TYPE, SUMMARY_WINDOW, HISTOGRAM_LOG, HISTOGRAM_LOG_INTERVAL);
+            this.exchange = sampler.getExchange();
+            this.routingKey = sampler.getRoutingKey();
+            this.queue = sampler.getQueue();
+            this.iterations = sampler.getIterationsAsInt();
+            this.tagNode = sampler.getTagNode();
+            this.queueType = sampler.getQueueType();
+            this.tagQueueType = sampler.getTagQueueType();
+            this.summaryWindow = sampler.getSummaryWindowAsLong();
+            this.histogramLog = sampler.getHistogramLog();
+            this.histogramLogInterval = sampler.getHistogramLogIntervalAsLong();
+        }
+
+        /**
+         * @return whether the snapshot must be recompiled before each sample
+         */
+        public boolean isDynamic() {
+            return dynamic;
+        }
+    }
+
     protected void deleteQueue() throws IOException, NoSuchAlgorithmException, KeyManagementException, TimeoutException {
         // use a different channel since channel closes on exception.
         Channel channel = createChannel();
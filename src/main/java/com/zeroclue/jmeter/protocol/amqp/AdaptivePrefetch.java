@@ -0,0 +1,193 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Searches for the smallest prefetch count that sustains the peak consumer throughput.
+ *
+ * <p>The search starts at the configured value, 1 if none, and moves one step per measurement
+ * window. While the consumer is starved, i.e. it waited for deliveries and the hand-off buffer
+ * was mostly empty, the prefetch doubles as long as the throughput improves. Otherwise it halves
+ * as long as the throughput holds, since every delivery sitting in the buffer adds to the delivery
+ * latency, estimated from the buffer fill and the rate. The prefetch then settles on the smallest
+ * value that reached the best rate, and the search starts over from there periodically, or as soon
+ * as the rate or the buffer latency drift away from the settled values.
+ *
+ * <p>Used by a single sampler thread, no synchronization needed.
+ */
+class AdaptivePrefetch {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptivePrefetch.class);
+
+    static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // a window must beat the best rate by this much to count as an improvement, and may fall
+    // short of it by this much to count as holding it
+    private static final double MIN_IMPROVEMENT = 0.05;
+    // above this buffer fill ratio the consumer, not the prefetch, is the bottleneck
+    private static final double SATURATED_OCCUPANCY = 0.5;
+    // a settled value is searched again after this many windows
+    private static final int REEVALUATE_WINDOWS = 30;
+    // or once the rate changes by this ratio
+    private static final double RATE_DRIFT = 0.25;
+    // or the buffer latency grows by this factor, and by at least a millisecond
+    private static final double LATENCY_DRIFT = 2;
+
+    private enum Phase { START, UP, DOWN, SETTLED }
+
+    private final String name;
+    private final int max;
+
+    private Phase phase = Phase.START;
+    private int prefetch;
+    private int bestPrefetch;
+    private double bestRate;
+    private double bestLatencyMillis;
+    private int settledWindows;
+    private int settledPrefetch;
+
+    private long windowStart;
+    private long deliveries;
+    private long occupancySum;
+    private long waitNanos;
+
+    AdaptivePrefetch(String name, int initial, int max) {
+        this.name = name;
+        this.max = Math.max(1, max);
+        this.prefetch = Math.min(Math.max(1, initial), this.max);
+        this.bestPrefetch = prefetch;
+        this.windowStart = System.nanoTime();
+    }
+
+    int current() {
+        return prefetch;
+    }
+
+    /**
+     * Record a delivery taken from the hand-off buffer.
+     *
+     * @param occupancy deliveries left in the buffer
+     * @param waited nanoseconds the sampler waited for the delivery
+     * @param now current {@link System#nanoTime()}
+     * @return the new prefetch count if it should change, {@code -1} otherwise
+     */
+    int delivered(int occupancy, long waited, long now) {
+        deliveries++;
+        occupancySum += occupancy;
+        waitNanos += waited;
+
+        long elapsed = now - windowStart;
+
+        if (elapsed < WINDOW_NANOS) {
+            return -1;
+        }
+
+        double rate = deliveries * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        double occupancyMean = (double) occupancySum / deliveries;
+        double fill = occupancyMean / prefetch;
+        double waitMillis = (double) waitNanos / deliveries / TimeUnit.MILLISECONDS.toNanos(1);
+        // by Little's law, the time a delivery spends in the buffer
+        double latencyMillis = occupancyMean / rate * TimeUnit.SECONDS.toMillis(1);
+
+        log.debug("{}: prefetch {}, {} msg/s, buffer fill {}, buffer latency {} ms, wait {} ms", name, prefetch,
+                Math.round(rate), String.format("%.2f", fill), String.format("%.3f", latencyMillis),
+                String.format("%.3f", waitMillis));
+
+        windowStart = now;
+        deliveries = 0;
+        occupancySum = 0;
+        waitNanos = 0;
+
+        int previous = prefetch;
+
+        adjust(rate, fill >= SATURATED_OCCUPANCY || waitMillis == 0, latencyMillis);
+
+        return prefetch != previous ? prefetch : -1;
+    }
+
+    private void adjust(double rate, boolean saturated, double latencyMillis) {
+        switch (phase) {
+            case UP:
+                if (rate > bestRate * (1 + MIN_IMPROVEMENT)) {
+                    best(rate, latencyMillis);
+
+                    if (!saturated && prefetch < max) {
+                        step(Math.min(max, prefetch * 2), rate);
+                        return;
+                    }
+                }
+
+                // no gain from the last increase
+                settle();
+                break;
+            case DOWN:
+                if (rate >= bestRate * (1 - MIN_IMPROVEMENT)) {
+                    // the smaller value keeps up and holds fewer deliveries back
+                    best(Math.max(bestRate, rate), latencyMillis);
+
+                    if (prefetch > 1) {
+                        step(prefetch / 2, rate);
+                        return;
+                    }
+                }
+
+                settle();
+                break;
+            case SETTLED:
+                boolean rateDrift = Math.abs(rate - bestRate) > bestRate * RATE_DRIFT;
+                boolean latencyDrift = latencyMillis > Math.max(bestLatencyMillis * LATENCY_DRIFT, bestLatencyMillis + 1);
+
+                if (++settledWindows >= REEVALUATE_WINDOWS || rateDrift || latencyDrift) {
+                    log.debug("{}: searching again from prefetch {}", name, prefetch);
+                    probe(rate, saturated, latencyMillis);
+                }
+                break;
+            default:
+                probe(rate, saturated, latencyMillis);
+                break;
+        }
+    }
+
+    /**
+     * Take the current value as the best one and try the neighbour in the direction the consumer
+     * asks for: up while it is starved, down otherwise.
+     */
+    private void probe(double rate, boolean saturated, double latencyMillis) {
+        best(rate, latencyMillis);
+
+        if (!saturated && prefetch < max) {
+            phase = Phase.UP;
+            step(Math.min(max, prefetch * 2), rate);
+        } else if (prefetch > 1) {
+            phase = Phase.DOWN;
+            step(prefetch / 2, rate);
+        } else {
+            settle();
+        }
+    }
+
+    private void best(double rate, double latencyMillis) {
+        bestRate = rate;
+        bestPrefetch = prefetch;
+        bestLatencyMillis = latencyMillis;
+    }
+
+    private void step(int next, double rate) {
+        log.info("{}: adaptive prefetch {} -> {} ({} msg/s)", name, prefetch, next, Math.round(rate));
+        prefetch = next;
+    }
+
+    private void settle() {
+        phase = Phase.SETTLED;
+        settledWindows = 0;
+        prefetch = bestPrefetch;
+
+        if (prefetch != settledPrefetch) {
+            log.info("{}: adaptive prefetch settled on {} ({} msg/s)", name, prefetch, Math.round(bestRate));
+            settledPrefetch = prefetch;
+        }
+    }
+}
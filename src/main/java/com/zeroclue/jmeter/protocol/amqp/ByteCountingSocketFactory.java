@@ -0,0 +1,151 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.SocketFactory;
+
+/**
+ * Creates plain TCP sockets which count the bytes written to and read from the wire, frame
+ * headers, heartbeats and protocol methods included. Compared with the message bodies this
+ * gives the protocol overhead, and over time the wire throughput of a connection.
+ *
+ * <p>The client reads on its connection thread while samplers write, so the counters are
+ * lock-free; they only ever grow and readers take differences. One instance per connection
+ * factory, shared by the connections it opens one after the other.
+ */
+public class ByteCountingSocketFactory extends SocketFactory {
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+
+    /**
+     * @return the bytes written by all sockets of this factory
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return the bytes read by all sockets of this factory
+     */
+    public long getReceived() {
+        return received.sum();
+    }
+
+    // the client creates unconnected sockets and connects them itself
+    @Override
+    public Socket createSocket() {
+        return new CountingSocket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return connected(new CountingSocket(), new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        Socket socket = new CountingSocket();
+        socket.bind(new InetSocketAddress(localHost, localPort));
+        return connected(socket, new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return connected(new CountingSocket(), new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        Socket socket = new CountingSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        return connected(socket, new InetSocketAddress(address, port));
+    }
+
+    private static Socket connected(Socket socket, SocketAddress address) throws IOException {
+        socket.connect(address);
+        return socket;
+    }
+
+    private class CountingSocket extends Socket {
+
+        private InputStream in;
+        private OutputStream out;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new CountingInputStream(super.getInputStream());
+            }
+
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new CountingOutputStream(super.getOutputStream());
+            }
+
+            return out;
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+
+            if (b >= 0) {
+                received.increment();
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+
+            if (count > 0) {
+                received.add(count);
+            }
+
+            return count;
+        }
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            sent.increment();
+        }
+
+        // FilterOutputStream writes arrays byte by byte, pass them through in one go
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            sent.add(len);
+        }
+    }
+}
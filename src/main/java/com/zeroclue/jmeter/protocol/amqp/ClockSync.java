@@ -0,0 +1,309 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Estimates the clock offset between load generators over the broker, so that latencies
+ * computed from the send time of a message published on another host can be corrected.
+ *
+ * <p>Each JVM which stamps send times answers pings on its own control queue,
+ * {@code <control queue>.<clock id>}, and stamps its clock id next to the send time. A consumer
+ * meeting an unknown clock id pings that queue NTP-style in the background: with t1 and t4 the
+ * local send and receive times and t2 and t3 the peer's receive and reply times, the offset is
+ * {@code ((t2 - t1) + (t3 - t4)) / 2} and the error is bounded by half the round trip minus the
+ * peer's time, {@code ((t4 - t1) - (t3 - t2)) / 2}. The round with the smallest bound wins.
+ * Estimates are refreshed every {@link #REFRESH_MILLIS}.
+ *
+ * <p>The bound assumes the two legs of the round trip take equally long; it does not cover
+ * routes which are asymmetric by more than that.
+ */
+public final class ClockSync {
+
+    private static final Logger log = LoggerFactory.getLogger(ClockSync.class);
+
+    /** Clock id of the JVM which stamped the send time. */
+    public static final String CLOCK_ID_HEADER = "x-clock-id";
+
+    /** Prefix of the control queues, followed by the clock id. */
+    public static final String DEFAULT_CONTROL_QUEUE = "jmeter.clock";
+
+    private static final String PEER_RECEIVED_HEADER = "x-clock-t2";
+    private static final String PEER_SENT_HEADER = "x-clock-t3";
+
+    static final int ROUNDS = 8;
+    static final long REFRESH_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    // failed or unanswered syncs are retried at most this often
+    static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    static final long PING_TIMEOUT_MILLIS = 1000;
+
+    private static final String ID = Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+    private static final Map<String, Estimate> ESTIMATES = new ConcurrentHashMap<>();
+    private static final Map<String, Long> ATTEMPTS = new ConcurrentHashMap<>();
+
+    // guarded by ClockSync.class
+    private static volatile Channel responder;
+    private static volatile Connection syncConnection;
+    private static ExecutorService executor;
+
+    private ClockSync() {
+    }
+
+    /**
+     * Offset of a peer clock: add it to a latency computed from a peer send time.
+     */
+    public static final class Estimate {
+
+        static final Estimate LOCAL = new Estimate(0, 0);
+
+        private final long offset;
+        private final long errorBound;
+        private final long time = System.currentTimeMillis();
+
+        Estimate(long offset, long errorBound) {
+            this.offset = offset;
+            this.errorBound = errorBound;
+        }
+
+        /**
+         * @return peer clock minus local clock in milliseconds
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the most the offset can be wrong by, in milliseconds
+         */
+        public long getErrorBound() {
+            return errorBound;
+        }
+
+        @Override
+        public String toString() {
+            return offset + " ms ± " + errorBound + " ms";
+        }
+    }
+
+    /**
+     * @return the clock id of this JVM
+     */
+    public static String id() {
+        return ID;
+    }
+
+    /**
+     * Answer pings on the control queue of this JVM, unless already answering. The responder
+     * lives on the given connection and is opened again on the next call if that connection closed.
+     */
+    public static void serve(Connection connection, String controlQueue) throws IOException {
+        Channel current = responder;
+
+        if (current != null && current.isOpen()) {
+            return;
+        }
+
+        synchronized (ClockSync.class) {
+            if (responder != null && responder.isOpen()) {
+                return;
+            }
+
+            Channel channel = connection.createChannel();
+            String queue = controlQueue + "." + ID;
+
+            channel.queueDeclare(queue, false, true, true, null);
+            channel.basicConsume(queue, true, (consumerTag, delivery) -> {
+                long received = System.currentTimeMillis();
+                AMQP.BasicProperties request = delivery.getProperties();
+
+                if (request.getReplyTo() == null) {
+                    return;
+                }
+
+                Map<String, Object> headers = new HashMap<>();
+                headers.put(PEER_RECEIVED_HEADER, received);
+                headers.put(PEER_SENT_HEADER, System.currentTimeMillis());
+
+                channel.basicPublish("", request.getReplyTo(), new AMQP.BasicProperties.Builder()
+                        .correlationId(request.getCorrelationId()).headers(headers).build(), new byte[0]);
+            }, consumerTag -> { });
+
+            responder = channel;
+            log.info("Answering clock pings on {}", queue);
+        }
+    }
+
+    /**
+     * @param connection used to ping the peer if there is no estimate yet, may be {@code null}
+     * @return the estimate for the peer clock, {@code null} while there is none; a missing or
+     *     stale estimate is refreshed in the background
+     */
+    public static Estimate estimate(Connection connection, String controlQueue, String peer) {
+        if (ID.equals(peer)) {
+            return Estimate.LOCAL;
+        }
+
+        if (connection != null && connection.isOpen()) {
+            syncConnection = connection;
+        }
+
+        Estimate estimate = ESTIMATES.get(peer);
+        long now = System.currentTimeMillis();
+
+        if (estimate == null || now - estimate.time > REFRESH_MILLIS) {
+            Long attempt = ATTEMPTS.get(peer);
+            // only the thread which updates the attempt time submits the sync
+            boolean due = attempt == null
+                    ? ATTEMPTS.putIfAbsent(peer, now) == null
+                    : now - attempt > RETRY_MILLIS && ATTEMPTS.replace(peer, attempt, now);
+
+            if (due) {
+                submit(() -> sync(controlQueue, peer));
+            }
+        }
+
+        return estimate;
+    }
+
+    private static synchronized void submit(Runnable task) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "amqp-clock-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        executor.execute(task);
+    }
+
+    private static void sync(String controlQueue, String peer) {
+        Connection connection = syncConnection;
+
+        if (connection == null || !connection.isOpen()) {
+            return;
+        }
+
+        Channel channel = null;
+
+        try {
+            channel = connection.createChannel();
+
+            BlockingQueue<AMQP.BasicProperties> replies = new LinkedBlockingQueue<>();
+            String replyQueue = channel.queueDeclare().getQueue();
+            Estimate best = null;
+
+            channel.basicConsume(replyQueue, true, (consumerTag, delivery) -> replies.add(delivery.getProperties()),
+                    consumerTag -> { });
+
+            for (int round = 0; round < ROUNDS; round++) {
+                String correlationId = Integer.toString(round);
+                long t1 = System.currentTimeMillis();
+
+                channel.basicPublish("", controlQueue + "." + peer, new AMQP.BasicProperties.Builder()
+                        .replyTo(replyQueue).correlationId(correlationId).build(), new byte[0]);
+
+                AMQP.BasicProperties reply = awaitReply(replies, correlationId);
+                long t4 = System.currentTimeMillis();
+                Map<String, Object> headers = reply != null && reply.getHeaders() != null
+                        ? reply.getHeaders() : Collections.emptyMap();
+                Object t2 = headers.get(PEER_RECEIVED_HEADER);
+                Object t3 = headers.get(PEER_SENT_HEADER);
+
+                if (!(t2 instanceof Number) || !(t3 instanceof Number)) {
+                    log.debug("Clock ping {} to {} timed out", round, peer);
+                    continue;
+                }
+
+                long peerReceived = ((Number) t2).longValue();
+                long peerSent = ((Number) t3).longValue();
+                long offset = Math.round(((peerReceived - t1) + (peerSent - t4)) / 2.0);
+                // plus one for the resolution of the timestamps
+                long bound = ((t4 - t1) - (peerSent - peerReceived)) / 2 + 1;
+
+                if (best == null || bound < best.errorBound) {
+                    best = new Estimate(offset, bound);
+                }
+            }
+
+            if (best != null) {
+                ESTIMATES.put(peer, best);
+                log.info("Clock offset to {}: {}", peer, best);
+            } else {
+                log.warn("No answer to clock pings on {}.{}", controlQueue, peer);
+            }
+        } catch (IOException | ShutdownSignalException e) {
+            log.warn("Failed to sync the clock with {}", peer, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * @return the reply of the round, skipping late replies of earlier rounds, {@code null} on timeout
+     */
+    private static AMQP.BasicProperties awaitReply(BlockingQueue<AMQP.BasicProperties> replies, String correlationId)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PING_TIMEOUT_MILLIS);
+        long remaining;
+
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            AMQP.BasicProperties reply = replies.poll(remaining, TimeUnit.NANOSECONDS);
+
+            if (reply == null || correlationId.equals(reply.getCorrelationId())) {
+                return reply;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Stop answering, forget the estimates and log them, at the end of the test.
+     */
+    public static synchronized void stop() {
+        closeQuietly(responder);
+        responder = null;
+        syncConnection = null;
+
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+
+        ESTIMATES.forEach((peer, estimate) -> log.info("Final clock offset to {}: {}", peer, estimate));
+        ESTIMATES.clear();
+        ATTEMPTS.clear();
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.close();
+            } catch (IOException | TimeoutException | ShutdownSignalException e) {
+                log.debug("Failed to close clock sync channel", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.Delivery;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency of the dead-letter path, measured on a consumer of a dead-letter queue.
+ *
+ * <p>The most recent {@code x-death} entry gives the reason. For expired messages the latency
+ * runs from the moment the message was due to expire (send time header plus TTL) to its
+ * arrival on the dead-letter queue. For rejected messages it runs from the reject: exact if a
+ * consumer of this JVM rejected the message, otherwise from the {@code x-death} time, which
+ * only has a resolution of one second.
+ *
+ * <p>One instance per sample, the dead-letter rates run from its creation; the reject times are
+ * shared by all threads.
+ */
+public class DeadLetterStats {
+
+    private static final Logger log = LoggerFactory.getLogger(DeadLetterStats.class);
+
+    public static final String DEATH_HEADER = "x-death";
+
+    public static final String EXPIRED  = "expired";
+    public static final String REJECTED = "rejected";
+
+    // reject times not picked up by a dead-letter consumer are dropped beyond this
+    private static final int MAX_PENDING_REJECTS = 1_000_000;
+
+    private static final Map<String, Long> REJECTS = new ConcurrentHashMap<>();
+
+    // per reason: messages, messages with a latency, latency sum and max
+    private final Map<String, long[]> byReason = new TreeMap<>();
+    private final long ttlMillis;
+    private final long started = System.nanoTime();
+
+    /**
+     * @param ttlMillis TTL of the source queue, used if the message carries no expiration of its own
+     */
+    public DeadLetterStats(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Remember when a message was rejected, so the dead-letter consumer can time the path.
+     *
+     * @param sequence the sequence header of the message
+     */
+    public static void rejected(String sequence, long rejectedMillis) {
+        if (REJECTS.size() >= MAX_PENDING_REJECTS) {
+            log.warn("{} reject times not picked up by a dead-letter consumer, dropping them", REJECTS.size());
+            REJECTS.clear();
+        }
+
+        REJECTS.put(sequence, rejectedMillis);
+    }
+
+    /**
+     * Record a delivery taken from a dead-letter queue.
+     */
+    public void record(Delivery delivery, long receivedMillis) {
+        Map<String, Object> headers = delivery.getProperties().getHeaders();
+        Map<?, ?> death = lastDeath(headers);
+
+        if (death == null) {
+            counters("none")[0]++;
+            return;
+        }
+
+        String reason = String.valueOf(death.get("reason"));
+        long[] counters = counters(reason);
+        long latency = -1;
+
+        counters[0]++;
+
+        if (EXPIRED.equals(reason)) {
+            Object sent = headers.get(FanOutTracker.SEND_TIME_HEADER);
+            Object expiration = death.get("original-expiration");
+            long ttl = expiration != null ? NumberUtils.toLong(expiration.toString(), ttlMillis) : ttlMillis;
+
+            if (sent instanceof Number && ttl > 0) {
+                latency = receivedMillis - ((Number) sent).longValue() - ttl;
+            }
+        } else if (REJECTED.equals(reason)) {
+            Object sequence = headers.get(FanOutTracker.SEQUENCE_HEADER);
+            Long rejectedAt = sequence != null ? REJECTS.remove(sequence.toString()) : null;
+
+            if (rejectedAt != null) {
+                latency = receivedMillis - rejectedAt;
+            } else if (death.get("time") instanceof Date) {
+                latency = receivedMillis - ((Date) death.get("time")).getTime();
+            }
+        }
+
+        if (latency >= 0) {
+            counters[1]++;
+            counters[2] += latency;
+            counters[3] = Math.max(counters[3], latency);
+        }
+    }
+
+    private static Map<?, ?> lastDeath(Map<String, Object> headers) {
+        Object deaths = headers != null ? headers.get(DEATH_HEADER) : null;
+
+        if (deaths instanceof List && !((List<?>) deaths).isEmpty() && ((List<?>) deaths).get(0) instanceof Map) {
+            // the most recent death comes first
+            return (Map<?, ?>) ((List<?>) deaths).get(0);
+        }
+
+        return null;
+    }
+
+    private long[] counters(String reason) {
+        return byReason.computeIfAbsent(reason, key -> new long[4]);
+    }
+
+    /**
+     * Add one sub-result per dead-letter reason with timed messages.
+     *
+     * @see SubResults#addAggregate
+     */
+    public void addResults(SampleResult result) {
+        double seconds = elapsedSeconds();
+
+        for (Map.Entry<String, long[]> entry : byReason.entrySet()) {
+            long[] counters = entry.getValue();
+
+            if (counters[1] == 0) {
+                continue;
+            }
+
+            SubResults.addAggregate(result, entry.getKey(), counters[1], counters[2],
+                    String.format(Locale.ROOT, "%d messages, %.1f/s, path latency avg %d ms, max %d ms over %d timed",
+                            counters[0], counters[0] / seconds, counters[2] / counters[1], counters[3], counters[1]));
+        }
+    }
+
+    private double elapsedSeconds() {
+        // at least a millisecond, so a rate is always defined
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)) / 1000.0;
+    }
+
+    /**
+     * @return the messages and their rate per reason, for the response message
+     */
+    @Override
+    public String toString() {
+        double seconds = elapsedSeconds();
+        StringBuilder sb = new StringBuilder();
+
+        for (Map.Entry<String, long[]> entry : byReason.entrySet()) {
+            long messages = entry.getValue()[0];
+
+            sb.append(", ").append(messages).append(' ').append(entry.getKey())
+                    .append(String.format(Locale.ROOT, " (%.1f/s)", messages / seconds));
+        }
+
+        return sb.toString();
+    }
+}
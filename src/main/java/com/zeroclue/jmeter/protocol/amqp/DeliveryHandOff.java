@@ -0,0 +1,95 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.CancelCallback;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the deliveries of one broker consumer to a bounded buffer polled by sampler threads.
+ *
+ * <p>A full buffer holds up the dispatch thread of the client, which is the back pressure
+ * towards the broker, but only while the channel is open and the consumer active: the dispatch
+ * thread is not a daemon and would otherwise stay parked on a buffer nobody polls any more.
+ * Deliveries which cannot be handed off are rejected back to the queue if they still have to
+ * be acknowledged; with automatic acknowledgement they are lost.
+ */
+public class DeliveryHandOff implements DeliverCallback, CancelCallback {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryHandOff.class);
+
+    // how often a blocked dispatch thread checks whether it should give up
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final BlockingQueue<Delivery> buffer;
+    private final Channel channel;
+    private final String queue;
+    private final boolean autoAck;
+
+    private volatile boolean cancelled;
+
+    /**
+     * @param queue the queue to tag the deliveries with as {@link QueuedDelivery}, {@code null}
+     *     to hand them off as they are
+     */
+    public DeliveryHandOff(BlockingQueue<Delivery> buffer, Channel channel, String queue, boolean autoAck) {
+        this.buffer = buffer;
+        this.channel = channel;
+        this.queue = queue;
+        this.autoAck = autoAck;
+    }
+
+    @Override
+    public void handle(String consumerTag, Delivery delivery) {
+        Delivery item = queue != null ? new QueuedDelivery(delivery, queue, channel) : delivery;
+
+        try {
+            while (!cancelled && channel.isOpen()) {
+                if (buffer.offer(item, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        drop(delivery);
+    }
+
+    private void drop(Delivery delivery) {
+        long deliveryTag = delivery.getEnvelope().getDeliveryTag();
+
+        if (autoAck || !channel.isOpen()) {
+            log.debug("Dropped delivery {} of a stopped consumer", deliveryTag);
+            return;
+        }
+
+        try {
+            channel.basicReject(deliveryTag, true);
+        } catch (IOException e) {
+            log.debug("Failed to requeue delivery {} of a stopped consumer", deliveryTag, e);
+        }
+    }
+
+    /**
+     * Called when the broker cancels the consumer.
+     */
+    @Override
+    public void handle(String consumerTag) {
+        cancelled = true;
+    }
+
+    /**
+     * Stop handing off, e.g. before the sampler stops polling the buffer.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+}
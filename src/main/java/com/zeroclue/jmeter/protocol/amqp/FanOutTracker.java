@@ -0,0 +1,143 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the fan-out skew of messages delivered to many subscriber queues, the time between
+ * the first and the last delivery of the same message, across all consumer threads of the JVM.
+ *
+ * <p>Messages are recognized by the sequence header the publisher stamps next to the send
+ * time. Subscriber queues are counted per scope, the exchange and routing key they are bound
+ * with, so consumers bound elsewhere do not hold up completion. A message is complete once it
+ * was delivered as many times as there are subscriber queues in its scope; messages still
+ * incomplete after {@link #PENDING_TIMEOUT_MILLIS} (e.g. because subscribers joined during the
+ * ramp-up) are dropped and only counted.
+ */
+public final class FanOutTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(FanOutTracker.class);
+
+    /** Publish time in milliseconds since the epoch. */
+    public static final String SEND_TIME_HEADER = "x-send-time";
+
+    /** Identifies the message across the subscriber queues, {@code publisher:sequence}. */
+    public static final String SEQUENCE_HEADER = "x-message-seq";
+
+    static final long PENDING_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    // pending messages are scanned for timeouts at most this often
+    private static final long EVICT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final Map<String, AtomicInteger> SUBSCRIBERS = new ConcurrentHashMap<>();
+    private static final Map<String, long[]> PENDING = new ConcurrentHashMap<>();
+    private static final Recorder SKEW = new Recorder(3);
+    private static final AtomicLong INCOMPLETE = new AtomicLong();
+    private static final AtomicLong LAST_EVICTION = new AtomicLong();
+
+    // indexes into the pending entries
+    private static final int FIRST = 0;
+    private static final int LAST = 1;
+    private static final int COUNT = 2;
+
+    private FanOutTracker() {
+    }
+
+    /**
+     * @return the scope of the subscriber queues bound to the exchange with the routing key
+     */
+    public static String scope(String exchange, String routingKey) {
+        return exchange + "/" + routingKey;
+    }
+
+    public static void subscribersAdded(String scope, int count) {
+        SUBSCRIBERS.computeIfAbsent(scope, key -> new AtomicInteger()).addAndGet(count);
+    }
+
+    public static void subscribersRemoved(String scope, int count) {
+        AtomicInteger subscribers = SUBSCRIBERS.get(scope);
+
+        if (subscribers != null) {
+            subscribers.addAndGet(-count);
+        }
+    }
+
+    /**
+     * Record one delivery of a message.
+     *
+     * @param scope the scope of the queue the message was delivered from, see {@link #scope}
+     * @param sequence the sequence header of the message
+     * @param receivedMillis when the delivery was taken, milliseconds since the epoch
+     * @return the fan-out skew in milliseconds if this was the last delivery of the message, -1 otherwise
+     */
+    public static long delivered(String scope, String sequence, long receivedMillis) {
+        AtomicInteger scopeSubscribers = SUBSCRIBERS.get(scope);
+        int subscribers = scopeSubscribers != null ? scopeSubscribers.get() : 0;
+        long[] complete = new long[1];
+        complete[0] = -1;
+
+        // a message matching several bindings completes in each scope on its own
+        PENDING.compute(scope + " " + sequence, (key, entry) -> {
+            long[] updated = entry != null ? entry : new long[] {receivedMillis, receivedMillis, 0};
+
+            updated[FIRST] = Math.min(updated[FIRST], receivedMillis);
+            updated[LAST] = Math.max(updated[LAST], receivedMillis);
+            updated[COUNT]++;
+
+            if (updated[COUNT] >= subscribers) {
+                complete[0] = updated[LAST] - updated[FIRST];
+                return null;
+            }
+
+            return updated;
+        });
+
+        if (complete[0] >= 0) {
+            SKEW.recordValue(complete[0]);
+        }
+
+        evictExpired(receivedMillis);
+
+        return complete[0];
+    }
+
+    private static void evictExpired(long now) {
+        long last = LAST_EVICTION.get();
+
+        if (now - last < EVICT_INTERVAL_MILLIS || !LAST_EVICTION.compareAndSet(last, now)) {
+            return;
+        }
+
+        for (Iterator<long[]> it = PENDING.values().iterator(); it.hasNext(); ) {
+            if (now - it.next()[FIRST] > PENDING_TIMEOUT_MILLIS) {
+                it.remove();
+                INCOMPLETE.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Log the skew distribution of the test and start over.
+     */
+    public static void report() {
+        Histogram skew = SKEW.getIntervalHistogram();
+        long incomplete = INCOMPLETE.getAndSet(0) + PENDING.size();
+
+        PENDING.clear();
+
+        if (skew.getTotalCount() > 0 || incomplete > 0) {
+            log.info("Fan-out skew over {} messages: p50 {} ms, p99 {} ms, max {} ms, {} incomplete",
+                    skew.getTotalCount(), skew.getValueAtPercentile(50), skew.getValueAtPercentile(99),
+                    skew.getMaxValue(), incomplete);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.AddressResolver;
+import com.rabbitmq.client.ListAddressResolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Orders the configured cluster nodes for a new connection, so that connections of
+ * different threads spread over the nodes instead of all landing on the first one.
+ *
+ * <p>Hosts are given as {@code host[:port][*weight]}, separated by commas. The remaining
+ * nodes stay in the list as fail-over candidates. The client shuffles address lists on its
+ * own, so the resolver returned here keeps the order chosen by the policy.
+ */
+public final class HostDistribution {
+
+    private static final Logger log = LoggerFactory.getLogger(HostDistribution.class);
+
+    public static final String ORDERED     = "ordered";
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String SHUFFLE     = "shuffle";
+    public static final String WEIGHTED    = "weighted";
+
+    public static final String[] POLICIES = new String[] {
+        ORDERED,
+        ROUND_ROBIN,
+        SHUFFLE,
+        WEIGHTED
+    };
+
+    public static final String DEFAULT_POLICY = SHUFFLE;
+
+    private static final AtomicInteger NEXT_NODE = new AtomicInteger();
+
+    private HostDistribution() {
+    }
+
+    /**
+     * @param hosts comma separated {@code host[:port][*weight]} list
+     * @param defaultPort port used for hosts without an explicit one
+     * @param policy one of {@link #POLICIES}
+     * @return the resolver to pass to the connection factory, preferred node first
+     */
+    public static AddressResolver resolver(String hosts, int defaultPort, String policy) {
+        List<Address> addresses = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+
+        for (String host : StringUtils.split(hosts, ',')) {
+            String spec = host.trim();
+            int weight = 1;
+            int star = spec.lastIndexOf('*');
+
+            if (star > 0) {
+                weight = NumberUtils.toInt(spec.substring(star + 1).trim(), -1);
+                spec = spec.substring(0, star).trim();
+            }
+
+            Address address = weight >= 0 ? parseAddress(spec) : null;
+
+            if (address == null) {
+                log.warn("Ignoring invalid host {}, expected host[:port][*weight]", host.trim());
+                continue;
+            }
+
+            if (address.getPort() < 0) {
+                address = new Address(address.getHost(), defaultPort);
+            }
+
+            addresses.add(address);
+            weights.add(weight);
+        }
+
+        if (addresses.size() > 1) {
+            order(addresses, weights, policy);
+        }
+
+        return new FixedOrderResolver(addresses);
+    }
+
+    /**
+     * @return the address, {@code null} if the port is not a number
+     */
+    private static Address parseAddress(String spec) {
+        try {
+            return Address.parseAddress(spec);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void order(List<Address> addresses, List<Integer> weights, String policy) {
+        int size = addresses.size();
+
+        if (ROUND_ROBIN.equals(policy)) {
+            Collections.rotate(addresses, -Math.floorMod(NEXT_NODE.getAndIncrement(), size));
+        } else if (SHUFFLE.equals(policy)) {
+            Collections.shuffle(addresses, ThreadLocalRandom.current());
+        } else if (WEIGHTED.equals(policy)) {
+            int total = 0;
+
+            for (int weight : weights) {
+                total += weight;
+            }
+
+            if (total > 0) {
+                int pick = ThreadLocalRandom.current().nextInt(total);
+                int idx = 0;
+
+                while (pick >= weights.get(idx)) {
+                    pick -= weights.get(idx);
+                    idx++;
+                }
+
+                addresses.add(0, addresses.remove(idx));
+            }
+        }
+    }
+
+    private static final class FixedOrderResolver extends ListAddressResolver {
+
+        FixedOrderResolver(List<Address> addresses) {
+            super(addresses);
+        }
+
+        @Override
+        public List<Address> maybeShuffle(List<Address> input) {
+            return input;
+        }
+
+        @Override
+        public String toString() {
+            return getAddresses().toString();
+        }
+    }
+}
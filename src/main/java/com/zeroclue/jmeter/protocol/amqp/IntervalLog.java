@@ -0,0 +1,210 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes HdrHistogram interval logs, one file per sampler label with one tag per measure, for
+ * analysis with the standard histogram tools instead of result files.
+ *
+ * <p>Samplers record into a {@link Recorder} per label and measure, shared by all threads of the
+ * label; a background thread writes the interval histograms of all recorders at a fixed interval.
+ * Values are in microseconds and timestamps are absolute, so logs from several load generators
+ * can be merged as they are. The logs are closed, after a last interval, once the last sampler
+ * thread using them has finished. A log reopened later in the same test, e.g. by a thread group
+ * started after the others finished, is appended to; the first open in a test truncates it.
+ */
+public final class IntervalLog {
+
+    private static final Logger log = LoggerFactory.getLogger(IntervalLog.class);
+
+    /** Time taken by the publish call. */
+    public static final String PUBLISH = "publish";
+
+    /** Time from the publish to the broker confirm. */
+    public static final String CONFIRM = "confirm";
+
+    /** Time from the send time stamped by the publisher to the delivery. */
+    public static final String END_TO_END = "end-to-end";
+
+    /** Time the consumer waited for the next delivery. */
+    public static final String WAIT = "wait";
+
+    public static final String FILE_SUFFIX = ".hlog";
+
+    // the max column of the log in milliseconds
+    private static final double MAX_VALUE_UNIT_RATIO = 1000.0;
+
+    // guarded by IntervalLog.class
+    private static final Map<String, LabelLog> LOGS = new LinkedHashMap<>();
+    private static ScheduledExecutorService flusher;
+    private static int users;
+    // files opened since the test started
+    private static final Set<String> OPENED = new HashSet<>();
+    private static long openedInTest;
+
+    private IntervalLog() {
+    }
+
+    /**
+     * Log of one sampler label.
+     */
+    private static final class LabelLog {
+        private final PrintStream out;
+        private final HistogramLogWriter writer;
+        private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+        private final Map<String, Histogram> intervals = new HashMap<>();
+
+        /**
+         * @param append whether to continue a log written earlier in the test, without a new header
+         */
+        LabelLog(File file, String label, boolean append) throws IOException {
+            this.out = new PrintStream(new FileOutputStream(file, append), false, StandardCharsets.UTF_8.name());
+            this.writer = new HistogramLogWriter(out);
+
+            if (append) {
+                writer.outputComment("[" + label + " resumed]");
+            } else {
+                writer.outputComment("[" + label + " on " + hostName() + ", values in microseconds]");
+                writer.outputLogFormatVersion();
+                writer.outputStartTime(System.currentTimeMillis());
+                writer.outputLegend();
+            }
+
+            out.flush();
+        }
+
+        Recorder recorder(String measure) {
+            return recorders.computeIfAbsent(measure, tag -> new Recorder(3));
+        }
+
+        void flush() {
+            for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+                Histogram interval = entry.getValue().getIntervalHistogram(intervals.get(entry.getKey()));
+
+                intervals.put(entry.getKey(), interval);
+                interval.setTag(entry.getKey());
+                writer.outputIntervalHistogram(interval.getStartTimeStamp() / 1000.0,
+                        interval.getEndTimeStamp() / 1000.0, interval, MAX_VALUE_UNIT_RATIO);
+            }
+
+            out.flush();
+        }
+
+        boolean close() {
+            flush();
+            out.close();
+            return !out.checkError();
+        }
+    }
+
+    /**
+     * Register a sampler thread, the first one starts the background flush.
+     *
+     * @param intervalMillis interval of the log, taken from the first thread
+     */
+    public static synchronized void open(long intervalMillis) {
+        users++;
+
+        if (flusher == null) {
+            long interval = Math.max(1, intervalMillis);
+
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "amqp-interval-log");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleAtFixedRate(IntervalLog::flush, interval, interval, TimeUnit.MILLISECONDS);
+            log.info("Writing histogram interval logs every {} ms", interval);
+        }
+    }
+
+    /**
+     * @return the recorder of a measure in the log of the label, created on first use
+     */
+    public static synchronized Recorder recorder(String directory, String label, String measure) throws IOException {
+        File file = new File(directory, fileName(label));
+        String key = file.getAbsolutePath();
+        LabelLog labelLog = LOGS.get(key);
+
+        if (labelLog == null) {
+            File dir = file.getParentFile();
+
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create directory " + dir);
+            }
+
+            long testStart = JMeterContextService.getTestStartTime();
+
+            if (testStart != openedInTest) {
+                OPENED.clear();
+                openedInTest = testStart;
+            }
+
+            labelLog = new LabelLog(file, label, !OPENED.add(key));
+            LOGS.put(key, labelLog);
+            log.info("Histogram interval log of {} in {}", label, file);
+        }
+
+        return labelLog.recorder(measure);
+    }
+
+    private static String fileName(String label) {
+        return label.replaceAll("[^A-Za-z0-9._-]", "_") + FILE_SUFFIX;
+    }
+
+    private static synchronized void flush() {
+        for (LabelLog labelLog : LOGS.values()) {
+            labelLog.flush();
+        }
+    }
+
+    /**
+     * Unregister a sampler thread; the last one writes the final intervals and closes the logs.
+     */
+    public static synchronized void release() {
+        if (users == 0 || --users > 0) {
+            return;
+        }
+
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+
+        LOGS.forEach((file, labelLog) -> {
+            if (!labelLog.close()) {
+                log.warn("Failed to write histogram interval log {}", file);
+            }
+        });
+        LOGS.clear();
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown host";
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Message body compiled once into encoded static segments and typed placeholders, so that
+ * varying payloads are rendered straight into bytes instead of going through JMeter functions
+ * and a string encode on every message.
+ *
+ * <p>Placeholders are written {@code {{...}}}, since {@code ${...}} is taken by JMeter:
+ * <ul>
+ * <li>{@code {{seq}}} counts the messages of the thread from 1</li>
+ * <li>{@code {{uuid}}} is a random UUID</li>
+ * <li>{@code {{timestamp}}} is the current time in milliseconds since the epoch</li>
+ * <li>{@code {{random:min:max}}} is a random integer from min to max, both included</li>
+ * <li>{@code {{csv:file:column}}} is a column of a CSV file, counted from 0. The file is read
+ *     once per JVM and its rows are handed out in turn across all threads, each message taking
+ *     one row for all its placeholders of that file. Fields are split on commas, without quoting.</li>
+ * </ul>
+ * Invalid placeholders are kept as text.
+ *
+ * <p>Bodies of the same length share one array, which is overwritten by the next render: the
+ * client copies the body into its frames before {@code basicPublish} returns. Not thread-safe;
+ * one instance per sampler thread.
+ */
+public class MessageTemplate {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageTemplate.class);
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{([^{}]+)\\}\\}");
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final int UUID_LENGTH = 36;
+    // digits of Long.MIN_VALUE with its sign
+    private static final int MAX_LONG_LENGTH = 20;
+
+    private static final int SEQUENCE  = 0;
+    private static final int UUID      = 1;
+    private static final int TIMESTAMP = 2;
+    private static final int RANDOM    = 3;
+    private static final int CSV       = 4;
+
+    // guarded by itself
+    private static final Map<String, CsvFile> CSV_FILES = new HashMap<>();
+
+    private final String source;
+    // static segment i is followed by placeholder i, the last segment by none
+    private final byte[][] segments;
+    private final int[] kinds;
+    private final long[] mins;
+    private final long[] bounds;
+    private final int[] columns;
+    private final int[] files;
+    private final CsvFile[] csvFiles;
+    private final boolean varying;
+
+    private final int[] rows;
+    private byte[] buffer;
+    private final Map<Integer, byte[]> bodies = new HashMap<>();
+    private byte[] lastBody;
+    private long sequence;
+
+    /**
+     * Rows of a CSV file, read once per JVM and shared by all threads.
+     */
+    private static final class CsvFile {
+        private final byte[][][] rows;
+        private final AtomicLong next = new AtomicLong();
+
+        CsvFile(byte[][][] rows) {
+            this.rows = rows;
+        }
+
+        int nextRow() {
+            return (int) ((next.getAndIncrement() & Long.MAX_VALUE) % rows.length);
+        }
+
+        byte[] field(int row, int column) {
+            byte[][] fields = rows[row];
+            return column < fields.length ? fields[column] : new byte[0];
+        }
+    }
+
+    public MessageTemplate(String source) {
+        this.source = StringUtils.defaultString(source);
+
+        List<byte[]> segmentList = new ArrayList<>();
+        List<long[]> placeholders = new ArrayList<>();
+        List<CsvFile> fileList = new ArrayList<>();
+        List<String> filePaths = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        Matcher matcher = PLACEHOLDER.matcher(this.source);
+        int end = 0;
+
+        while (matcher.find()) {
+            text.append(this.source, end, matcher.start());
+            end = matcher.end();
+
+            long[] placeholder = parse(matcher.group(1), fileList, filePaths);
+
+            if (placeholder == null) {
+                log.warn("Keeping invalid placeholder {} as text", matcher.group());
+                text.append(matcher.group());
+                continue;
+            }
+
+            segmentList.add(text.toString().getBytes(StandardCharsets.UTF_8));
+            placeholders.add(placeholder);
+            text.setLength(0);
+        }
+
+        text.append(this.source, end, this.source.length());
+        segmentList.add(text.toString().getBytes(StandardCharsets.UTF_8));
+
+        int count = placeholders.size();
+
+        this.segments = segmentList.toArray(new byte[0][]);
+        this.kinds = new int[count];
+        this.mins = new long[count];
+        this.bounds = new long[count];
+        this.columns = new int[count];
+        this.files = new int[count];
+
+        for (int idx = 0; idx < count; idx++) {
+            long[] placeholder = placeholders.get(idx);
+            kinds[idx] = (int) placeholder[0];
+            mins[idx] = placeholder[1];
+            bounds[idx] = placeholder[2];
+            columns[idx] = (int) placeholder[3];
+            files[idx] = (int) placeholder[4];
+        }
+
+        this.csvFiles = fileList.toArray(new CsvFile[0]);
+        this.rows = new int[csvFiles.length];
+        this.varying = count > 0;
+
+        int staticLength = 0;
+
+        for (byte[] segment : segments) {
+            staticLength += segment.length;
+        }
+
+        this.buffer = new byte[staticLength + count * UUID_LENGTH];
+    }
+
+    /**
+     * @return kind, min, bound, column and file index of the placeholder, {@code null} if it is invalid
+     */
+    private static long[] parse(String spec, List<CsvFile> fileList, List<String> filePaths) {
+        String name = StringUtils.substringBefore(spec, ":").trim();
+
+        switch (name) {
+            case "seq":
+                return new long[] {SEQUENCE, 0, 0, 0, 0};
+            case "uuid":
+                return new long[] {UUID, 0, 0, 0, 0};
+            case "timestamp":
+                return new long[] {TIMESTAMP, 0, 0, 0, 0};
+            case "random": {
+                String[] range = StringUtils.split(StringUtils.substringAfter(spec, ":"), ':');
+                long min = range.length == 2 ? NumberUtils.toLong(range[0].trim(), Long.MIN_VALUE) : Long.MIN_VALUE;
+                long max = range.length == 2 ? NumberUtils.toLong(range[1].trim(), Long.MIN_VALUE) : Long.MIN_VALUE;
+
+                if (min == Long.MIN_VALUE || max == Long.MIN_VALUE || max < min || max - min + 1 <= 0) {
+                    return null;
+                }
+
+                return new long[] {RANDOM, min, max - min + 1, 0, 0};
+            }
+            case "csv": {
+                String rest = StringUtils.substringAfter(spec, ":");
+                // the column follows the last colon, the path may hold colons of its own
+                String path = StringUtils.substringBeforeLast(rest, ":").trim();
+                int column = NumberUtils.toInt(StringUtils.substringAfterLast(rest, ":").trim(), -1);
+
+                if (path.isEmpty() || column < 0) {
+                    return null;
+                }
+
+                int file = filePaths.indexOf(path);
+
+                if (file < 0) {
+                    CsvFile csv = csvFile(path);
+
+                    if (csv == null) {
+                        return null;
+                    }
+
+                    file = fileList.size();
+                    fileList.add(csv);
+                    filePaths.add(path);
+                }
+
+                return new long[] {CSV, 0, 0, column, file};
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static CsvFile csvFile(String path) {
+        synchronized (CSV_FILES) {
+            CsvFile file = CSV_FILES.get(path);
+
+            if (file == null) {
+                try {
+                    List<byte[][]> rows = new ArrayList<>();
+
+                    for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+                        if (line.isEmpty()) {
+                            continue;
+                        }
+
+                        String[] fields = line.split(",", -1);
+                        byte[][] encoded = new byte[fields.length][];
+
+                        for (int idx = 0; idx < fields.length; idx++) {
+                            encoded[idx] = fields[idx].getBytes(StandardCharsets.UTF_8);
+                        }
+
+                        rows.add(encoded);
+                    }
+
+                    if (rows.isEmpty()) {
+                        log.warn("CSV file {} of the message template is empty", path);
+                        return null;
+                    }
+
+                    file = new CsvFile(rows.toArray(new byte[0][][]));
+                    CSV_FILES.put(path, file);
+                    log.info("Read {} rows of {} for message templates", rows.size(), path);
+                } catch (IOException e) {
+                    log.warn("Failed to read CSV file {} of the message template", path, e);
+                    return null;
+                }
+            }
+
+            return file;
+        }
+    }
+
+    /**
+     * @return the template text this was compiled from
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return whether the rendered bodies differ from message to message
+     */
+    public boolean isVarying() {
+        return varying;
+    }
+
+    /**
+     * Render the next message body.
+     *
+     * @return the body, valid until the next render of a body of the same length
+     */
+    public byte[] render() {
+        for (int idx = 0; idx < csvFiles.length; idx++) {
+            rows[idx] = csvFiles[idx].nextRow();
+        }
+
+        sequence++;
+
+        int length = 0;
+
+        for (int idx = 0; idx < kinds.length; idx++) {
+            length = append(segments[idx], length);
+            length = appendPlaceholder(idx, length);
+        }
+
+        length = append(segments[segments.length - 1], length);
+
+        byte[] body = lastBody;
+
+        // most bodies keep their length, look up the others
+        if (body == null || body.length != length) {
+            body = bodies.computeIfAbsent(length, byte[]::new);
+            lastBody = body;
+        }
+
+        System.arraycopy(buffer, 0, body, 0, length);
+
+        return body;
+    }
+
+    private int appendPlaceholder(int idx, int offset) {
+        switch (kinds[idx]) {
+            case SEQUENCE:
+                return appendLong(sequence, offset);
+            case UUID:
+                return appendUuid(offset);
+            case TIMESTAMP:
+                return appendLong(System.currentTimeMillis(), offset);
+            case RANDOM:
+                return appendLong(mins[idx] + ThreadLocalRandom.current().nextLong(bounds[idx]), offset);
+            default:
+                return append(csvFiles[files[idx]].field(rows[files[idx]], columns[idx]), offset);
+        }
+    }
+
+    private int append(byte[] bytes, int offset) {
+        ensureCapacity(offset + bytes.length);
+        System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    private int appendLong(long value, int offset) {
+        ensureCapacity(offset + MAX_LONG_LENGTH);
+
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value).getBytes(StandardCharsets.US_ASCII), offset);
+        }
+
+        int pos = offset;
+        long remaining = value;
+
+        if (remaining < 0) {
+            buffer[pos++] = '-';
+            remaining = -remaining;
+        }
+
+        int start = pos;
+
+        do {
+            buffer[pos++] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining > 0);
+
+        // digits were written least significant first
+        for (int lo = start, hi = pos - 1; lo < hi; lo++, hi--) {
+            byte digit = buffer[lo];
+            buffer[lo] = buffer[hi];
+            buffer[hi] = digit;
+        }
+
+        return pos;
+    }
+
+    private int appendUuid(int offset) {
+        ensureCapacity(offset + UUID_LENGTH);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // version 4, IETF variant
+        long high = (random.nextLong() & ~0xf000L) | 0x4000L;
+        long low = (random.nextLong() & ~(0xcL << 60)) | (0x8L << 60);
+        int pos = offset;
+
+        pos = appendHex(high >>> 32, 8, pos);
+        buffer[pos++] = '-';
+        pos = appendHex(high >>> 16, 4, pos);
+        buffer[pos++] = '-';
+        pos = appendHex(high, 4, pos);
+        buffer[pos++] = '-';
+        pos = appendHex(low >>> 48, 4, pos);
+        buffer[pos++] = '-';
+
+        return appendHex(low, 12, pos);
+    }
+
+    private int appendHex(long value, int digits, int offset) {
+        for (int idx = digits - 1; idx >= 0; idx--) {
+            buffer[offset + idx] = HEX[(int) (value >>> ((digits - 1 - idx) * 4)) & 0xf];
+        }
+
+        return offset + digits;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Digest algorithms that can be stamped on published messages and verified by the consumer
+ * directly over the body bytes.
+ *
+ * <p>Each sampler keeps its own {@link Checksum} instance and resets it between messages,
+ * so verification does not allocate per message.
+ */
+public enum PayloadChecksum {
+
+    CRC32("crc32") {
+        @Override
+        public Checksum newChecksum() {
+            return new CRC32();
+        }
+    },
+
+    CRC32C("crc32c") {
+        @Override
+        public Checksum newChecksum() {
+            if (JDK_CRC32C != null) {
+                try {
+                    return JDK_CRC32C.newInstance();
+                } catch (ReflectiveOperationException e) {
+                    log.debug("Falling back to portable CRC32C", e);
+                }
+            }
+
+            return new Crc32c();
+        }
+    };
+
+    private static final Logger log = LoggerFactory.getLogger(PayloadChecksum.class);
+
+    /** Header carrying the algorithm name, so the consumer needs no matching configuration. */
+    public static final String ALGORITHM_HEADER = "x-checksum-alg";
+
+    /** Header carrying the digest value as a long. */
+    public static final String VALUE_HEADER = "x-checksum";
+
+    public static final String NONE = "none";
+
+    public static final String[] CHECKSUM_TYPES = new String[] {
+        NONE,
+        CRC32.algorithm,
+        CRC32C.algorithm
+    };
+
+    // java.util.zip.CRC32C is intrinsified on JDK 9+, but the plugin still targets JDK 8
+    private static final Constructor<? extends Checksum> JDK_CRC32C = findJdkCrc32c();
+
+    private final String algorithm;
+
+    PayloadChecksum(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public abstract Checksum newChecksum();
+
+    /**
+     * Compute the digest of the given bytes, reusing the supplied checksum instance.
+     */
+    public static long compute(Checksum checksum, byte[] data) {
+        checksum.reset();
+        checksum.update(data, 0, data.length);
+        return checksum.getValue();
+    }
+
+    /**
+     * @param algorithm name as written in {@link #ALGORITHM_HEADER}
+     * @return the matching checksum type, or {@code null} if it is none or unknown
+     */
+    public static PayloadChecksum forAlgorithm(Object algorithm) {
+        if (algorithm == null) {
+            return null;
+        }
+
+        String name = algorithm.toString();
+
+        for (PayloadChecksum type : values()) {
+            if (type.algorithm.equalsIgnoreCase(name)) {
+                return type;
+            }
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends Checksum> findJdkCrc32c() {
+        try {
+            return (Constructor<? extends Checksum>) Class.forName("java.util.zip.CRC32C").getConstructor();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Table-driven CRC-32C (Castagnoli) for runtimes without {@code java.util.zip.CRC32C}.
+     */
+    static final class Crc32c implements Checksum {
+
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int n = 0; n < 256; n++) {
+                int c = n;
+                for (int k = 0; k < 8; k++) {
+                    c = (c & 1) != 0 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+                }
+                TABLE[n] = c;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int c = crc;
+            for (int i = off; i < off + len; i++) {
+                c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        @Override
+        public long getValue() {
+            return (~crc) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Weighted choice of message priorities, parsed from {@code priority:weight} pairs such as
+ * {@code 0:70, 5:20, 9:10}. Weights are relative and need not add up to 100.
+ */
+public class PriorityDistribution {
+
+    private static final Logger log = LoggerFactory.getLogger(PriorityDistribution.class);
+
+    // AMQP 0-9-1 priorities are an octet
+    private static final int MAX_PRIORITY = 255;
+
+    private final int[] priorities;
+    private final double[] cumulative;
+
+    private PriorityDistribution(int[] priorities, double[] cumulative) {
+        this.priorities = priorities;
+        this.cumulative = cumulative;
+    }
+
+    /**
+     * @return the distribution, {@code null} if the spec holds no valid pair
+     */
+    public static PriorityDistribution parse(String spec) {
+        List<Integer> levels = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+
+        for (String pair : StringUtils.split(StringUtils.defaultString(spec), ", \n")) {
+            String[] parts = StringUtils.split(pair, ':');
+            int priority = parts.length == 2 ? NumberUtils.toInt(parts[0].trim(), -1) : -1;
+            double weight = parts.length == 2 ? NumberUtils.toDouble(parts[1].trim(), -1) : -1;
+
+            if (priority < 0 || priority > MAX_PRIORITY || weight <= 0) {
+                log.warn("Ignoring invalid priority weight {}, expected priority:weight", pair);
+                continue;
+            }
+
+            levels.add(priority);
+            weights.add(weight);
+        }
+
+        if (levels.isEmpty()) {
+            return null;
+        }
+
+        int[] priorities = new int[levels.size()];
+        double[] cumulative = new double[levels.size()];
+        double sum = 0;
+
+        for (int idx = 0; idx < priorities.length; idx++) {
+            priorities[idx] = levels.get(idx);
+            sum += weights.get(idx);
+            cumulative[idx] = sum;
+        }
+
+        for (int idx = 0; idx < cumulative.length; idx++) {
+            cumulative[idx] /= sum;
+        }
+
+        return new PriorityDistribution(priorities, cumulative);
+    }
+
+    /**
+     * @return the number of priorities in the distribution
+     */
+    public int size() {
+        return priorities.length;
+    }
+
+    public int getPriority(int index) {
+        return priorities[index];
+    }
+
+    /**
+     * @return the index of the next priority, drawn by weight
+     */
+    public int nextIndex() {
+        int idx = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+        return Math.min(idx < 0 ? -idx - 1 : idx, priorities.length - 1);
+    }
+}
@@ -0,0 +1,34 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Delivery;
+
+/**
+ * Delivery taken from one of several queues consumed into the same hand-off buffer. It keeps
+ * the queue it came from and the channel it has to be acknowledged on.
+ */
+public class QueuedDelivery extends Delivery {
+
+    private final String queue;
+    private final Channel channel;
+
+    public QueuedDelivery(Delivery delivery, String queue, Channel channel) {
+        super(delivery.getEnvelope(), delivery.getProperties(), delivery.getBody());
+        this.queue = queue;
+        this.channel = channel;
+    }
+
+    /**
+     * @return the queue the message was consumed from
+     */
+    public String getQueue() {
+        return queue;
+    }
+
+    /**
+     * @return the channel the delivery tag belongs to
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+}
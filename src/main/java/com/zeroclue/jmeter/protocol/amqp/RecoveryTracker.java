@@ -0,0 +1,155 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Follows the automatic recovery of a sampler connection and measures the outage:
+ * time to recover, in-flight messages lost when the connection dropped and samples
+ * which failed until it was back.
+ *
+ * <p>Listener callbacks run on client threads, the remaining methods on the sampler thread.
+ */
+public class RecoveryTracker implements ShutdownListener, RecoveryListener {
+
+    private static final Logger log = LoggerFactory.getLogger(RecoveryTracker.class);
+
+    public static final String RECOVERY_LABEL_SUFFIX = " [recovery]";
+
+    private final String name;
+    private final IntSupplier inFlight;
+
+    private final Object lock = new Object();
+
+    private volatile boolean outage;
+
+    // guarded by lock
+    private long outageStartMillis;
+    private long outageStartNanos;
+    private int lostInFlight;
+    private int failedSamples;
+
+    private volatile SampleResult completed;
+
+    /**
+     * @param name sampler name, used for the recovery result label
+     * @param inFlight supplies the number of messages which cannot be completed once the connection dropped
+     */
+    public RecoveryTracker(String name, IntSupplier inFlight) {
+        this.name = name;
+        this.inFlight = inFlight;
+    }
+
+    @Override
+    public void shutdownCompleted(ShutdownSignalException cause) {
+        if (cause.isInitiatedByApplication()) {
+            return;
+        }
+
+        synchronized (lock) {
+            if (!outage) {
+                outage = true;
+                outageStartMillis = System.currentTimeMillis();
+                outageStartNanos = System.nanoTime();
+                lostInFlight = inFlight.getAsInt();
+                failedSamples = 0;
+            }
+        }
+
+        log.warn("Connection of {} lost: {}", name, cause.getMessage());
+    }
+
+    @Override
+    public void handleRecoveryStarted(Recoverable recoverable) {
+        log.info("Recovery of {} started", name);
+    }
+
+    @Override
+    public void handleRecovery(Recoverable recoverable) {
+        synchronized (lock) {
+            if (!outage) {
+                return;
+            }
+
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - outageStartNanos);
+
+            SampleResult result = new SampleResult(outageStartMillis, elapsed);
+            result.setSampleLabel(name + RECOVERY_LABEL_SUFFIX);
+            result.setResponseCodeOK();
+            result.setResponseMessage("Recovered in " + elapsed + " ms, lost in-flight messages: " + lostInFlight
+                    + ", failed samples: " + failedSamples);
+            result.setSuccessful(true);
+
+            outage = false;
+            completed = result;
+            lock.notifyAll();
+
+            log.info("{}: {}", result.getSampleLabel(), result.getResponseMessage());
+        }
+    }
+
+    /**
+     * @return whether the connection is down and being recovered
+     */
+    public boolean isOutage() {
+        return outage;
+    }
+
+    /**
+     * Wait for an ongoing recovery to complete.
+     *
+     * @return whether the connection is usable again
+     */
+    public boolean awaitRecovery(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        synchronized (lock) {
+            while (outage) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    return false;
+                }
+
+                lock.wait(remaining);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Count a failed sample if it happened during an outage.
+     */
+    public void sampleFailed() {
+        synchronized (lock) {
+            if (outage) {
+                failedSamples++;
+            }
+        }
+    }
+
+    /**
+     * @return the result describing the last completed recovery, only once, or {@code null}
+     */
+    public SampleResult takeCompleted() {
+        if (completed == null) {
+            return null;
+        }
+
+        synchronized (lock) {
+            SampleResult result = completed;
+            completed = null;
+            return result;
+        }
+    }
+}
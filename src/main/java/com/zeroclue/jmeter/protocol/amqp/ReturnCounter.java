@@ -0,0 +1,115 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ReturnListener;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the messages the broker returns to a publisher because they were published with the
+ * mandatory flag and no queue was bound to take them.
+ *
+ * <p>The listener runs on the connection thread, so the counters are lock-free and only ever
+ * grow; each sample takes the difference to the previous sample. The broker sends a return
+ * before the commit or confirm of the same message, so with transactions or confirms the
+ * returns of a sample are counted by the time it ends. Otherwise the returns are not correlated
+ * with the messages: a return can arrive during the next sample and is counted there.
+ *
+ * <p>One instance per publisher channel; the totals of all channels are logged at the end of the test.
+ */
+public class ReturnCounter implements ReturnListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ReturnCounter.class);
+
+    private static final LongAdder TOTAL = new LongAdder();
+    private static final Map<Integer, LongAdder> TOTAL_BY_CODE = new ConcurrentHashMap<>();
+
+    private final LongAdder returned = new LongAdder();
+    private final Map<Integer, LongAdder> byCode = new ConcurrentHashMap<>();
+    private final Map<Integer, String> replyTexts = new ConcurrentHashMap<>();
+
+    // read by the sampler thread only
+    private long lastReturned;
+    private final Map<Integer, Long> lastByCode = new TreeMap<>();
+
+    @Override
+    public void handleReturn(int replyCode, String replyText, String exchange, String routingKey,
+                             AMQP.BasicProperties properties, byte[] body) {
+        returned.increment();
+        byCode.computeIfAbsent(replyCode, code -> new LongAdder()).increment();
+        replyTexts.putIfAbsent(replyCode, replyText);
+
+        TOTAL.increment();
+        TOTAL_BY_CODE.computeIfAbsent(replyCode, code -> new LongAdder()).increment();
+
+        log.debug("Message returned by {} with routing key {}: {} {}", exchange, routingKey, replyCode, replyText);
+    }
+
+    /**
+     * Add the returns since the previous sample to the result: a failed sub-result whose sample
+     * count is the number of unroutable messages, and the counts per reply code in the response message.
+     *
+     * @return the sub-result, {@code null} if no messages were returned since the previous sample
+     */
+    public SampleResult addResult(SampleResult result) {
+        long total = returned.sum();
+        long count = total - lastReturned;
+
+        lastReturned = total;
+
+        if (count == 0) {
+            return null;
+        }
+
+        StringBuilder codes = new StringBuilder();
+        int responseCode = AMQP.NO_ROUTE;
+
+        for (Map.Entry<Integer, LongAdder> entry : new TreeMap<>(byCode).entrySet()) {
+            long sum = entry.getValue().sum();
+            Long last = lastByCode.put(entry.getKey(), sum);
+            long delta = sum - (last != null ? last : 0);
+
+            if (delta > 0) {
+                responseCode = codes.length() == 0 ? entry.getKey() : responseCode;
+                codes.append(codes.length() > 0 ? ", " : "").append(entry.getKey()).append(' ')
+                        .append(replyTexts.get(entry.getKey())).append(": ").append(delta);
+            }
+        }
+
+        SampleResult sub = new SampleResult();
+
+        sub.setSampleLabel(result.getSampleLabel() + " [unroutable]");
+        sub.setStampAndTime(result.getStartTime(), 0);
+        sub.setSampleCount((int) count);
+        sub.setResponseCode(Integer.toString(responseCode));
+        sub.setResponseMessage(count + " messages returned (" + codes + ")");
+        sub.setSuccessful(false);
+
+        result.storeSubResult(sub, false);
+
+        return sub;
+    }
+
+    /**
+     * Log the returns of all publishers in the test and start over.
+     */
+    public static void report() {
+        long total = TOTAL.sumThenReset();
+
+        if (total > 0) {
+            Map<Integer, Long> codes = new TreeMap<>();
+
+            TOTAL_BY_CODE.forEach((code, count) -> codes.put(code, count.sum()));
+            TOTAL_BY_CODE.clear();
+
+            log.warn("{} mandatory messages were returned as unroutable, by reply code: {}", total, codes);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the routing key of each message from a table built once per thread, so that
+ * publishing over many keys does not build strings on the hot path.
+ *
+ * <p>The table comes from the routing key template: every {@code {n}} placeholder expands to
+ * {@code 0} ... {@code n-1}, so {@code region.{4}.tenant.{250}.created} yields 1000 keys
+ * matching bindings such as {@code region.*.tenant.#}. A template without placeholders gets
+ * {@code .0} ... {@code .count-1} appended. In hash mode the keys are random tokens instead,
+ * spread evenly over the ring of a consistent-hash exchange.
+ *
+ * <p>Keys are taken in sequence, uniformly at random, or Zipf-distributed so that a few hot
+ * keys carry most of the traffic. Not thread-safe; one instance per sampler thread.
+ */
+public class RoutingKeyGenerator {
+
+    public static final String STATIC   = "static";
+    public static final String SEQUENCE = "sequence";
+    public static final String RANDOM   = "random";
+    public static final String ZIPF     = "zipf";
+    public static final String HASH     = "hash";
+
+    public static final String[] MODES = new String[] {
+        STATIC,
+        SEQUENCE,
+        RANDOM,
+        ZIPF,
+        HASH
+    };
+
+    // upper bound of the key table, templates expanding to more keys are rejected
+    static final int MAX_KEYS = 1_000_000;
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{(\\d+)\\}");
+
+    private final String mode;
+    private final String template;
+    private final int count;
+    private final double exponent;
+    private final String[] keys;
+    private final double[] cumulative;
+    private int next;
+
+    /**
+     * @param mode one of {@link #MODES} except {@link #STATIC}
+     * @param template routing key template
+     * @param count number of keys if the template has no placeholders, or in hash mode
+     * @param exponent Zipf exponent, 1 is the classic distribution, higher is more skewed
+     */
+    public RoutingKeyGenerator(String mode, String template, int count, double exponent) {
+        this.mode = mode;
+        this.template = template;
+        this.count = count;
+        this.exponent = exponent;
+        this.keys = HASH.equals(mode) ? hashKeys(template, count) : expand(template, count);
+        this.cumulative = ZIPF.equals(mode) ? zipf(keys.length, exponent) : null;
+    }
+
+    /**
+     * @return whether the mode needs a generator, as opposed to the static routing key
+     */
+    public static boolean isGenerated(String mode) {
+        return SEQUENCE.equals(mode) || RANDOM.equals(mode) || ZIPF.equals(mode) || HASH.equals(mode);
+    }
+
+    /**
+     * @return whether this generator was built from these settings, so it can be kept
+     */
+    public boolean isFor(String mode, String template, int count, double exponent) {
+        return this.mode.equals(mode) && Objects.equals(this.template, template) && this.count == count
+                && Double.compare(this.exponent, exponent) == 0;
+    }
+
+    /**
+     * @return the routing key of the next message
+     */
+    public String next() {
+        if (SEQUENCE.equals(mode)) {
+            String key = keys[next];
+            next = next + 1 == keys.length ? 0 : next + 1;
+            return key;
+        }
+
+        if (cumulative != null) {
+            int idx = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+            return keys[Math.min(idx < 0 ? -idx - 1 : idx, keys.length - 1)];
+        }
+
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    static String[] expand(String template, int count) {
+        String pattern = template == null ? "" : template;
+
+        if (!PLACEHOLDER.matcher(pattern).find()) {
+            pattern = pattern.isEmpty() ? "{" + count + "}" : pattern + ".{" + count + "}";
+        }
+
+        List<String> keys = Collections.singletonList(pattern);
+        Matcher matcher = PLACEHOLDER.matcher(pattern);
+
+        while (matcher.find()) {
+            int size = Math.max(1, Integer.parseInt(matcher.group(1)));
+
+            if ((long) keys.size() * size > MAX_KEYS) {
+                throw new IllegalArgumentException("Routing key template " + template + " expands to more than "
+                        + MAX_KEYS + " keys");
+            }
+
+            List<String> expanded = new ArrayList<>(keys.size() * size);
+
+            for (String key : keys) {
+                for (int idx = 0; idx < size; idx++) {
+                    // replace the first remaining placeholder, the others are expanded in later rounds
+                    expanded.add(PLACEHOLDER.matcher(key).replaceFirst(Integer.toString(idx)));
+                }
+            }
+
+            keys = expanded;
+        }
+
+        return keys.toArray(new String[0]);
+    }
+
+    private static String[] hashKeys(String prefix, int count) {
+        String[] keys = new String[Math.min(Math.max(1, count), MAX_KEYS)];
+        String base = prefix == null ? "" : prefix;
+
+        for (int idx = 0; idx < keys.length; idx++) {
+            keys[idx] = base + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return the cumulative Zipf distribution over {@code size} ranks, the first key is the hottest
+     */
+    private static double[] zipf(int size, double exponent) {
+        double[] cumulative = new double[size];
+        double sum = 0;
+
+        for (int rank = 0; rank < size; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+
+        for (int rank = 0; rank < size; rank++) {
+            cumulative[rank] /= sum;
+        }
+
+        return cumulative;
+    }
+}
@@ -0,0 +1,367 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.ConfirmListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks for the highest publish rate at which the confirm latency SLO still holds.
+ *
+ * <p>Each sample runs one step: messages are published at the target rate for the step
+ * duration with publisher confirms enabled, while the confirm latency, the time the
+ * connection was blocked by the broker and the growth of the queue backlog are measured.
+ * The next rate is chosen stepwise (fixed increment until the first failure) or by binary
+ * search (doubling until the first failure, then bisecting).
+ *
+ * <p>One instance per sampler thread; confirm and blocked callbacks arrive on client threads.
+ */
+public class SaturationSearch implements ConfirmListener, BlockedListener {
+
+    private static final Logger log = LoggerFactory.getLogger(SaturationSearch.class);
+
+    public static final String OFF    = "off";
+    public static final String STEP   = "step";
+    public static final String BINARY = "binary";
+
+    public static final String[] MODES = new String[] {
+        OFF,
+        STEP,
+        BINARY
+    };
+
+    public static final String CURVE_HEADER = "rate,achieved,p50_ms,p99_ms,max_ms,blocked_ms,lag_growth,unconfirmed,pass";
+
+    // the step fails if less than this share of the target rate could be published
+    private static final double MIN_ACHIEVED_RATIO = 0.95;
+    // parking for less than this is too inaccurate, publish right away instead
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    // confirms still missing this long after the step are counted as unconfirmed
+    private static final long CONFIRM_GRACE_MILLIS = 5000;
+
+    /**
+     * Publishes one message, with the channel in confirm mode.
+     */
+    public interface PublishAction {
+        void publish() throws Exception;
+    }
+
+    /**
+     * Outcome of one step, a point of the rate-versus-latency curve.
+     */
+    public static final class Step {
+        final int rate;
+        final double achieved;
+        final double p50Millis;
+        final double p99Millis;
+        final double maxMillis;
+        final long blockedMillis;
+        final long lagGrowth;
+        final long unconfirmed;
+        final boolean pass;
+
+        Step(int rate, double achieved, Histogram latency, long blockedMillis, long lagGrowth, long unconfirmed, boolean pass) {
+            this.rate = rate;
+            this.achieved = achieved;
+            this.p50Millis = latency.getValueAtPercentile(50) / 1000.0;
+            this.p99Millis = latency.getValueAtPercentile(99) / 1000.0;
+            this.maxMillis = latency.getMaxValue() / 1000.0;
+            this.blockedMillis = blockedMillis;
+            this.lagGrowth = lagGrowth;
+            this.unconfirmed = unconfirmed;
+            this.pass = pass;
+        }
+
+        public int getRate() {
+            return rate;
+        }
+
+        public boolean isPass() {
+            return pass;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d,%.1f,%.3f,%.3f,%.3f,%d,%d,%d,%b",
+                    rate, achieved, p50Millis, p99Millis, maxMillis, blockedMillis, lagGrowth, unconfirmed, pass);
+        }
+    }
+
+    private final String name;
+    private final String mode;
+    private final int rateStep;
+    private final int maxRate;
+    private final long stepNanos;
+    private final double sloMillis;
+    private final long maxLagGrowth;
+
+    private final ConcurrentNavigableMap<Long, Long> outstanding = new ConcurrentSkipListMap<>();
+    // notified once the last outstanding confirm arrived
+    private final Object confirmsDone = new Object();
+    private final Recorder confirmLatency = new Recorder(3);
+    private final AtomicLong nacks = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private volatile long blockedSince;
+    private volatile Recorder confirmLog;
+
+    private final List<Step> curve = new ArrayList<>();
+    private int nextRate;
+    private int passRate;
+    private int failRate = Integer.MAX_VALUE;
+    private boolean finished;
+
+    /**
+     * @param mode {@link #STEP} or {@link #BINARY}
+     * @param startRate first rate to try, messages per second
+     * @param rateStep increment of the stepwise search, resolution of the binary search
+     * @param maxRate highest rate to try
+     * @param stepSeconds duration of each step
+     * @param sloMillis highest acceptable 99th percentile confirm latency
+     * @param maxLagGrowth highest acceptable backlog growth per step, 0 to ignore
+     */
+    public SaturationSearch(String name, String mode, int startRate, int rateStep, int maxRate, int stepSeconds,
+            double sloMillis, long maxLagGrowth) {
+        this.name = name;
+        this.mode = mode;
+        this.rateStep = Math.max(1, rateStep);
+        this.maxRate = Math.max(1, maxRate);
+        this.stepNanos = TimeUnit.SECONDS.toNanos(Math.max(1, stepSeconds));
+        this.sloMillis = sloMillis;
+        this.maxLagGrowth = maxLagGrowth;
+        this.nextRate = Math.min(Math.max(1, startRate), this.maxRate);
+    }
+
+    /**
+     * @param recorder also receives each confirm latency, {@code null} for none
+     */
+    public void setConfirmLog(Recorder recorder) {
+        this.confirmLog = recorder;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the highest rate which met the SLO, 0 if none did
+     */
+    public int getCapacity() {
+        return passRate;
+    }
+
+    public List<Step> getCurve() {
+        return curve;
+    }
+
+    /**
+     * @return the curve as CSV, one line per step
+     */
+    public String formatCurve() {
+        StringBuilder sb = new StringBuilder(CURVE_HEADER).append('\n');
+
+        for (Step step : curve) {
+            sb.append(step).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Run the next step of the search.
+     *
+     * @param action publishes a single message
+     * @param nextPublishSeqNo supplies the sequence number of the next publish
+     * @param queueDepth current backlog of the monitored queue, negative if unknown
+     * @return the measured step
+     */
+    public Step runStep(PublishAction action, LongSupplier nextPublishSeqNo, LongSupplier queueDepth)
+            throws Exception {
+        int rate = nextRate;
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long depthBefore = queueDepth.getAsLong();
+
+        outstanding.clear();
+        confirmLatency.reset();
+        blockedNanos.set(0);
+
+        long start = System.nanoTime();
+        long end = start + stepNanos;
+        long published = 0;
+        long now = start;
+
+        while (now < end) {
+            long due = start + published * interval;
+
+            if (due - now > MIN_PARK_NANOS) {
+                LockSupport.parkNanos(due - now);
+            }
+
+            outstanding.put(nextPublishSeqNo.getAsLong(), System.nanoTime());
+            action.publish();
+            published++;
+            now = System.nanoTime();
+        }
+
+        double achieved = published * (double) TimeUnit.SECONDS.toNanos(1) / (now - start);
+        awaitConfirms();
+
+        long unconfirmed = outstanding.size() + nacks.getAndSet(0);
+        outstanding.clear();
+
+        long blocked = blockedNanos.get();
+        long since = blockedSince;
+
+        if (since != 0) {
+            blocked += System.nanoTime() - since;
+        }
+
+        long depthAfter = queueDepth.getAsLong();
+        long lagGrowth = depthBefore >= 0 && depthAfter >= 0 ? depthAfter - depthBefore : 0;
+
+        Histogram latency = confirmLatency.getIntervalHistogram();
+        long blockedMillis = TimeUnit.NANOSECONDS.toMillis(blocked);
+        boolean pass = latency.getTotalCount() > 0
+                && latency.getValueAtPercentile(99) / 1000.0 <= sloMillis
+                && achieved >= rate * MIN_ACHIEVED_RATIO
+                && blockedMillis == 0
+                && unconfirmed == 0
+                && (maxLagGrowth <= 0 || lagGrowth <= maxLagGrowth);
+
+        Step step = new Step(rate, achieved, latency, blockedMillis, lagGrowth, unconfirmed, pass);
+        curve.add(step);
+        log.info("{}: step {}", name, step);
+
+        next(step);
+
+        return step;
+    }
+
+    private void next(Step step) {
+        if (step.pass) {
+            passRate = Math.max(passRate, step.rate);
+        } else {
+            failRate = Math.min(failRate, step.rate);
+        }
+
+        if (STEP.equals(mode)) {
+            nextRate = step.rate + rateStep;
+            finished = !step.pass || nextRate > maxRate;
+        } else if (failRate == Integer.MAX_VALUE) {
+            // no failure yet, double until one is found
+            finished = step.rate >= maxRate;
+            nextRate = (int) Math.min(maxRate, step.rate * 2L);
+        } else {
+            nextRate = passRate + (failRate - passRate) / 2;
+            finished = failRate - passRate <= rateStep;
+        }
+
+        if (finished) {
+            log.info("{}: saturation search finished, capacity {} msg/s", name, passRate);
+        }
+    }
+
+    private void awaitConfirms() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONFIRM_GRACE_MILLIS);
+
+        synchronized (confirmsDone) {
+            long remaining = deadline - System.nanoTime();
+
+            while (!outstanding.isEmpty() && remaining > 0) {
+                TimeUnit.NANOSECONDS.timedWait(confirmsDone, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        confirmed(deliveryTag, multiple, true);
+    }
+
+    /**
+     * A nack is counted as unconfirmed; its latency is not recorded, so it does not pass for a
+     * fast confirm.
+     */
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        nacks.addAndGet(confirmed(deliveryTag, multiple, false));
+    }
+
+    private int confirmed(long deliveryTag, boolean multiple, boolean record) {
+        long now = System.nanoTime();
+        int count = 0;
+
+        if (multiple) {
+            Map<Long, Long> confirmedTags = outstanding.headMap(deliveryTag, true);
+
+            for (Long sent : confirmedTags.values()) {
+                if (record) {
+                    recordConfirm(now - sent);
+                }
+
+                count++;
+            }
+
+            confirmedTags.clear();
+        } else {
+            Long sent = outstanding.remove(deliveryTag);
+
+            if (sent != null) {
+                if (record) {
+                    recordConfirm(now - sent);
+                }
+
+                count++;
+            }
+        }
+
+        if (outstanding.isEmpty()) {
+            synchronized (confirmsDone) {
+                confirmsDone.notifyAll();
+            }
+        }
+
+        return count;
+    }
+
+    private void recordConfirm(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        Recorder recorder = confirmLog;
+
+        confirmLatency.recordValue(micros);
+
+        if (recorder != null) {
+            recorder.recordValue(micros);
+        }
+    }
+
+    @Override
+    public void handleBlocked(String reason) {
+        blockedSince = System.nanoTime();
+        log.warn("{}: connection blocked by the broker: {}", name, reason);
+    }
+
+    @Override
+    public void handleUnblocked() {
+        long since = blockedSince;
+
+        if (since != 0) {
+            blockedNanos.addAndGet(System.nanoTime() - since);
+            blockedSince = 0;
+        }
+    }
+}
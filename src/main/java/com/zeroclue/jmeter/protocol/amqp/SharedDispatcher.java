@@ -0,0 +1,196 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed set of broker consumers shared by all consumer threads of the JVM which use the same
+ * queues. Each channel holds one consumer per queue, and all of them feed one bounded buffer
+ * which any number of sampler threads poll, so the consumer count seen by the broker does not
+ * depend on the number of JMeter threads.
+ *
+ * <p>Dispatchers are opened by the first thread asking for them and closed at the end of the
+ * test. Deliveries are {@link QueuedDelivery} instances, acknowledged on their own channel by
+ * whichever thread takes them. A dispatcher whose connection is being recovered is kept, and
+ * subscribes again after the recovery if the client did not restore its consumers; only a
+ * dispatcher whose connection is closed for good is replaced.
+ */
+public class SharedDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedDispatcher.class);
+
+    // guarded by itself
+    private static final Map<String, SharedDispatcher> DISPATCHERS = new HashMap<>();
+
+    /**
+     * Opens the channels of a new dispatcher.
+     */
+    public interface Opener {
+        SharedDispatcher open() throws Exception;
+    }
+
+    private final String name;
+    private final List<Channel> channels;
+    private final List<String> queues;
+    private final boolean autoAck;
+    private final Map<String, Object> arguments;
+    private final BlockingQueue<Delivery> buffer;
+    private final List<DeliveryHandOff> handOffs = new ArrayList<>();
+
+    // set from the client threads of the connection
+    private volatile boolean recovering;
+
+    /**
+     * Subscribe to every queue once per channel.
+     *
+     * @param channels one channel per broker consumer, all on the same connection
+     * @param capacity bound of the shared buffer; a full buffer blocks the dispatch threads
+     * @param topologyRecovery whether the client restores the consumers after a recovery
+     */
+    public SharedDispatcher(String name, List<Channel> channels, List<String> queues, boolean autoAck,
+            Map<String, Object> arguments, int capacity, boolean topologyRecovery) throws IOException {
+        this.name = name;
+        this.channels = new ArrayList<>(channels);
+        this.queues = new ArrayList<>(queues);
+        this.autoAck = autoAck;
+        this.arguments = arguments;
+        this.buffer = new LinkedBlockingQueue<>(capacity);
+
+        subscribe();
+
+        Connection connection = channels.get(0).getConnection();
+
+        if (connection instanceof Recoverable) {
+            connection.addShutdownListener(cause -> {
+                if (!cause.isInitiatedByApplication()) {
+                    recovering = true;
+                }
+            });
+            ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+                @Override
+                public void handleRecovery(Recoverable recoverable) {
+                    if (!topologyRecovery) {
+                        resubscribe();
+                    }
+
+                    recovering = false;
+                }
+
+                @Override
+                public void handleRecoveryStarted(Recoverable recoverable) {
+                    // the shutdown listener already marked the outage
+                }
+            });
+        }
+
+        log.info("{}: shared dispatcher started, {} consumers on each of {} queues",
+                name, channels.size(), queues.size());
+    }
+
+    private void subscribe() throws IOException {
+        for (Channel channel : channels) {
+            for (String queue : queues) {
+                DeliveryHandOff handOff = new DeliveryHandOff(buffer, channel, queue, autoAck);
+
+                synchronized (handOffs) {
+                    handOffs.add(handOff);
+                }
+
+                channel.basicConsume(queue, autoAck, arguments, handOff, handOff);
+            }
+        }
+    }
+
+    private void resubscribe() {
+        try {
+            subscribe();
+            log.info("{}: shared dispatcher subscribed again after the recovery", name);
+        } catch (IOException | ShutdownSignalException e) {
+            log.error("{}: shared dispatcher failed to subscribe again after the recovery", name, e);
+        }
+    }
+
+    /**
+     * @return the dispatcher registered under the key, opened with the opener if there is none
+     *     or the connection of the previous one is closed and not being recovered
+     */
+    public static SharedDispatcher get(String key, Opener opener) throws Exception {
+        synchronized (DISPATCHERS) {
+            SharedDispatcher dispatcher = DISPATCHERS.get(key);
+
+            if (dispatcher == null || dispatcher.isClosed()) {
+                if (dispatcher != null) {
+                    dispatcher.close();
+                }
+
+                dispatcher = opener.open();
+                DISPATCHERS.put(key, dispatcher);
+            }
+
+            return dispatcher;
+        }
+    }
+
+    /**
+     * Close all dispatchers and their connections.
+     */
+    public static void closeAll() {
+        synchronized (DISPATCHERS) {
+            for (SharedDispatcher dispatcher : DISPATCHERS.values()) {
+                dispatcher.close();
+            }
+
+            DISPATCHERS.clear();
+        }
+    }
+
+    /**
+     * @return the buffer the sampler threads poll
+     */
+    public BlockingQueue<Delivery> getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return whether the connection is closed for good, i.e. neither open nor being recovered
+     */
+    public boolean isClosed() {
+        return !recovering && !channels.get(0).getConnection().isOpen();
+    }
+
+    private void close() {
+        Connection connection = channels.get(0).getConnection();
+
+        synchronized (handOffs) {
+            for (DeliveryHandOff handOff : handOffs) {
+                handOff.cancel();
+            }
+        }
+
+        try {
+            if (connection.isOpen()) {
+                connection.close();
+            }
+        } catch (IOException | ShutdownSignalException e) {
+            log.warn("{}: failed to close shared dispatcher connection", name, e);
+        }
+
+        log.info("{}: shared dispatcher closed, {} deliveries left in the buffer", name, buffer.size());
+        buffer.clear();
+    }
+}
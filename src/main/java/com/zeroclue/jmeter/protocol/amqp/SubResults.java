@@ -0,0 +1,42 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+/**
+ * Sub-results which stand for a number of events of one kind within a sample, such as commits,
+ * handshakes or the messages of one priority.
+ *
+ * <p>Listeners treat the elapsed time of a result as the total over its sample count and divide
+ * one by the other, so the elapsed time is the total time of all events and the listeners show
+ * their average.
+ */
+final class SubResults {
+
+    private SubResults() {
+    }
+
+    /**
+     * Add a successful sub-result labelled {@code <parent label> [<kind>]}, nothing if there
+     * were no events.
+     *
+     * @param count number of events
+     * @param totalMillis time of all events together
+     * @param message response message with the details
+     */
+    static void addAggregate(SampleResult parent, String kind, long count, long totalMillis, String message) {
+        if (count <= 0) {
+            return;
+        }
+
+        SampleResult sub = new SampleResult();
+
+        sub.setSampleLabel(parent.getSampleLabel() + " [" + kind + "]");
+        sub.setStampAndTime(parent.getStartTime(), totalMillis);
+        sub.setSampleCount((int) Math.min(count, Integer.MAX_VALUE));
+        sub.setResponseCodeOK();
+        sub.setResponseMessage(message);
+        sub.setSuccessful(true);
+
+        parent.storeSubResult(sub, false);
+    }
+}
@@ -0,0 +1,323 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import com.rabbitmq.client.TrustEverythingTrustManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TLS sockets over a shared {@link SSLContext}, with the handshake timed apart from the TCP connect.
+ *
+ * <p>Contexts are built once per JVM for each combination of protocol and key/trust stores, so
+ * every connection of the test uses the same client session cache and reconnects to the same
+ * host and port can resume their session instead of going through a full handshake. Without a
+ * trust store all server certificates are trusted, as with plain {@code useSslProtocol()}.
+ *
+ * <p>The client opens unconnected sockets and connects them itself; the TLS layer is put on top
+ * once the TCP connection stands, and the handshake is started right away. Full and resumed
+ * handshakes are counted apart until the next sample takes them. One instance per sampler.
+ */
+public class TlsSocketFactory extends SSLSocketFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(TlsSocketFactory.class);
+
+    // guarded by itself
+    private static final Map<String, SSLContext> CONTEXTS = new HashMap<>();
+
+    // indexes into the handshake counters
+    private static final int FULL = 0;
+    private static final int RESUMED = 1;
+
+    private final SSLSocketFactory delegate;
+    private final String[] cipherSuites;
+
+    // handshakes may run on recovery threads; guarded by this
+    private final long[] counts = new long[2];
+    private final long[] nanos = new long[2];
+
+    /**
+     * @param cipherSuites comma separated cipher suites to enable, empty for the defaults of the context
+     */
+    public TlsSocketFactory(SSLContext context, String cipherSuites) {
+        this.delegate = context.getSocketFactory();
+        this.cipherSuites = parseCipherSuites(cipherSuites, delegate.getSupportedCipherSuites());
+    }
+
+    private static String[] parseCipherSuites(String spec, String[] supported) {
+        if (StringUtils.isBlank(spec)) {
+            return null;
+        }
+
+        List<String> supportedSuites = Arrays.asList(supported);
+        List<String> suites = new ArrayList<>();
+
+        for (String suite : StringUtils.split(spec, ", \n")) {
+            if (supportedSuites.contains(suite)) {
+                suites.add(suite);
+            } else {
+                log.warn("Ignoring unsupported cipher suite {}", suite);
+            }
+        }
+
+        return suites.isEmpty() ? null : suites.toArray(new String[0]);
+    }
+
+    /**
+     * @return the context shared by all connections with the same settings, built on first use
+     */
+    public static SSLContext sharedContext(String protocol, String keyStore, String keyStoreType,
+            String keyStorePassword, String trustStore, String trustStoreType, String trustStorePassword)
+            throws IOException {
+        String key = String.join("|", protocol, keyStore, keyStoreType, keyStorePassword, trustStore,
+                trustStoreType, trustStorePassword);
+
+        synchronized (CONTEXTS) {
+            SSLContext context = CONTEXTS.get(key);
+
+            if (context == null) {
+                context = newContext(protocol, keyStore, keyStoreType, keyStorePassword, trustStore, trustStoreType,
+                        trustStorePassword);
+                CONTEXTS.put(key, context);
+                log.info("Created shared {} context, key store: {}, trust store: {}", protocol, keyStore, trustStore);
+            }
+
+            return context;
+        }
+    }
+
+    /**
+     * @return a context of its own, whose sessions no other connection can resume
+     */
+    public static SSLContext newContext(String protocol, String keyStore, String keyStoreType,
+            String keyStorePassword, String trustStore, String trustStoreType, String trustStorePassword)
+            throws IOException {
+        try {
+            KeyManager[] keyManagers = null;
+            TrustManager[] trustManagers = new TrustManager[] {new TrustEverythingTrustManager()};
+
+            if (StringUtils.isNotBlank(keyStore)) {
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                kmf.init(loadStore(keyStore, keyStoreType, keyStorePassword), password(keyStorePassword));
+                keyManagers = kmf.getKeyManagers();
+            }
+
+            if (StringUtils.isNotBlank(trustStore)) {
+                TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(loadStore(trustStore, trustStoreType, trustStorePassword));
+                trustManagers = tmf.getTrustManagers();
+            }
+
+            SSLContext context = SSLContext.getInstance(protocol);
+            context.init(keyManagers, trustManagers, null);
+
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to create the " + protocol + " context: " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore loadStore(String path, String type, String password)
+            throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(StringUtils.defaultIfBlank(type, KeyStore.getDefaultType()));
+
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            store.load(in, password(password));
+        }
+
+        return store;
+    }
+
+    private static char[] password(String password) {
+        return password == null ? new char[0] : password.toCharArray();
+    }
+
+    /**
+     * Add the full and the resumed handshakes since the previous sample as sub-results.
+     *
+     * @see SubResults#addAggregate
+     */
+    public void addResults(SampleResult result) {
+        long[] takenCounts;
+        long[] takenNanos;
+
+        synchronized (this) {
+            if (counts[FULL] == 0 && counts[RESUMED] == 0) {
+                return;
+            }
+
+            takenCounts = counts.clone();
+            takenNanos = nanos.clone();
+            Arrays.fill(counts, 0);
+            Arrays.fill(nanos, 0);
+        }
+
+        addResult(result, "tls full", takenCounts[FULL], takenNanos[FULL]);
+        addResult(result, "tls resumed", takenCounts[RESUMED], takenNanos[RESUMED]);
+    }
+
+    private static void addResult(SampleResult result, String kind, long count, long totalNanos) {
+        if (count == 0) {
+            return;
+        }
+
+        // rounded, so that a few sub-millisecond handshakes do not add up to nothing
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis(totalNanos + TimeUnit.MICROSECONDS.toNanos(500));
+
+        SubResults.addAggregate(result, kind, count, totalMillis,
+                count + " handshakes, avg " + TimeUnit.NANOSECONDS.toMicros(totalNanos / count) + " us");
+    }
+
+    private void handshake(SSLSocket socket) throws IOException {
+        if (cipherSuites != null) {
+            socket.setEnabledCipherSuites(cipherSuites);
+        }
+
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+
+        socket.startHandshake();
+
+        long elapsed = System.nanoTime() - start;
+        // a resumed session was created by an earlier handshake
+        int kind = socket.getSession().getCreationTime() < startMillis ? RESUMED : FULL;
+
+        synchronized (this) {
+            counts[kind]++;
+            nanos[kind] += elapsed;
+        }
+
+        log.debug("{} TLS handshake with {} took {} us, {}", kind == RESUMED ? "Resumed" : "Full",
+                socket.getInetAddress(), TimeUnit.NANOSECONDS.toMicros(elapsed), socket.getSession().getCipherSuite());
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return cipherSuites != null ? cipherSuites.clone() : delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    // the client creates unconnected sockets and connects them itself
+    @Override
+    public Socket createSocket() {
+        return new LayeringSocket();
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        SSLSocket layer = (SSLSocket) delegate.createSocket(socket, host, port, autoClose);
+        handshake(layer);
+        return layer;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return connected(new LayeringSocket(), new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        Socket socket = new LayeringSocket();
+        socket.bind(new InetSocketAddress(localHost, localPort));
+        return connected(socket, new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return connected(new LayeringSocket(), new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        Socket socket = new LayeringSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        return connected(socket, new InetSocketAddress(address, port));
+    }
+
+    private static Socket connected(Socket socket, SocketAddress address) throws IOException {
+        socket.connect(address);
+        return socket;
+    }
+
+    /**
+     * Plain socket which puts a TLS layer on itself once connected, and hands out the streams of
+     * the layer from then on. Socket options set by the client apply to the TCP connection below.
+     */
+    private class LayeringSocket extends Socket {
+
+        private volatile SSLSocket layer;
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            super.connect(endpoint, timeout);
+
+            InetSocketAddress address = (InetSocketAddress) endpoint;
+
+            try {
+                // host and port key the session cache; the layer takes the plain streams while layer is unset
+                SSLSocket tls = (SSLSocket) delegate.createSocket(this, address.getHostString(), address.getPort(), true);
+                handshake(tls);
+                layer = tls;
+            } catch (IOException | RuntimeException e) {
+                super.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            SSLSocket tls = layer;
+            return tls != null ? tls.getInputStream() : super.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            SSLSocket tls = layer;
+            return tls != null ? tls.getOutputStream() : super.getOutputStream();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            SSLSocket tls = layer;
+            layer = null;
+
+            // closing the layer sends close_notify and comes back here for the TCP connection
+            if (tls != null) {
+                tls.close();
+            } else {
+                super.close();
+            }
+        }
+    }
+}
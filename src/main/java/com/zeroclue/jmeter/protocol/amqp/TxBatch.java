@@ -0,0 +1,113 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+/**
+ * Transaction batching independent of the sample size: a commit is due once the batch holds
+ * the configured number of messages, or once its first message waited longer than the time
+ * limit. Without a batch size every sample commits on its own, as before.
+ *
+ * <p>Commit time is accumulated apart from the sample, and reported as a sub-result so the cost
+ * of the commits can be told from the cost of publishing or acknowledging. One instance per
+ * sampler thread.
+ */
+public class TxBatch {
+
+    /**
+     * Commits the transaction on the channel(s) of the sampler.
+     */
+    public interface Commit {
+        void run() throws IOException;
+    }
+
+    private final int size;
+    private final long maxAgeNanos;
+
+    private int pending;
+    private long firstPending;
+
+    // since the last sub-result
+    private long commits;
+    private long commitNanos;
+    private long maxCommitNanos;
+
+    /**
+     * @param size messages per commit, 0 to commit at the end of each sample
+     * @param timeLimitMillis longest time a message waits for its commit, 0 for no limit
+     */
+    public TxBatch(int size, long timeLimitMillis) {
+        this.size = Math.max(0, size);
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeLimitMillis));
+    }
+
+    /**
+     * Count a message into the batch.
+     *
+     * @return whether the batch is due for a commit
+     */
+    public boolean added() {
+        if (pending++ == 0) {
+            firstPending = System.nanoTime();
+        }
+
+        return size > 0 && pending >= size || expired();
+    }
+
+    /**
+     * @return whether the batch is due for a commit at the end of a sample
+     */
+    public boolean sampleEnded() {
+        return pending > 0 && (size == 0 || expired());
+    }
+
+    private boolean expired() {
+        return maxAgeNanos > 0 && System.nanoTime() - firstPending >= maxAgeNanos;
+    }
+
+    /**
+     * Commit the batch and time the commit.
+     */
+    public void commit(Commit commit) throws IOException {
+        long start = System.nanoTime();
+
+        commit.run();
+
+        long elapsed = System.nanoTime() - start;
+
+        commits++;
+        commitNanos += elapsed;
+        maxCommitNanos = Math.max(maxCommitNanos, elapsed);
+        pending = 0;
+    }
+
+    /**
+     * @return the messages published or acknowledged since the last commit
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * Add the commits since the previous call as a sub-result.
+     *
+     * @see SubResults#addAggregate
+     */
+    public void addResult(SampleResult result) {
+        if (commits == 0) {
+            return;
+        }
+
+        long avgMicros = TimeUnit.NANOSECONDS.toMicros(commitNanos / commits);
+
+        SubResults.addAggregate(result, "commit", commits, TimeUnit.NANOSECONDS.toMillis(commitNanos),
+                commits + " commits, avg " + avgMicros + " us, max " + TimeUnit.NANOSECONDS.toMicros(maxCommitNanos)
+                        + " us, " + pending + " messages pending");
+
+        commits = 0;
+        commitNanos = 0;
+        maxCommitNanos = 0;
+    }
+}
@@ -0,0 +1,198 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.apache.jmeter.samplers.SampleResult;
+
+/**
+ * Folds the samples of one thread into a single result per time window, for message rates at
+ * which a result per sample swamps the listeners and the result file.
+ *
+ * <p>The sample count of a summary is the number of messages and its elapsed time the total time
+ * spent sampling, so listeners still get the average and the throughput right. The time each
+ * message took, as recorded by the sampler, only goes into a histogram, whose percentiles make up
+ * the response data; samples without such records count as that many messages of their average
+ * duration. JMeter derives the error count of a result from its success flag, so a failed sample
+ * is not folded: it ends the window and is handed out as it is, after the summary of the samples
+ * which passed before it. Sub-results of the passed samples are dropped.
+ *
+ * <p>One instance per sampler thread.
+ */
+public class WindowSummary {
+
+    public static final String PERCENTILES_HEADER = "messages,errors,p50_us,p90_us,p99_us,p99.9_us,max_us";
+
+    private final long windowNanos;
+    private final Histogram latency = new Histogram(3);
+    private final Tally passed = new Tally();
+
+    private long windowStart;
+    private String label;
+    private SampleResult failed;
+    private SampleResult pending;
+
+    // the times of the messages of the current sample, in microseconds
+    private long[] sampleMicros = new long[16];
+    private int sampleMessages;
+
+    /**
+     * Counts of the passed samples.
+     */
+    private static final class Tally {
+        int messages;
+        long nanos;
+        long latencyMillis;
+        long bytes;
+        long sentBytes;
+        long startTime;
+
+        void add(SampleResult result, int count, long elapsedNanos) {
+            if (messages == 0) {
+                startTime = result.getStartTime();
+            }
+
+            messages += count;
+            nanos += elapsedNanos;
+            latencyMillis += result.getLatency();
+            bytes += result.getBytesAsLong();
+            sentBytes += result.getSentBytes();
+        }
+
+        void reset() {
+            messages = 0;
+            nanos = 0;
+            latencyMillis = 0;
+            bytes = 0;
+            sentBytes = 0;
+        }
+    }
+
+    /**
+     * @param windowMillis length of a window in milliseconds
+     */
+    public WindowSummary(long windowMillis) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    public long getWindowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(windowNanos);
+    }
+
+    /**
+     * @return the failed sample which ended the previous window, {@code null} if there is none
+     */
+    public SampleResult takePending() {
+        SampleResult result = pending;
+        pending = null;
+        return result;
+    }
+
+    /**
+     * Open a new window.
+     */
+    public void start() {
+        windowStart = System.nanoTime();
+        sampleMessages = 0;
+    }
+
+    /**
+     * @return whether the window is over
+     */
+    public boolean isDue() {
+        return System.nanoTime() - windowStart >= windowNanos;
+    }
+
+    /**
+     * Record the time one message of the current sample took.
+     */
+    public void recordMessage(long elapsedNanos) {
+        if (sampleMessages == sampleMicros.length) {
+            sampleMicros = Arrays.copyOf(sampleMicros, sampleMessages * 2);
+        }
+
+        sampleMicros[sampleMessages++] = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+    }
+
+    /**
+     * Fold a sample into the window; the messages recorded for it go into the histogram, and
+     * without records a sample of several messages counts as that many messages of the average
+     * duration.
+     *
+     * @param elapsedNanos the time the sample took
+     * @return {@code false} if the sample failed, which ends the window
+     */
+    public boolean add(SampleResult result, long elapsedNanos) {
+        int recorded = sampleMessages;
+
+        sampleMessages = 0;
+        label = result.getSampleLabel();
+
+        if (!result.isSuccessful()) {
+            failed = result;
+            return false;
+        }
+
+        int count = Math.max(1, result.getSampleCount());
+
+        passed.add(result, count, elapsedNanos);
+
+        if (recorded == 0) {
+            latency.recordValueWithCount(TimeUnit.NANOSECONDS.toMicros(elapsedNanos / count), count);
+        }
+
+        for (int idx = 0; idx < recorded; idx++) {
+            latency.recordValue(sampleMicros[idx]);
+        }
+
+        return true;
+    }
+
+    /**
+     * Close the window: the summary of the passed samples is returned and the failed sample which
+     * ended the window kept for {@link #takePending()}; without passed samples the failed sample
+     * is returned right away.
+     */
+    public SampleResult takeResult() {
+        SampleResult result = failed;
+
+        if (passed.messages > 0) {
+            pending = failed;
+            result = toResult();
+        }
+
+        latency.reset();
+        passed.reset();
+        failed = null;
+
+        return result;
+    }
+
+    private SampleResult toResult() {
+        SampleResult result = new SampleResult();
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis(passed.nanos);
+        int errors = failed != null ? 1 : 0;
+        String percentiles = PERCENTILES_HEADER + "\n" + String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d",
+                passed.messages, errors, latency.getValueAtPercentile(50), latency.getValueAtPercentile(90),
+                latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9), latency.getMaxValue());
+
+        result.setSampleLabel(label);
+        result.setStampAndTime(passed.startTime, totalMillis);
+        result.setLatency(passed.latencyMillis);
+        result.setSampleCount(passed.messages);
+        result.setBytes(passed.bytes);
+        result.setSentBytes(passed.sentBytes);
+        result.setDataType(SampleResult.TEXT);
+        result.setResponseData(percentiles, StandardCharsets.UTF_8.name());
+        result.setResponseCodeOK();
+        result.setResponseMessage(String.format(Locale.ROOT, "%d messages, %d errors, p50 %d us, p99 %d us, max %d us",
+                passed.messages, errors, latency.getValueAtPercentile(50),
+                latency.getValueAtPercentile(99), latency.getMaxValue()));
+        result.setSuccessful(true);
+
+        return result;
+    }
+}
@@ -0,0 +1,102 @@
+package com.zeroclue.jmeter.protocol.amqp.gui;
+
+import com.zeroclue.jmeter.protocol.amqp.AMQP10Consumer;
+import com.zeroclue.jmeter.protocol.amqp.AMQPSampler;
+
+import javax.swing.JPanel;
+
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+/**
+ * GUI for AMQP 1.0 Consumer.
+ */
+public class AMQP10ConsumerGui extends AMQP10SamplerGui {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JLabeledTextField receiveTimeout = new JLabeledTextField("Receive Timeout");
+
+    private JPanel mainPanel;
+
+    public AMQP10ConsumerGui() {
+        init();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLabelResource() {
+        return this.getClass().getSimpleName();
+    }
+
+    @Override
+    public String getStaticLabel() {
+        return "AMQP 1.0 Consumer";
+    }
+
+    /*
+     * Helper method to set up the GUI screen
+     */
+    @Override
+    protected void init() {
+        super.init();
+
+        mainPanel.add(makeLinkPanel());
+        mainPanel.add(receiveTimeout);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+        if (!(element instanceof AMQP10Consumer)) {
+            return;
+        }
+        AMQP10Consumer sampler = (AMQP10Consumer) element;
+
+        receiveTimeout.setText(sampler.getReceiveTimeout());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+        receiveTimeout.setText(AMQPSampler.DEFAULT_TIMEOUT_STRING);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestElement createTestElement() {
+        AMQP10Consumer sampler = new AMQP10Consumer();
+        modifyTestElement(sampler);
+
+        return sampler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifyTestElement(TestElement te) {
+        AMQP10Consumer sampler = (AMQP10Consumer) te;
+        sampler.clear();
+        configureTestElement(sampler);
+
+        super.modifyTestElement(sampler);
+
+        sampler.setReceiveTimeout(receiveTimeout.getText());
+    }
+
+    @Override
+    protected void setMainPanel(JPanel panel) {
+        mainPanel = panel;
+    }
+}
@@ -0,0 +1,121 @@
+package com.zeroclue.jmeter.protocol.amqp.gui;
+
+import com.zeroclue.jmeter.protocol.amqp.AMQP10Publisher;
+
+import java.awt.Dimension;
+
+import javax.swing.JCheckBox;
+import javax.swing.JPanel;
+
+import org.apache.jmeter.gui.util.HorizontalPanel;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledTextArea;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+/**
+ * GUI for AMQP 1.0 Publisher.
+ */
+public class AMQP10PublisherGui extends AMQP10SamplerGui {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JLabeledTextArea message = new JLabeledTextArea("Message Content");
+    private final JLabeledTextField pipeline = new JLabeledTextField("Pipeline");
+    private final JCheckBox persistent = new JCheckBox("Persistent", AMQP10Publisher.DEFAULT_PERSISTENT);
+
+    private JPanel mainPanel;
+
+    public AMQP10PublisherGui() {
+        init();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLabelResource() {
+        return this.getClass().getSimpleName();
+    }
+
+    @Override
+    public String getStaticLabel() {
+        return "AMQP 1.0 Publisher";
+    }
+
+    /*
+     * Helper method to set up the GUI screen
+     */
+    @Override
+    protected void init() {
+        super.init();
+
+        JPanel optionsPanel = new HorizontalPanel();
+        optionsPanel.add(pipeline);
+        optionsPanel.add(persistent);
+
+        mainPanel.add(makeLinkPanel());
+        mainPanel.add(optionsPanel);
+
+        message.setPreferredSize(new Dimension(400, 200));
+        mainPanel.add(message);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+        if (!(element instanceof AMQP10Publisher)) {
+            return;
+        }
+        AMQP10Publisher sampler = (AMQP10Publisher) element;
+
+        message.setText(sampler.getMessage());
+        pipeline.setText(sampler.getPipeline());
+        persistent.setSelected(sampler.getPersistent());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+        message.setText("");
+        pipeline.setText(AMQP10Publisher.DEFAULT_PIPELINE_STRING);
+        persistent.setSelected(AMQP10Publisher.DEFAULT_PERSISTENT);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestElement createTestElement() {
+        AMQP10Publisher sampler = new AMQP10Publisher();
+        modifyTestElement(sampler);
+
+        return sampler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifyTestElement(TestElement te) {
+        AMQP10Publisher sampler = (AMQP10Publisher) te;
+        sampler.clear();
+        configureTestElement(sampler);
+
+        super.modifyTestElement(sampler);
+
+        sampler.setMessage(message.getText());
+        sampler.setPipeline(pipeline.getText());
+        sampler.setPersistent(persistent.isSelected());
+    }
+
+    @Override
+    protected void setMainPanel(JPanel panel) {
+        mainPanel = panel;
+    }
+}
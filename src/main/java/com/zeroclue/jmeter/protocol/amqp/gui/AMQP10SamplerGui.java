@@ -0,0 +1,87 @@
+package com.zeroclue.jmeter.protocol.amqp.gui;
+
+import com.zeroclue.jmeter.protocol.amqp.AMQP10Sampler;
+
+import javax.swing.JPanel;
+
+import org.apache.jmeter.gui.util.HorizontalPanel;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+/**
+ * Common GUI of the AMQP 1.0 samplers: the link settings on top of the connection settings.
+ */
+public abstract class AMQP10SamplerGui extends AMQPSamplerGui {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JLabeledTextField address = new JLabeledTextField("Address");
+    private final JLabeledTextField linkCredit = new JLabeledTextField("Link Credit");
+    private final JLabeledChoice settlement = new JLabeledChoice("Settlement", AMQP10Sampler.SETTLEMENT_MODES, false, false);
+
+    /**
+     * The 1.0 samplers only take the queue name, as the default link address, and the connection
+     * settings the Qpid JMS client supports.
+     */
+    @Override
+    protected void init() {
+        super.init();
+        hideTopologySettings();
+        hideClientSettings();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+        if (!(element instanceof AMQP10Sampler)) {
+            return;
+        }
+        AMQP10Sampler sampler = (AMQP10Sampler) element;
+
+        address.setText(sampler.getRawAddress());
+        linkCredit.setText(sampler.getLinkCredit());
+        settlement.setText(sampler.getSettlement());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+        address.setText(AMQP10Sampler.DEFAULT_ADDRESS);
+        linkCredit.setText(AMQP10Sampler.DEFAULT_LINK_CREDIT_STRING);
+        settlement.setText(AMQP10Sampler.DEFAULT_SETTLEMENT);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifyTestElement(TestElement element) {
+        super.modifyTestElement(element);
+        AMQP10Sampler sampler = (AMQP10Sampler) element;
+
+        sampler.setAddress(address.getText());
+        sampler.setLinkCredit(linkCredit.getText());
+        sampler.setSettlement(settlement.getText());
+    }
+
+    /**
+     * @return the panel holding the link settings
+     */
+    protected JPanel makeLinkPanel() {
+        address.setToolTipText("Link address, the queue name is used if empty");
+
+        JPanel linkPanel = new HorizontalPanel();
+        linkPanel.add(address);
+        linkPanel.add(linkCredit);
+        linkPanel.add(settlement);
+
+        return linkPanel;
+    }
+}
@@ -7,6 +7,7 @@ import javax.swing.JPanel;
 
 import org.apache.jmeter.gui.util.HorizontalPanel;
 import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
 import org.apache.jorphan.gui.JLabeledTextField;
 
 /**
@@ -17,12 +18,31 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
     private static final long serialVersionUID = 1L;
 
     private final JLabeledTextField receiveTimeout = new JLabeledTextField("Receive Timeout");
+    private final JLabeledTextField streamOffset = new JLabeledTextField("  Stream Offset");
     private final JLabeledTextField prefetchCount = new JLabeledTextField("   Prefetch Count");
+    private final JCheckBox adaptivePrefetch = new JCheckBox("Adaptive", AMQPConsumer.DEFAULT_ADAPTIVE_PREFETCH);
+    private final JLabeledTextField maxPrefetch = new JLabeledTextField("Max Prefetch");
+    private final JLabeledChoice responseRetention = new JLabeledChoice("Response Retention", AMQPConsumer.RESPONSE_RETENTION_POLICIES, false, false);
+    private final JLabeledTextField responseMaxBytes = new JLabeledTextField("Max Bytes");
+    private final JLabeledTextField fanInQueues = new JLabeledTextField("  Fan-in Queues");
+    private final JLabeledTextField fanInChannels = new JLabeledTextField("Channels");
+    private final JCheckBox sharedDispatcher = new JCheckBox("Shared Dispatcher", AMQPConsumer.DEFAULT_SHARED_DISPATCHER);
+    private final JLabeledTextField brokerConsumers = new JLabeledTextField("Broker Consumers");
+    private final JLabeledTextField serverNamedQueues = new JLabeledTextField("Server-named Queues");
 
     private final JCheckBox purgeQueue = new JCheckBox("Purge Queue", AMQPConsumer.DEFAULT_PURGE_QUEUE);
     private final JCheckBox autoAck = new JCheckBox("Auto ACK", AMQPConsumer.DEFAULT_AUTO_ACK);
     private final JCheckBox readResponse = new JCheckBox("Read Response", AMQPConsumer.DEFAULT_READ_RESPONSE);
     private final JCheckBox useTx = new JCheckBox("Use Transactions", AMQPConsumer.DEFAULT_USE_TX);
+    private final JLabeledTextField txBatchSize = new JLabeledTextField("Tx Batch Size");
+    private final JLabeledTextField txBatchTime = new JLabeledTextField("Tx Time Limit (ms)");
+    private final JCheckBox verifyChecksum = new JCheckBox("Verify Checksum", AMQPConsumer.DEFAULT_VERIFY_CHECKSUM);
+    private final JCheckBox reject = new JCheckBox("Reject", AMQPConsumer.DEFAULT_REJECT);
+    private final JCheckBox deadLetterStats = new JCheckBox("Dead-letter Stats", AMQPConsumer.DEFAULT_DEAD_LETTER_STATS);
+    private final JLabeledTextField deadLetterTtl = new JLabeledTextField("Source Queue TTL");
+    private final JCheckBox clockSync = new JCheckBox("Clock Sync", AMQPConsumer.DEFAULT_CLOCK_SYNC);
+    private final JLabeledTextField controlQueue = new JLabeledTextField("Control Queue");
+    private final JCheckBox priorityBreakdown = new JCheckBox("Latency by Priority", AMQPConsumer.DEFAULT_PRIORITY_BREAKDOWN);
 
     private JPanel mainPanel;
 
@@ -55,10 +75,54 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
         optionsPanel.add(autoAck);
         optionsPanel.add(readResponse);
         optionsPanel.add(useTx);
+        optionsPanel.add(verifyChecksum);
+        optionsPanel.add(priorityBreakdown);
 
         mainPanel.add(receiveTimeout);
-        mainPanel.add(prefetchCount);
+        streamOffset.setToolTipText("first, last, next, an offset, an ISO-8601 timestamp or an interval such as 10m");
+        mainPanel.add(streamOffset);
+        JPanel fanInPanel = new HorizontalPanel();
+        fanInQueues.setToolTipText("Comma separated queues consumed instead of the queue above, [1..100] expands to a numbered range");
+        fanInPanel.add(fanInQueues);
+        fanInPanel.add(fanInChannels);
+        mainPanel.add(fanInPanel);
+        serverNamedQueues.setToolTipText("Exclusive queues per thread bound to the exchange with the routing key, 0 for none");
+        mainPanel.add(serverNamedQueues);
+        JPanel clockPanel = new HorizontalPanel();
+        clockSync.setToolTipText("Correct latencies by the clock offset to the publishing host, estimated over its control queue");
+        clockPanel.add(clockSync);
+        clockPanel.add(controlQueue);
+        mainPanel.add(clockPanel);
+        JPanel deadLetterPanel = new HorizontalPanel();
+        reject.setToolTipText("Reject deliveries without requeueing, so they are dead-lettered");
+        deadLetterStats.setToolTipText("Consume a dead-letter queue and report the path latency per x-death reason");
+        deadLetterTtl.setToolTipText("Message TTL in ms of the queue messages expire in, if they carry no expiration");
+        deadLetterPanel.add(reject);
+        deadLetterPanel.add(deadLetterStats);
+        deadLetterPanel.add(deadLetterTtl);
+        mainPanel.add(deadLetterPanel);
+        JPanel sharedPanel = new HorizontalPanel();
+        sharedDispatcher.setToolTipText("All threads poll one buffer fed by a fixed number of consumers per queue");
+        sharedPanel.add(sharedDispatcher);
+        sharedPanel.add(brokerConsumers);
+        mainPanel.add(sharedPanel);
+        JPanel prefetchPanel = new HorizontalPanel();
+        prefetchPanel.add(prefetchCount);
+        prefetchPanel.add(adaptivePrefetch);
+        prefetchPanel.add(maxPrefetch);
+        mainPanel.add(prefetchPanel);
         mainPanel.add(optionsPanel);
+        JPanel txPanel = new HorizontalPanel();
+        txBatchSize.setToolTipText("Acknowledgements per commit, may span samples; 0 commits once per sample");
+        txBatchTime.setToolTipText("Commit once the oldest uncommitted acknowledgement waited this long, 0 for no limit");
+        txPanel.add(txBatchSize);
+        txPanel.add(txBatchTime);
+        mainPanel.add(txPanel);
+
+        JPanel responsePanel = new HorizontalPanel();
+        responsePanel.add(responseRetention);
+        responsePanel.add(responseMaxBytes);
+        mainPanel.add(responsePanel);
 
         optionsPanel.setPreferredSize(optionsPanel.getPreferredSize());
         optionsPanel.validate();
@@ -77,10 +141,29 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 
         readResponse.setSelected(sampler.getReadResponseAsBoolean());
         prefetchCount.setText(sampler.getPrefetchCount());
+        adaptivePrefetch.setSelected(sampler.getAdaptivePrefetch());
+        maxPrefetch.setText(sampler.getMaxPrefetch());
         receiveTimeout.setText(sampler.getReceiveTimeout());
+        streamOffset.setText(sampler.getStreamOffset());
+        fanInQueues.setText(sampler.getFanInQueues());
+        fanInChannels.setText(sampler.getFanInChannels());
+        sharedDispatcher.setSelected(sampler.getSharedDispatcher());
+        brokerConsumers.setText(sampler.getBrokerConsumers());
+        serverNamedQueues.setText(sampler.getServerNamedQueues());
         purgeQueue.setSelected(sampler.purgeQueue());
         autoAck.setSelected(sampler.autoAck());
         useTx.setSelected(sampler.getUseTx());
+        txBatchSize.setText(sampler.getTxBatchSize());
+        txBatchTime.setText(sampler.getTxBatchTime());
+        verifyChecksum.setSelected(sampler.getVerifyChecksum());
+        priorityBreakdown.setSelected(sampler.getPriorityBreakdown());
+        clockSync.setSelected(sampler.getClockSync());
+        controlQueue.setText(sampler.getControlQueue());
+        reject.setSelected(sampler.getReject());
+        deadLetterStats.setSelected(sampler.getDeadLetterStats());
+        deadLetterTtl.setText(sampler.getDeadLetterTtl());
+        responseRetention.setText(sampler.getResponseRetention());
+        responseMaxBytes.setText(sampler.getResponseMaxBytes());
     }
 
     /**
@@ -91,10 +174,29 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
         super.clearGui();
         readResponse.setSelected(AMQPConsumer.DEFAULT_READ_RESPONSE);
         prefetchCount.setText(AMQPConsumer.DEFAULT_PREFETCH_COUNT_STRING);
+        adaptivePrefetch.setSelected(AMQPConsumer.DEFAULT_ADAPTIVE_PREFETCH);
+        maxPrefetch.setText(AMQPConsumer.DEFAULT_MAX_PREFETCH_STRING);
         useTx.setSelected(AMQPConsumer.DEFAULT_USE_TX);
+        txBatchSize.setText(AMQPConsumer.DEFAULT_TX_BATCH_SIZE);
+        txBatchTime.setText(AMQPConsumer.DEFAULT_TX_BATCH_TIME);
         receiveTimeout.setText(AMQPConsumer.DEFAULT_RECEIVE_TIMEOUT);
+        streamOffset.setText(AMQPConsumer.DEFAULT_STREAM_OFFSET);
+        fanInQueues.setText(AMQPConsumer.DEFAULT_FAN_IN_QUEUES);
+        fanInChannels.setText(AMQPConsumer.DEFAULT_FAN_IN_CHANNELS_STRING);
+        sharedDispatcher.setSelected(AMQPConsumer.DEFAULT_SHARED_DISPATCHER);
+        brokerConsumers.setText(AMQPConsumer.DEFAULT_BROKER_CONSUMERS_STRING);
+        serverNamedQueues.setText(AMQPConsumer.DEFAULT_SERVER_NAMED_QUEUES_STRING);
         purgeQueue.setSelected(AMQPConsumer.DEFAULT_PURGE_QUEUE);
         autoAck.setSelected(AMQPConsumer.DEFAULT_AUTO_ACK);
+        verifyChecksum.setSelected(AMQPConsumer.DEFAULT_VERIFY_CHECKSUM);
+        priorityBreakdown.setSelected(AMQPConsumer.DEFAULT_PRIORITY_BREAKDOWN);
+        clockSync.setSelected(AMQPConsumer.DEFAULT_CLOCK_SYNC);
+        controlQueue.setText(AMQPConsumer.DEFAULT_CONTROL_QUEUE);
+        reject.setSelected(AMQPConsumer.DEFAULT_REJECT);
+        deadLetterStats.setSelected(AMQPConsumer.DEFAULT_DEAD_LETTER_STATS);
+        deadLetterTtl.setText(AMQPConsumer.DEFAULT_DEAD_LETTER_TTL);
+        responseRetention.setText(AMQPConsumer.DEFAULT_RESPONSE_RETENTION);
+        responseMaxBytes.setText(AMQPConsumer.DEFAULT_RESPONSE_MAX_BYTES_STRING);
     }
 
     /**
@@ -121,10 +223,29 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 
         sampler.setReadResponse(readResponse.isSelected());
         sampler.setPrefetchCount(prefetchCount.getText());
+        sampler.setAdaptivePrefetch(adaptivePrefetch.isSelected());
+        sampler.setMaxPrefetch(maxPrefetch.getText());
         sampler.setReceiveTimeout(receiveTimeout.getText());
+        sampler.setStreamOffset(streamOffset.getText());
+        sampler.setFanInQueues(fanInQueues.getText());
+        sampler.setFanInChannels(fanInChannels.getText());
+        sampler.setSharedDispatcher(sharedDispatcher.isSelected());
+        sampler.setBrokerConsumers(brokerConsumers.getText());
+        sampler.setServerNamedQueues(serverNamedQueues.getText());
         sampler.setPurgeQueue(purgeQueue.isSelected());
         sampler.setAutoAck(autoAck.isSelected());
         sampler.setUseTx(useTx.isSelected());
+        sampler.setTxBatchSize(txBatchSize.getText());
+        sampler.setTxBatchTime(txBatchTime.getText());
+        sampler.setVerifyChecksum(verifyChecksum.isSelected());
+        sampler.setPriorityBreakdown(priorityBreakdown.isSelected());
+        sampler.setClockSync(clockSync.isSelected());
+        sampler.setControlQueue(controlQueue.getText());
+        sampler.setReject(reject.isSelected());
+        sampler.setDeadLetterStats(deadLetterStats.isSelected());
+        sampler.setDeadLetterTtl(deadLetterTtl.getText());
+        sampler.setResponseRetention(responseRetention.getText());
+        sampler.setResponseMaxBytes(responseMaxBytes.getText());
     }
 
     @Override
@@ -1,6 +1,9 @@
 package com.zeroclue.jmeter.protocol.amqp.gui;
 
 import com.zeroclue.jmeter.protocol.amqp.AMQPPublisher;
+import com.zeroclue.jmeter.protocol.amqp.PayloadChecksum;
+import com.zeroclue.jmeter.protocol.amqp.RoutingKeyGenerator;
+import com.zeroclue.jmeter.protocol.amqp.SaturationSearch;
 
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
@@ -15,6 +18,7 @@ import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.config.gui.ArgumentsPanel;
 import org.apache.jmeter.gui.util.HorizontalPanel;
 import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
 import org.apache.jorphan.gui.JLabeledTextArea;
 import org.apache.jorphan.gui.JLabeledTextField;
 
@@ -38,13 +42,34 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
     private final JLabeledTextField appId = new JLabeledTextField("       Application ID");
 
     private final JCheckBox timestamp = new JCheckBox("Timestamp", AMQPPublisher.DEFAULT_TIMESTAMP);
+    private final JLabeledChoice routingKeyMode = new JLabeledChoice("Key Mode", RoutingKeyGenerator.MODES, false, false);
+    private final JLabeledTextField routingKeyCount = new JLabeledTextField("Keys");
+    private final JLabeledTextField routingKeyExponent = new JLabeledTextField("Zipf Exponent");
+    private final JLabeledTextField priorityDistribution = new JLabeledTextField("   Priority Weights");
+    private final JCheckBox stampSendTime = new JCheckBox("Send Time Header", AMQPPublisher.DEFAULT_STAMP_SEND_TIME);
+    private final JCheckBox clockSync = new JCheckBox("Clock Sync", AMQPPublisher.DEFAULT_CLOCK_SYNC);
+    private final JLabeledTextField controlQueue = new JLabeledTextField("Control Queue");
     private final JCheckBox persistent = new JCheckBox("Persistent", AMQPPublisher.DEFAULT_PERSISTENT);
     private final JCheckBox useTx = new JCheckBox("Use Transactions", AMQPPublisher.DEFAULT_USE_TX);
+    private final JCheckBox mandatory = new JCheckBox("Mandatory", AMQPPublisher.DEFAULT_MANDATORY);
+    private final JCheckBox messageTemplate = new JCheckBox("Message Template", AMQPPublisher.DEFAULT_MESSAGE_TEMPLATE);
+    private final JLabeledTextField txBatchSize = new JLabeledTextField("Tx Batch Size");
+    private final JLabeledTextField txBatchTime = new JLabeledTextField("Tx Time Limit (ms)");
+    private final JLabeledChoice checksum = new JLabeledChoice("Checksum", PayloadChecksum.CHECKSUM_TYPES, false, false);
+
+    private final JLabeledChoice searchMode = new JLabeledChoice("Mode", SaturationSearch.MODES, false, false);
+    private final JLabeledTextField searchStartRate = new JLabeledTextField("Start Rate");
+    private final JLabeledTextField searchRateStep = new JLabeledTextField("Rate Step");
+    private final JLabeledTextField searchMaxRate = new JLabeledTextField("Max Rate");
+    private final JLabeledTextField searchStepTime = new JLabeledTextField("Step Time (s)");
+    private final JLabeledTextField searchLatencySlo = new JLabeledTextField("p99 Confirm SLO (ms)");
+    private final JLabeledTextField searchMaxLag = new JLabeledTextField("Max Lag Growth");
 
     private final ArgumentsPanel headers = new ArgumentsPanel("Headers");
 
     private static final String MSG_SETTINGS_LABEL = "Message";
     private static final String PROPS_SETTINGS_LABEL = "Properties";
+    private static final String SEARCH_SETTINGS_LABEL = "Saturation Search";
 
     private JPanel mainPanel;
 
@@ -78,18 +103,38 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
         persistent.setSelected(sampler.getPersistent());
         useTx.setSelected(sampler.getUseTx());
+        mandatory.setSelected(sampler.getMandatory());
+        messageTemplate.setSelected(sampler.getMessageTemplate());
+        txBatchSize.setText(sampler.getTxBatchSize());
+        txBatchTime.setText(sampler.getTxBatchTime());
 
         messageRoutingKey.setText(sampler.getMessageRoutingKey());
+        routingKeyMode.setText(sampler.getRoutingKeyMode());
+        routingKeyCount.setText(sampler.getRoutingKeyCount());
+        routingKeyExponent.setText(sampler.getRoutingKeyExponent());
         messageType.setText(sampler.getMessageType());
         replyToQueue.setText(sampler.getReplyToQueue());
         contentType.setText(sampler.getContentType());
         contentEncoding.setText(sampler.getContentEncoding());
         correlationId.setText(sampler.getCorrelationId());
         messagePriority.setText(sampler.getMessagePriority());
+        priorityDistribution.setText(sampler.getPriorityDistribution());
         messageId.setText(sampler.getMessageId());
         message.setText(sampler.getMessage());
         appId.setText(sampler.getAppId());
         timestamp.setSelected(sampler.getTimestamp());
+        stampSendTime.setSelected(sampler.getStampSendTime());
+        clockSync.setSelected(sampler.getClockSync());
+        controlQueue.setText(sampler.getControlQueue());
+        checksum.setText(sampler.getChecksum());
+
+        searchMode.setText(sampler.getSearchMode());
+        searchStartRate.setText(sampler.getSearchStartRate());
+        searchRateStep.setText(sampler.getSearchRateStep());
+        searchMaxRate.setText(sampler.getSearchMaxRate());
+        searchStepTime.setText(sampler.getSearchStepTime());
+        searchLatencySlo.setText(sampler.getSearchLatencySlo());
+        searchMaxLag.setText(sampler.getSearchMaxLag());
 
         configureHeaders(sampler);
     }
@@ -118,18 +163,38 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
         sampler.setPersistent(persistent.isSelected());
         sampler.setUseTx(useTx.isSelected());
+        sampler.setMandatory(mandatory.isSelected());
+        sampler.setMessageTemplate(messageTemplate.isSelected());
+        sampler.setTxBatchSize(txBatchSize.getText());
+        sampler.setTxBatchTime(txBatchTime.getText());
 
         sampler.setMessageRoutingKey(messageRoutingKey.getText());
+        sampler.setRoutingKeyMode(routingKeyMode.getText());
+        sampler.setRoutingKeyCount(routingKeyCount.getText());
+        sampler.setRoutingKeyExponent(routingKeyExponent.getText());
         sampler.setMessage(message.getText());
         sampler.setMessageType(messageType.getText());
         sampler.setReplyToQueue(replyToQueue.getText());
         sampler.setCorrelationId(correlationId.getText());
         sampler.setMessagePriority(messagePriority.getText());
+        sampler.setPriorityDistribution(priorityDistribution.getText());
         sampler.setContentType(contentType.getText());
         sampler.setContentEncoding(contentEncoding.getText());
         sampler.setMessageId(messageId.getText());
         sampler.setAppId(appId.getText());
         sampler.setTimestamp(timestamp.isSelected());
+        sampler.setStampSendTime(stampSendTime.isSelected());
+        sampler.setClockSync(clockSync.isSelected());
+        sampler.setControlQueue(controlQueue.getText());
+        sampler.setChecksum(checksum.getText());
+
+        sampler.setSearchMode(searchMode.getText());
+        sampler.setSearchStartRate(searchStartRate.getText());
+        sampler.setSearchRateStep(searchRateStep.getText());
+        sampler.setSearchMaxRate(searchMaxRate.getText());
+        sampler.setSearchStepTime(searchStepTime.getText());
+        sampler.setSearchLatencySlo(searchLatencySlo.getText());
+        sampler.setSearchMaxLag(searchMaxLag.getText());
 
         sampler.setHeaders((Arguments) headers.createTestElement());
     }
@@ -147,6 +212,35 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
         super.init();
 
         mainPanel.add(initMessagePanel());
+        mainPanel.add(initSearchPanel());
+    }
+
+    private JPanel initSearchPanel() {
+        GridBagConstraints constraints = new GridBagConstraints();
+        constraints.insets = new java.awt.Insets(2, 2, 2, 2);
+        constraints.fill = GridBagConstraints.HORIZONTAL;
+        constraints.anchor = GridBagConstraints.LINE_START;
+        constraints.weightx = 1.0;
+        constraints.weighty = 0.5;
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+
+        JPanel searchPanel = new JPanel(new GridBagLayout());
+        searchPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createEtchedBorder(), SEARCH_SETTINGS_LABEL));
+
+        JPanel ratePanel = new HorizontalPanel();
+        ratePanel.add(searchMode);
+        ratePanel.add(searchStartRate);
+        ratePanel.add(searchRateStep);
+        ratePanel.add(searchMaxRate);
+        searchPanel.add(ratePanel, constraints);
+
+        JPanel limitPanel = new HorizontalPanel();
+        limitPanel.add(searchStepTime);
+        limitPanel.add(searchLatencySlo);
+        limitPanel.add(searchMaxLag);
+        searchPanel.add(limitPanel, constraints);
+
+        return searchPanel;
     }
 
     private JPanel initMessagePanel() {
@@ -164,8 +258,20 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
         JPanel optionsPanel = new HorizontalPanel();
         optionsPanel.add(persistent);
         optionsPanel.add(useTx);
+        mandatory.setToolTipText("Have the broker return unroutable messages, they are reported as failed sub-results");
+        optionsPanel.add(mandatory);
+        optionsPanel.add(checksum);
+        messageTemplate.setToolTipText("Render {{seq}}, {{uuid}}, {{timestamp}}, {{random:min:max}} and {{csv:file:column}} placeholders for each message");
+        optionsPanel.add(messageTemplate);
         messagePanel.add(optionsPanel, constraints);
 
+        JPanel txPanel = new HorizontalPanel();
+        txBatchSize.setToolTipText("Messages per commit, may span samples; 0 commits once per sample");
+        txBatchTime.setToolTipText("Commit once the oldest uncommitted message waited this long, 0 for no limit");
+        txPanel.add(txBatchSize);
+        txPanel.add(txBatchTime);
+        messagePanel.add(txPanel, constraints);
+
         messagePanel.add(initMessagePropertyPanel(), constraints);
         message.setPreferredSize(new Dimension(400, 200));
         messagePanel.add(message, constraints);
@@ -191,15 +297,30 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
         timestamp.setIconTextGap(35);
 
         propertyPanel.add(messageRoutingKey, constraints);
+        JPanel routingKeyPanel = new HorizontalPanel();
+        routingKeyMode.setToolTipText("Generate keys from the routing key, {n} placeholders expand to 0..n-1");
+        routingKeyPanel.add(routingKeyMode);
+        routingKeyPanel.add(routingKeyCount);
+        routingKeyPanel.add(routingKeyExponent);
+        propertyPanel.add(routingKeyPanel, constraints);
         propertyPanel.add(replyToQueue, constraints);
         propertyPanel.add(messageType, constraints);
         propertyPanel.add(correlationId, constraints);
         propertyPanel.add(messageId, constraints);
         propertyPanel.add(messagePriority, constraints);
+        priorityDistribution.setToolTipText("priority:weight pairs, e.g. 0:70, 5:20, 9:10; overrides the priority above");
+        propertyPanel.add(priorityDistribution, constraints);
         propertyPanel.add(appId, constraints);
         propertyPanel.add(contentType, constraints);
         propertyPanel.add(contentEncoding, constraints);
         propertyPanel.add(timestamp, constraints);
+        stampSendTime.setToolTipText("Stamp the send time in ms and a sequence as headers, for delivery latency and fan-out skew");
+        JPanel sendTimePanel = new HorizontalPanel();
+        clockSync.setToolTipText("Answer clock pings of consumers on other hosts, so they can correct latencies");
+        sendTimePanel.add(stampSendTime);
+        sendTimePanel.add(clockSync);
+        sendTimePanel.add(controlQueue);
+        propertyPanel.add(sendTimePanel, constraints);
 
         return propertyPanel;
     }
@@ -213,17 +334,37 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
         persistent.setSelected(AMQPPublisher.DEFAULT_PERSISTENT);
         useTx.setSelected(AMQPPublisher.DEFAULT_USE_TX);
+        mandatory.setSelected(AMQPPublisher.DEFAULT_MANDATORY);
+        messageTemplate.setSelected(AMQPPublisher.DEFAULT_MESSAGE_TEMPLATE);
+        txBatchSize.setText(AMQPPublisher.DEFAULT_TX_BATCH_SIZE);
+        txBatchTime.setText(AMQPPublisher.DEFAULT_TX_BATCH_TIME);
         messageRoutingKey.setText("");
+        routingKeyMode.setText(AMQPPublisher.DEFAULT_ROUTING_KEY_MODE);
+        routingKeyCount.setText(AMQPPublisher.DEFAULT_ROUTING_KEY_COUNT_STRING);
+        routingKeyExponent.setText(AMQPPublisher.DEFAULT_ROUTING_KEY_EXPONENT_STRING);
         messageType.setText("");
         replyToQueue.setText("");
         correlationId.setText("");
         messagePriority.setText("");
+        priorityDistribution.setText(AMQPPublisher.DEFAULT_PRIORITY_DISTRIBUTION);
         contentType.setText(AMQPPublisher.DEFAULT_CONTENT_TYPE);
         contentEncoding.setText(AMQPPublisher.DEFAULT_ENCODING);
         messageId.setText("");
         message.setText("");
         appId.setText("");
         timestamp.setSelected(AMQPPublisher.DEFAULT_TIMESTAMP);
+        stampSendTime.setSelected(AMQPPublisher.DEFAULT_STAMP_SEND_TIME);
+        clockSync.setSelected(AMQPPublisher.DEFAULT_CLOCK_SYNC);
+        controlQueue.setText(AMQPPublisher.DEFAULT_CONTROL_QUEUE);
+        checksum.setText(AMQPPublisher.DEFAULT_CHECKSUM);
+
+        searchMode.setText(AMQPPublisher.DEFAULT_SEARCH_MODE);
+        searchStartRate.setText(AMQPPublisher.DEFAULT_SEARCH_START_RATE_STRING);
+        searchRateStep.setText(AMQPPublisher.DEFAULT_SEARCH_RATE_STEP_STRING);
+        searchMaxRate.setText(AMQPPublisher.DEFAULT_SEARCH_MAX_RATE_STRING);
+        searchStepTime.setText(AMQPPublisher.DEFAULT_SEARCH_STEP_TIME_STRING);
+        searchLatencySlo.setText(AMQPPublisher.DEFAULT_SEARCH_LATENCY_SLO_STRING);
+        searchMaxLag.setText(AMQPPublisher.DEFAULT_SEARCH_MAX_LAG);
 
         headers.clearGui();
     }
@@ -0,0 +1,110 @@
+package com.zeroclue.jmeter.protocol.amqp.gui;
+
+import com.zeroclue.jmeter.protocol.amqp.AMQPQueueMonitor;
+
+import java.awt.Dimension;
+
+import javax.swing.JPanel;
+
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledTextArea;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+/**
+ * GUI for AMQP Queue Monitor.
+ */
+public class AMQPQueueMonitorGui extends AMQPSamplerGui {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JLabeledTextArea queues = new JLabeledTextArea("Monitored Queues");
+    private final JLabeledTextField outputFile = new JLabeledTextField("Output File");
+
+    private JPanel mainPanel;
+
+    public AMQPQueueMonitorGui() {
+        init();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLabelResource() {
+        return this.getClass().getSimpleName();
+    }
+
+    @Override
+    public String getStaticLabel() {
+        return "AMQP Queue Monitor";
+    }
+
+    /*
+     * Helper method to set up the GUI screen
+     */
+    @Override
+    protected void init() {
+        super.init();
+
+        queues.setPreferredSize(new Dimension(400, 100));
+        queues.setToolTipText("Comma or line separated queue names, [1..100] expands to a numbered range");
+        mainPanel.add(queues);
+        mainPanel.add(outputFile);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+        if (!(element instanceof AMQPQueueMonitor)) {
+            return;
+        }
+        AMQPQueueMonitor sampler = (AMQPQueueMonitor) element;
+
+        queues.setText(sampler.getQueues());
+        outputFile.setText(sampler.getOutputFile());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+        queues.setText(AMQPQueueMonitor.DEFAULT_QUEUES);
+        outputFile.setText(AMQPQueueMonitor.DEFAULT_OUTPUT_FILE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestElement createTestElement() {
+        AMQPQueueMonitor sampler = new AMQPQueueMonitor();
+        modifyTestElement(sampler);
+
+        return sampler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifyTestElement(TestElement te) {
+        AMQPQueueMonitor sampler = (AMQPQueueMonitor) te;
+        sampler.clear();
+        configureTestElement(sampler);
+
+        super.modifyTestElement(sampler);
+
+        sampler.setQueues(queues.getText());
+        sampler.setOutputFile(outputFile.getText());
+    }
+
+    @Override
+    protected void setMainPanel(JPanel panel) {
+        mainPanel = panel;
+    }
+}
@@ -1,6 +1,7 @@
 package com.zeroclue.jmeter.protocol.amqp.gui;
 
 import com.zeroclue.jmeter.protocol.amqp.AMQPSampler;
+import com.zeroclue.jmeter.protocol.amqp.HostDistribution;
 
 import java.awt.BorderLayout;
 import java.awt.Component;
@@ -43,6 +44,14 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
     protected JLabeledTextField deadLetterRoutingKey = new JLabeledTextField("DL Routing Key");
     protected JLabeledTextField messageExpires = new JLabeledTextField("           Expires");
     protected JLabeledTextField maxPriority = new JLabeledTextField("   Max Priority");
+    private final JLabeledChoice queueType = new JLabeledChoice("     Queue Type", AMQPSampler.QUEUE_TYPES, false, false);
+    protected JLabeledTextField maxLengthBytes = new JLabeledTextField("Max Length Bytes");
+    protected JLabeledTextField streamSegmentSize = new JLabeledTextField("Segment Size");
+    protected JLabeledTextField maxLength = new JLabeledTextField("     Max Length");
+    private final JLabeledChoice overflow = new JLabeledChoice("        Overflow", AMQPSampler.OVERFLOW_BEHAVIOURS, false, false);
+    protected JLabeledTextField deliveryLimit = new JLabeledTextField("  Delivery Limit");
+    protected JLabeledTextField quorumGroupSize = new JLabeledTextField("Quorum Group Size");
+    private final JCheckBox tagQueueType = new JCheckBox("Tag Results by Type", AMQPSampler.DEFAULT_TAG_QUEUE_TYPE);
     protected final JCheckBox queueDurable = new JCheckBox("Durable", AMQPSampler.DEFAULT_QUEUE_DURABLE);
     protected final JCheckBox queueRedeclare = new JCheckBox("Redeclare", AMQPSampler.DEFAULT_QUEUE_REDECLARE);
     protected final JCheckBox queueExclusive = new JCheckBox("Exclusive", AMQPSampler.DEFAULT_QUEUE_EXCLUSIVE);
@@ -57,8 +66,33 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
     protected JLabeledTextField password = new JLabeledTextField("   Password");
     protected JLabeledTextField heartbeat = new JLabeledTextField("  Heartbeat");
     private final JCheckBox ssl = new JCheckBox("SSL", AMQPSampler.DEFAULT_SSL_STATE);
+    private final JCheckBox automaticRecovery = new JCheckBox("Auto Recovery", AMQPSampler.DEFAULT_AUTOMATIC_RECOVERY);
+    private final JCheckBox topologyRecovery = new JCheckBox("Topology Recovery", AMQPSampler.DEFAULT_TOPOLOGY_RECOVERY);
+    protected JLabeledTextField recoveryInterval = new JLabeledTextField("Recovery Interval");
+    private final JLabeledChoice hostDistribution = new JLabeledChoice("Distribution", HostDistribution.POLICIES, false, false);
+    private final JCheckBox tagNode = new JCheckBox("Tag Results by Node", AMQPSampler.DEFAULT_TAG_NODE);
+    private final JCheckBox tcpNoDelay = new JCheckBox("TCP No Delay", AMQPSampler.DEFAULT_TCP_NO_DELAY);
+    private final JLabeledTextField sendBufferSize = new JLabeledTextField("Send Buffer");
+    private final JLabeledTextField receiveBufferSize = new JLabeledTextField("Receive Buffer");
+    private final JLabeledTextField frameMax = new JLabeledTextField("Frame Max");
+    private final JLabeledTextField channelMax = new JLabeledTextField("Channel Max");
+    private final JCheckBox useNio = new JCheckBox("NIO", AMQPSampler.DEFAULT_USE_NIO);
+    private final JLabeledTextField nioBufferSize = new JLabeledTextField("NIO Buffer");
+    private final JCheckBox countBytes = new JCheckBox("Count Wire Bytes", AMQPSampler.DEFAULT_COUNT_BYTES);
+    private final JLabeledTextField sslProtocol = new JLabeledTextField("SSL Protocol");
+    private final JLabeledTextField cipherSuites = new JLabeledTextField("Cipher Suites");
+    private final JCheckBox resumeSessions = new JCheckBox("Resume Sessions", AMQPSampler.DEFAULT_RESUME_SESSIONS);
+    private final JLabeledTextField keyStore = new JLabeledTextField("Key Store");
+    private final JLabeledTextField keyStoreType = new JLabeledTextField("Type");
+    private final JLabeledTextField keyStorePassword = new JLabeledTextField("Password");
+    private final JLabeledTextField trustStore = new JLabeledTextField("Trust Store");
+    private final JLabeledTextField trustStoreType = new JLabeledTextField("Type");
+    private final JLabeledTextField trustStorePassword = new JLabeledTextField("Password");
 
     protected final JLabeledTextField iterations = new JLabeledTextField("Number of Samples to Aggregate");
+    private final JLabeledTextField summaryWindow = new JLabeledTextField("Summary Window (ms)");
+    private final JLabeledTextField histogramLog = new JLabeledTextField("Histogram Log Directory");
+    private final JLabeledTextField histogramLogInterval = new JLabeledTextField("Log Interval (ms)");
 
     private static final String EXCHANGE_SETTINGS_LABEL = "Exchange";
     private static final String QUEUE_SETTINGS_LABEL = "Queue";
@@ -66,6 +100,9 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 
     private static final String WIKI_PAGE = "https://github.com/maurigre/jmeter-amqp-plugin";
 
+    private JPanel exchangeSettings;
+    private JPanel queueSettings;
+
     protected abstract void setMainPanel(JPanel panel);
 
     /**
@@ -92,6 +129,14 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         deadLetterRoutingKey.setText(sampler.getXDeadLetterRoutingKey());
         messageExpires.setText(sampler.getMessageExpires());
         maxPriority.setText(sampler.getMaxPriority());
+        queueType.setText(sampler.getQueueType());
+        maxLengthBytes.setText(sampler.getMaxLengthBytes());
+        streamSegmentSize.setText(sampler.getStreamSegmentSize());
+        maxLength.setText(sampler.getMaxLength());
+        overflow.setText(sampler.getOverflow());
+        deliveryLimit.setText(sampler.getDeliveryLimit());
+        quorumGroupSize.setText(sampler.getQuorumGroupSize());
+        tagQueueType.setSelected(sampler.getTagQueueType());
 
         queueDurable.setSelected(sampler.queueDurable());
         queueRedeclare.setSelected(sampler.getQueueRedeclare());
@@ -107,8 +152,33 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         timeout.setText(sampler.getTimeout());
         heartbeat.setText(sampler.getHeartbeat());
         ssl.setSelected(sampler.getConnectionSSL());
+        automaticRecovery.setSelected(sampler.getAutomaticRecovery());
+        topologyRecovery.setSelected(sampler.getTopologyRecovery());
+        recoveryInterval.setText(sampler.getRecoveryInterval());
+        hostDistribution.setText(sampler.getHostDistribution());
+        tagNode.setSelected(sampler.getTagNode());
+        tcpNoDelay.setSelected(sampler.getTcpNoDelay());
+        sendBufferSize.setText(sampler.getSendBufferSize());
+        receiveBufferSize.setText(sampler.getReceiveBufferSize());
+        frameMax.setText(sampler.getFrameMax());
+        channelMax.setText(sampler.getChannelMax());
+        useNio.setSelected(sampler.getUseNio());
+        nioBufferSize.setText(sampler.getNioBufferSize());
+        countBytes.setSelected(sampler.getCountBytes());
+        sslProtocol.setText(sampler.getSslProtocol());
+        cipherSuites.setText(sampler.getCipherSuites());
+        resumeSessions.setSelected(sampler.getResumeSessions());
+        keyStore.setText(sampler.getKeyStore());
+        keyStoreType.setText(sampler.getKeyStoreType());
+        keyStorePassword.setText(sampler.getKeyStorePassword());
+        trustStore.setText(sampler.getTrustStore());
+        trustStoreType.setText(sampler.getTrustStoreType());
+        trustStorePassword.setText(sampler.getTrustStorePassword());
 
         iterations.setText(sampler.getIterations());
+        summaryWindow.setText(sampler.getSummaryWindow());
+        histogramLog.setText(sampler.getHistogramLog());
+        histogramLogInterval.setText(sampler.getHistogramLogInterval());
 
         log.debug("AMQPSamplerGui.configure() called");
     }
@@ -131,6 +201,14 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         deadLetterRoutingKey.setText(AMQPSampler.DEFAULT_DEAD_LETTER_ROUTING_KEY);
         messageExpires.setText(AMQPSampler.DEFAULT_MSG_EXPIRES);
         maxPriority.setText(AMQPSampler.DEFAULT_MSG_PRIORITY);
+        queueType.setText(AMQPSampler.DEFAULT_QUEUE_TYPE);
+        maxLengthBytes.setText(AMQPSampler.DEFAULT_MAX_LENGTH_BYTES);
+        streamSegmentSize.setText(AMQPSampler.DEFAULT_STREAM_SEGMENT_SIZE);
+        maxLength.setText(AMQPSampler.DEFAULT_MAX_LENGTH);
+        overflow.setText(AMQPSampler.DEFAULT_OVERFLOW);
+        deliveryLimit.setText(AMQPSampler.DEFAULT_DELIVERY_LIMIT);
+        quorumGroupSize.setText(AMQPSampler.DEFAULT_QUORUM_GROUP_SIZE);
+        tagQueueType.setSelected(AMQPSampler.DEFAULT_TAG_QUEUE_TYPE);
 
         queueDurable.setSelected(AMQPSampler.DEFAULT_QUEUE_DURABLE);
         queueRedeclare.setSelected(AMQPSampler.DEFAULT_QUEUE_REDECLARE);
@@ -146,8 +224,33 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         timeout.setText(AMQPSampler.DEFAULT_TIMEOUT_STRING);
         heartbeat.setText(AMQPSampler.DEFAULT_HEARTBEAT_STRING);
         ssl.setSelected(AMQPSampler.DEFAULT_SSL_STATE);
+        automaticRecovery.setSelected(AMQPSampler.DEFAULT_AUTOMATIC_RECOVERY);
+        topologyRecovery.setSelected(AMQPSampler.DEFAULT_TOPOLOGY_RECOVERY);
+        recoveryInterval.setText(AMQPSampler.DEFAULT_RECOVERY_INTERVAL_STRING);
+        hostDistribution.setText(AMQPSampler.DEFAULT_HOST_DISTRIBUTION);
+        tagNode.setSelected(AMQPSampler.DEFAULT_TAG_NODE);
+        tcpNoDelay.setSelected(AMQPSampler.DEFAULT_TCP_NO_DELAY);
+        sendBufferSize.setText(AMQPSampler.DEFAULT_SEND_BUFFER_SIZE);
+        receiveBufferSize.setText(AMQPSampler.DEFAULT_RECEIVE_BUFFER_SIZE);
+        frameMax.setText(AMQPSampler.DEFAULT_FRAME_MAX);
+        channelMax.setText(AMQPSampler.DEFAULT_CHANNEL_MAX);
+        useNio.setSelected(AMQPSampler.DEFAULT_USE_NIO);
+        nioBufferSize.setText(AMQPSampler.DEFAULT_NIO_BUFFER_SIZE);
+        countBytes.setSelected(AMQPSampler.DEFAULT_COUNT_BYTES);
+        sslProtocol.setText(AMQPSampler.DEFAULT_SSL_PROTOCOL);
+        cipherSuites.setText(AMQPSampler.DEFAULT_CIPHER_SUITES);
+        resumeSessions.setSelected(AMQPSampler.DEFAULT_RESUME_SESSIONS);
+        keyStore.setText("");
+        keyStoreType.setText(AMQPSampler.DEFAULT_STORE_TYPE);
+        keyStorePassword.setText("");
+        trustStore.setText("");
+        trustStoreType.setText(AMQPSampler.DEFAULT_STORE_TYPE);
+        trustStorePassword.setText("");
 
         iterations.setText(AMQPSampler.DEFAULT_ITERATIONS_STRING);
+        summaryWindow.setText(AMQPSampler.DEFAULT_SUMMARY_WINDOW);
+        histogramLog.setText(AMQPSampler.DEFAULT_HISTOGRAM_LOG);
+        histogramLogInterval.setText(AMQPSampler.DEFAULT_HISTOGRAM_LOG_INTERVAL_STRING);
     }
 
     /**
@@ -172,6 +275,14 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         sampler.setXDeadLetterRoutingKey(deadLetterRoutingKey.getText());
         sampler.setMessageExpires(messageExpires.getText());
         sampler.setMaxPriority(maxPriority.getText());
+        sampler.setQueueType(queueType.getText());
+        sampler.setMaxLengthBytes(maxLengthBytes.getText());
+        sampler.setStreamSegmentSize(streamSegmentSize.getText());
+        sampler.setMaxLength(maxLength.getText());
+        sampler.setOverflow(overflow.getText());
+        sampler.setDeliveryLimit(deliveryLimit.getText());
+        sampler.setQuorumGroupSize(quorumGroupSize.getText());
+        sampler.setTagQueueType(tagQueueType.isSelected());
 
         sampler.setQueueDurable(queueDurable.isSelected());
         sampler.setQueueRedeclare(queueRedeclare.isSelected());
@@ -187,8 +298,33 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         sampler.setTimeout(timeout.getText());
         sampler.setHeartbeat(heartbeat.getText());
         sampler.setConnectionSSL(ssl.isSelected());
+        sampler.setAutomaticRecovery(automaticRecovery.isSelected());
+        sampler.setTopologyRecovery(topologyRecovery.isSelected());
+        sampler.setRecoveryInterval(recoveryInterval.getText());
+        sampler.setHostDistribution(hostDistribution.getText());
+        sampler.setTagNode(tagNode.isSelected());
+        sampler.setTcpNoDelay(tcpNoDelay.isSelected());
+        sampler.setSendBufferSize(sendBufferSize.getText());
+        sampler.setReceiveBufferSize(receiveBufferSize.getText());
+        sampler.setFrameMax(frameMax.getText());
+        sampler.setChannelMax(channelMax.getText());
+        sampler.setUseNio(useNio.isSelected());
+        sampler.setNioBufferSize(nioBufferSize.getText());
+        sampler.setCountBytes(countBytes.isSelected());
+        sampler.setSslProtocol(sslProtocol.getText());
+        sampler.setCipherSuites(cipherSuites.getText());
+        sampler.setResumeSessions(resumeSessions.isSelected());
+        sampler.setKeyStore(keyStore.getText());
+        sampler.setKeyStoreType(keyStoreType.getText());
+        sampler.setKeyStorePassword(keyStorePassword.getText());
+        sampler.setTrustStore(trustStore.getText());
+        sampler.setTrustStoreType(trustStoreType.getText());
+        sampler.setTrustStorePassword(trustStorePassword.getText());
 
         sampler.setIterations(iterations.getText());
+        sampler.setSummaryWindow(summaryWindow.getText());
+        sampler.setHistogramLog(histogramLog.getText());
+        sampler.setHistogramLogInterval(histogramLogInterval.getText());
 
         log.debug("AMQPSamplerGui.modifyTestElement() called, set user/pass to {}/{} on sampler {}",
             username.getText(), password.getText(), sampler);
@@ -207,11 +343,42 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         JPanel mainPanel = new VerticalPanel();
         mainPanel.add(makeCommonPanel());
         mainPanel.add(iterations);
+        mainPanel.add(summaryWindow);
+        JPanel histogramLogPanel = new HorizontalPanel();
+        histogramLog.setToolTipText("Directory of the HdrHistogram interval logs, one per sampler label, empty for none");
+        histogramLogPanel.add(histogramLog);
+        histogramLogPanel.add(histogramLogInterval);
+        mainPanel.add(histogramLogPanel);
 
         add(mainPanel);
         setMainPanel(mainPanel);
     }
 
+    /**
+     * Hide the exchange settings and the declaration and binding settings of the queue, leaving
+     * only the queue name, for samplers which do not declare 0-9-1 topology.
+     */
+    protected void hideTopologySettings() {
+        exchangeSettings.setVisible(false);
+
+        for (Component component : queueSettings.getComponents()) {
+            component.setVisible(component == queue);
+        }
+    }
+
+    /**
+     * Hide the connection settings which only the 0-9-1 client supports: recovery, host
+     * distribution, node tagging, frame and channel limits, NIO and byte counting.
+     */
+    protected void hideClientSettings() {
+        Component[] settings = {automaticRecovery, topologyRecovery, recoveryInterval, hostDistribution, tagNode,
+                frameMax.getParent(), useNio.getParent()};
+
+        for (Component component : settings) {
+            component.setVisible(false);
+        }
+    }
+
     private Component makeCommonPanel() {
         GridBagConstraints gridBagConstraintsCommon;
 
@@ -232,7 +399,7 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 
         // Exchange section
 
-        JPanel exchangeSettings = new JPanel(new GridBagLayout());
+        exchangeSettings = new JPanel(new GridBagLayout());
         exchangeSettings.setBorder(BorderFactory.createTitledBorder(BorderFactory.createEtchedBorder(), EXCHANGE_SETTINGS_LABEL));
 
         gridBagConstraints.gridx = 0;
@@ -261,7 +428,7 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 
         // Queue section
 
-        JPanel queueSettings = new JPanel(new GridBagLayout());
+        queueSettings = new JPanel(new GridBagLayout());
         queueSettings.setBorder(BorderFactory.createTitledBorder(BorderFactory.createEtchedBorder(), QUEUE_SETTINGS_LABEL));
         gridBagConstraints.gridx = 0;
         gridBagConstraints.gridy = 0;
@@ -291,6 +458,36 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         gridBagConstraints.gridy = 6;
         queueSettings.add(maxPriority, gridBagConstraints);
 
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 7;
+        queueType.setLayout(new BoxLayout(queueType, BoxLayout.X_AXIS));
+        queueSettings.add(queueType, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 8;
+        queueSettings.add(maxLengthBytes, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 9;
+        queueSettings.add(streamSegmentSize, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 10;
+        queueSettings.add(maxLength, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 11;
+        overflow.setLayout(new BoxLayout(overflow, BoxLayout.X_AXIS));
+        queueSettings.add(overflow, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 12;
+        queueSettings.add(deliveryLimit, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 13;
+        queueSettings.add(quorumGroupSize, gridBagConstraints);
+
         gridBagConstraints.gridx = 1;
         gridBagConstraints.gridy = 0;
         queueSettings.add(queueDurable, gridBagConstraints);
@@ -311,6 +508,10 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         gridBagConstraints.gridy = 4;
         queueSettings.add(queueAutoWait, gridBagConstraints);
 
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 7;
+        queueSettings.add(tagQueueType, gridBagConstraints);
+
         gridBagConstraintsCommon.gridx = 0;
         gridBagConstraintsCommon.gridy = 0;
 
@@ -357,6 +558,81 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         gridBagConstraints.gridy = 7;
         serverSettings.add(ssl, gridBagConstraints);
 
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 8;
+        serverSettings.add(automaticRecovery, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 9;
+        serverSettings.add(topologyRecovery, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 10;
+        serverSettings.add(recoveryInterval, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 11;
+        serverSettings.add(hostDistribution, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 12;
+        serverSettings.add(tagNode, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 13;
+        JPanel bufferPanel = new HorizontalPanel();
+        sendBufferSize.setToolTipText("Socket buffer sizes in bytes, empty for the operating system default");
+        bufferPanel.add(tcpNoDelay);
+        bufferPanel.add(sendBufferSize);
+        bufferPanel.add(receiveBufferSize);
+        serverSettings.add(bufferPanel, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 14;
+        JPanel framePanel = new HorizontalPanel();
+        frameMax.setToolTipText("Requested maximum frame size in bytes, empty for no limit");
+        framePanel.add(frameMax);
+        framePanel.add(channelMax);
+        serverSettings.add(framePanel, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 15;
+        JPanel ioPanel = new HorizontalPanel();
+        nioBufferSize.setToolTipText("NIO read and write buffer size in bytes, empty for the client default");
+        countBytes.setToolTipText("Report the bytes on the wire as sent and received bytes, blocking sockets without SSL only");
+        ioPanel.add(useNio);
+        ioPanel.add(nioBufferSize);
+        ioPanel.add(countBytes);
+        serverSettings.add(ioPanel, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 16;
+        JPanel tlsPanel = new HorizontalPanel();
+        sslProtocol.setToolTipText("Protocol of the SSL context, e.g. TLSv1.2 or TLSv1.3");
+        cipherSuites.setToolTipText("Comma separated cipher suites, empty for the protocol defaults");
+        resumeSessions.setToolTipText("Share the SSL context across connections so reconnects resume the TLS session");
+        tlsPanel.add(sslProtocol);
+        tlsPanel.add(cipherSuites);
+        tlsPanel.add(resumeSessions);
+        serverSettings.add(tlsPanel, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 17;
+        JPanel keyStorePanel = new HorizontalPanel();
+        keyStorePanel.add(keyStore);
+        keyStorePanel.add(keyStoreType);
+        keyStorePanel.add(keyStorePassword);
+        serverSettings.add(keyStorePanel, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 18;
+        JPanel trustStorePanel = new HorizontalPanel();
+        trustStore.setToolTipText("Empty to trust any broker certificate");
+        trustStorePanel.add(trustStore);
+        trustStorePanel.add(trustStoreType);
+        trustStorePanel.add(trustStorePassword);
+        serverSettings.add(trustStorePanel, gridBagConstraints);
+
         gridBagConstraintsCommon.gridx = 1;
         gridBagConstraintsCommon.gridy = 0;
 